@@ -0,0 +1,225 @@
+import com.opencsv.CSVWriter;
+import io.grpc.Server;
+import io.grpc.inprocess.InProcessServerBuilder;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.Date;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * random inputs shared by the benchmarks, generated from a seed so every run measures the same data
+ */
+public class BenchmarkData {
+
+    /**
+     * user with a month of daily weights drawn around a flat week
+     * @param seed
+     * @return
+     */
+    public static User randomUser(long seed){
+        return randomUser(28, seed);
+    }
+
+    /**
+     * user with the given number of daily weights drawn around a flat week
+     * @param days
+     * @param seed
+     * @return
+     */
+    public static User randomUser(int days, long seed){
+        SplittableRandom rand = new SplittableRandom(seed);
+        double[] dailyWeights = new double[days];
+        for(int i = 0; i < dailyWeights.length; i++)
+            dailyWeights[i] = 0.25 / 7 * (0.5 + rand.nextDouble());
+        User user = new User(dailyWeights);
+        user.alpha = 0.3 + 0.4 * rand.nextDouble();
+        user.phi = 0.004 + 0.008 * rand.nextDouble();
+        return user;
+    }
+
+    /**
+     * catalog of data plans, about a quarter of them repeat the quota, overage and price of an earlier plan like
+     * regional SKUs of the same offer
+     * @param numPlans
+     * @param seed
+     * @return
+     */
+    public static DataPlan[] randomDataPlans(int numPlans, long seed){
+        SplittableRandom rand = new SplittableRandom(seed);
+        DataPlan[] dps = new DataPlan[numPlans];
+        for(int i = 0; i < numPlans; i++){
+            if(i > 0 && rand.nextInt(4) == 0){
+                DataPlan dp = dps[rand.nextInt(i)];
+                dps[i] = new DataPlan("Plan " + i, "regional", dp.quota, dp.overage, dp.price);
+            }else{
+                dps[i] = new DataPlan("Plan " + i, "random", 500 + rand.nextInt(20000),
+                        0.005 * (1 + rand.nextInt(5)), 10 + rand.nextInt(70));
+            }
+        }
+        return dps;
+    }
+
+    public static DataPlanCatalog.Snapshot snapshot(DataPlan[] dps){
+        return new DataPlanCatalog.Snapshot(dps);
+    }
+
+    /**
+     * column store of users with weekday weights drawn around a flat week, like randomUser
+     * @param numUsers
+     * @param seed
+     * @return
+     */
+    public static UserColumns randomUserColumns(int numUsers, long seed){
+        SplittableRandom rand = new SplittableRandom(seed);
+        UserColumns users = new UserColumns(numUsers);
+        double[] params = new double[UserColumns.NUM_WEIGHTS + 2];
+        for(int u = 0; u < numUsers; u++){
+            for(int d = 0; d < UserColumns.NUM_WEIGHTS; d++)
+                params[d] = 0.25 / 7 * (0.5 + rand.nextDouble());
+            params[7] = 0.004 + 0.008 * rand.nextDouble();
+            params[8] = 0.3 + 0.4 * rand.nextDouble();
+            users.add("user" + u, params);
+        }
+        return users;
+    }
+
+    /**
+     * users of a column store as User objects, for the per user recommendation
+     * @param users
+     * @return
+     */
+    public static User[] users(UserColumns users){
+        User[] result = new User[users.size()];
+        for(int u = 0; u < result.length; u++)
+            result[u] = DataPlanServer.convertUserParamsToUser(DataPlanServer.toUserParams(users.params(u)));
+        return result;
+    }
+
+    public static BatchRecommender batchRecommender(DataPlanCatalog.Snapshot plans){
+        return new BatchRecommender(plans);
+    }
+
+    /**
+     * consecutive dates of a usage history, starting on 2017-01-01
+     * @param days
+     * @return
+     */
+    public static Date[] historyDates(int days){
+        long first = WeekdayCalendar.epochDay(2017, 1, 1);
+        Date[] dates = new Date[days];
+        for(int i = 0; i < days; i++)
+            dates[i] = WeekdayCalendar.startOfDay(first + i);
+        return dates;
+    }
+
+    /**
+     * daily usages of a light user with a weekly profile and 20% noise
+     * @param dates
+     * @param seed
+     * @return
+     */
+    public static double[] historyUsages(Date[] dates, long seed){
+        SplittableRandom rand = new SplittableRandom(seed);
+        double[] weekdayUsages = new double[7];
+        for(int day = 0; day < 7; day++){
+            double weight = 0.25 / 7 * (0.5 + rand.nextDouble());
+            weekdayUsages[day] = UserParamFitter.predictedUsage(weight, 0.008, 0.4, User.UserType.LIGHT, 0);
+        }
+        double[] usages = new double[dates.length];
+        for(int i = 0; i < dates.length; i++){
+            double usage = weekdayUsages[Utilities.dayOfWeek(dates[i]) - 1] * (1 + 0.2 * Utilities.nextGaussian(rand));
+            usages[i] = Math.max(usage, 0);
+        }
+        return usages;
+    }
+
+    public static UserParamFitter fitter(Date[] dates, double[] usages) throws Exception {
+        return new UserParamFitter(usages, dates, 0, User.UserType.LIGHT);
+    }
+
+    /**
+     * default stopping rule with another path budget
+     * @param maxPaths
+     * @return
+     */
+    public static BootstrapEngine.StoppingRule stoppingRule(int maxPaths){
+        return new BootstrapEngine.StoppingRule(Math.min(BootstrapEngine.DEFAULT_MIN_PATHS, maxPaths), maxPaths,
+                BootstrapEngine.DEFAULT_TOLERANCE);
+    }
+
+    public static UserParamRequest userParamRequest(Date[] dates, double[] usages){
+        return DataPlanClient.buildUserParamRequest(dates, usages, 0).build();
+    }
+
+    /**
+     * calibrated parameters of a usage history
+     * @param dates
+     * @param usages
+     * @return
+     * @throws Exception
+     */
+    public static UserParamResponse calibrate(Date[] dates, double[] usages) throws Exception {
+        return DataPlanServer.DataPlanServiceImpl.calibrate(userParamRequest(dates, usages));
+    }
+
+    public static DataPlanRequest dataPlanRequest(UserParamResponse calibration){
+        return DataPlanRequest.newBuilder().setUserParams(calibration.getUserParams()).build();
+    }
+
+    public static DataPlanRequest2 dataPlanRequest2(UserParamResponse calibration){
+        return DataPlanRequest2.newBuilder()
+                .setUserParams(calibration.getUserParams())
+                .setUserParamsStd(calibration.getUserParamsStd())
+                .build();
+    }
+
+    public static UtilityRequest utilityRequest(UserParamResponse calibration, DataPlan dp){
+        return UtilityRequest.newBuilder()
+                .setUserParams(calibration.getUserParams())
+                .setDataPlan(DataPlanMsg.newBuilder()
+                        .setName(dp.name)
+                        .setDescription(dp.description)
+                        .setQuota(dp.quota)
+                        .setOverage(dp.overage)
+                        .setPrice(dp.price))
+                .build();
+    }
+
+    /**
+     * write data plans in the format of Data Plans.csv
+     * @param dps
+     * @param fname
+     * @throws IOException
+     */
+    public static void writeDataPlansCSV(DataPlan[] dps, String fname) throws IOException {
+        CSVWriter writer = new CSVWriter(new FileWriter(fname), ',');
+        try {
+            writer.writeNext(new String[]{"Name", "Description", "Quota(MB)", "Overage Rate($/MB)", "Price($)"});
+            for(DataPlan dp : dps)
+                writer.writeNext(new String[]{dp.name, dp.description, String.valueOf(dp.quota),
+                        String.valueOf(dp.overage), String.valueOf(dp.price)});
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * start the data plan service on an in-process transport
+     * @param name - name of the in-process server
+     * @param catalogFile - csv file of available data plans
+     * @param cacheCalibrations - false to compute every calibration
+     * @return started server
+     * @throws IOException
+     */
+    public static Server startInProcessServer(String name, String catalogFile, boolean cacheCalibrations) throws IOException {
+        ComputePool computePool = new ComputePool();
+        CalibrationCache calibrationCache = new CalibrationCache(computePool,
+                cacheCalibrations ? CalibrationCache.DEFAULT_MAXIMUM_SIZE : 0, CalibrationCache.DEFAULT_TTL_MINUTES, TimeUnit.MINUTES);
+        return InProcessServerBuilder.forName(name)
+                .addService(new DataPlanServer.DataPlanServiceImpl(new DataPlanCatalog(catalogFile), computePool, calibrationCache))
+                .build()
+                .start();
+    }
+}
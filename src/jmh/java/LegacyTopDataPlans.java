@@ -0,0 +1,25 @@
+import java.util.TreeMap;
+
+/**
+ * Utilities.getTopDataPlans before the bounded top k selection, without its prints, as a benchmark baseline.
+ * Every utility is boxed into a TreeMap keyed by negative utility, plans with equal utilities overwrite each other.
+ */
+public class LegacyTopDataPlans {
+
+    public static DataPlan[] getTopDataPlans(User user, DataPlan[] dps, int k){
+        UserUtilityKernel kernel = new UserUtilityKernel(user);
+        TreeMap<Double, Integer> utilitiesMap = new TreeMap<Double, Integer>();
+        for(int i = 0; i < dps.length; i++){
+            double utility = kernel.utility(dps[i]);
+            utilitiesMap.put(-utility, i);
+        }
+
+        DataPlan[] topDataPlans = new DataPlan[Math.min(dps.length, k)];
+        int i = 0;
+        for(Double utility : utilitiesMap.keySet()){
+            topDataPlans[i++] = dps[utilitiesMap.get(utility)];
+            if(i >= topDataPlans.length) break;
+        }
+        return topDataPlans;
+    }
+}
@@ -0,0 +1,85 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * top 5 data plans of a population of users, in users per second: one getTopDataPlans call per user against the
+ * blocked batch scoring of BatchRecommender, on one thread and on the common pool
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchRecommendationBenchmark {
+    private static final int NUM_USERS = 10000;
+    private static final int K = 5;
+
+    private static final MethodHandle RANDOM_USER_COLUMNS = DefaultPackage.findMethod("BenchmarkData", "randomUserColumns", "int", "long");
+    private static final MethodHandle USERS = DefaultPackage.findMethod("BenchmarkData", "users", "UserColumns");
+    private static final MethodHandle RANDOM_DATA_PLANS = DefaultPackage.findMethod("BenchmarkData", "randomDataPlans", "int", "long");
+    private static final MethodHandle SNAPSHOT = DefaultPackage.findMethod("BenchmarkData", "snapshot", "DataPlan[]");
+    private static final MethodHandle BATCH_RECOMMENDER = DefaultPackage.findMethod("BenchmarkData", "batchRecommender", "Snapshot");
+    private static final MethodHandle TOP_K_SNAPSHOT = DefaultPackage.findMethod("Utilities", "getTopDataPlans", "User", "Snapshot", "int");
+    private static final MethodHandle RECOMMEND_RANGE = DefaultPackage.findMethod("BatchRecommender", "recommend",
+            "UserColumns", "int", "int", "int", "int[]", "double[]", "int");
+    private static final MethodHandle RECOMMEND = DefaultPackage.findMethod("BatchRecommender", "recommend", "UserColumns", "int");
+
+    @Param({"10", "1000", "10000"})
+    public int numPlans;
+
+    private Object users;
+    private Object[] userObjects;
+    private Object snapshot;
+    private Object recommender;
+    private Object planIndexes;
+    private Object utilities;
+
+    @Setup
+    public void setup() throws Throwable {
+        users = (Object) RANDOM_USER_COLUMNS.invokeExact(NUM_USERS, 1L);
+        userObjects = (Object[]) (Object) USERS.invokeExact(users);
+        Object dataPlans = (Object) RANDOM_DATA_PLANS.invokeExact(numPlans, 2L);
+        snapshot = (Object) SNAPSHOT.invokeExact(dataPlans);
+        recommender = (Object) BATCH_RECOMMENDER.invokeExact(snapshot);
+        planIndexes = new int[NUM_USERS * K];
+        utilities = new double[NUM_USERS * K];
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_USERS)
+    public Object perUser() throws Throwable {
+        Object last = null;
+        for(Object user : userObjects)
+            last = (Object) TOP_K_SNAPSHOT.invokeExact(user, snapshot, K);
+        return last;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_USERS)
+    public Object batch() throws Throwable {
+        RECOMMEND_RANGE.invokeExact(recommender, users, 0, NUM_USERS, K, planIndexes, utilities, 0);
+        return planIndexes;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(NUM_USERS)
+    public Object batchParallel() throws Throwable {
+        return (Object) RECOMMEND.invokeExact(recommender, users, K);
+    }
+}
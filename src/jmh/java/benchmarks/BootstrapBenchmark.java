@@ -0,0 +1,62 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * standard deviations of calibrated parameters by bootstrap refits of simulated usages, on the common pool, with a
+ * fixed number of paths or stopping at the default tolerance with numPaths at most
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class BootstrapBenchmark {
+    private static final MethodHandle HISTORY_DATES = DefaultPackage.findMethod("BenchmarkData", "historyDates", "int");
+    private static final MethodHandle HISTORY_USAGES = DefaultPackage.findMethod("BenchmarkData", "historyUsages", "Date[]", "long");
+    private static final MethodHandle NEW_FITTER = DefaultPackage.findMethod("BenchmarkData", "fitter", "Date[]", "double[]");
+    private static final MethodHandle SIMULATED_PARAM_STDS = DefaultPackage.findMethod("UserParamFitter", "getSimulatedParamStds", "int");
+    private static final MethodHandle STOPPING_RULE = DefaultPackage.findMethod("BenchmarkData", "stoppingRule", "int");
+    private static final MethodHandle ADAPTIVE_PARAM_STDS = DefaultPackage.findMethod("UserParamFitter", "getSimulatedParamStds", "StoppingRule");
+
+    @Param({"30", "365"})
+    public int historyDays;
+
+    @Param({"100", "1000", "5000"})
+    public int numPaths;
+
+    private Object fitter;
+    private Object rule;
+
+    @Setup
+    public void setup() throws Throwable {
+        Object dates = (Object) HISTORY_DATES.invokeExact(historyDays);
+        Object usages = (Object) HISTORY_USAGES.invokeExact(dates, 1L);
+        fitter = (Object) NEW_FITTER.invokeExact(dates, usages);
+        rule = (Object) STOPPING_RULE.invokeExact(numPaths);
+    }
+
+    @Benchmark
+    public Object getSimulatedParamStds() throws Throwable {
+        return (Object) SIMULATED_PARAM_STDS.invokeExact(fitter, numPaths);
+    }
+
+    @Benchmark
+    public Object getSimulatedParamStdsAdaptive() throws Throwable {
+        return (Object) ADAPTIVE_PARAM_STDS.invokeExact(fitter, rule);
+    }
+}
@@ -0,0 +1,48 @@
+package benchmarks;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.reflect.Method;
+
+/**
+ * Access to the classes of the default package.
+ * JMH rejects benchmark classes in the default package, and a named package cannot import from it, so benchmarks
+ * call the code under test through method handles. A handle kept in a static final field is inlined by the JIT like
+ * a direct call. Reference types, arrays and Strings included, are erased to Object, primitive types are kept.
+ */
+final class DefaultPackage {
+
+    private DefaultPackage(){
+    }
+
+    /**
+     * handle to a public method, the receiver of an instance method is its first parameter
+     * @param className - class in the default package, nested classes use '$'
+     * @param methodName
+     * @param parameterTypes - simple names of the parameter types, to pick among overloads
+     * @return handle of type (Object | primitive ...) -> Object | primitive
+     */
+    static MethodHandle findMethod(String className, String methodName, String... parameterTypes){
+        try {
+            for(Method method : Class.forName(className).getMethods()){
+                if(method.getName().equals(methodName) && matches(method.getParameterTypes(), parameterTypes)){
+                    MethodHandle handle = MethodHandles.publicLookup().unreflect(method);
+                    return handle.asType(handle.type().erase());
+                }
+            }
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException(e);
+        }
+        throw new IllegalArgumentException("No method " + className + "." + methodName);
+    }
+
+    private static boolean matches(Class<?>[] types, String[] names){
+        if(types.length != names.length)
+            return false;
+        for(int i = 0; i < types.length; i++){
+            if(!types[i].getSimpleName().equals(names[i]))
+                return false;
+        }
+        return true;
+    }
+}
@@ -0,0 +1,58 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * calibration of user parameters from a usage history: a new fitter (weekday indexing, aggregation and fit) and a
+ * refit of an existing fitter from the default starting point
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FitterBenchmark {
+    private static final MethodHandle HISTORY_DATES = DefaultPackage.findMethod("BenchmarkData", "historyDates", "int");
+    private static final MethodHandle HISTORY_USAGES = DefaultPackage.findMethod("BenchmarkData", "historyUsages", "Date[]", "long");
+    private static final MethodHandle NEW_FITTER = DefaultPackage.findMethod("BenchmarkData", "fitter", "Date[]", "double[]");
+    private static final MethodHandle FIT = DefaultPackage.findMethod("UserParamFitter", "fit");
+
+    @Param({"30", "90", "365"})
+    public int historyDays;
+
+    private Object dates;
+    private Object usages;
+    private Object fitter;
+
+    @Setup
+    public void setup() throws Throwable {
+        dates = (Object) HISTORY_DATES.invokeExact(historyDays);
+        usages = (Object) HISTORY_USAGES.invokeExact(dates, 1L);
+        fitter = (Object) NEW_FITTER.invokeExact(dates, usages);
+    }
+
+    @Benchmark
+    public Object newFitter() throws Throwable {
+        return (Object) NEW_FITTER.invokeExact(dates, usages);
+    }
+
+    @Benchmark
+    public Object fit() throws Throwable {
+        FIT.invokeExact(fitter);
+        return fitter;
+    }
+}
@@ -0,0 +1,63 @@
+package benchmarks;
+
+import io.grpc.MethodDescriptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GetUserParam end to end through DataPlanServiceImpl on an in-process transport: request decoding, fit,
+ * bootstrap standard deviations and response encoding, or a calibration cache hit
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class GrpcCalibrationBenchmark {
+    private static final MethodHandle HISTORY_DATES = DefaultPackage.findMethod("BenchmarkData", "historyDates", "int");
+    private static final MethodHandle HISTORY_USAGES = DefaultPackage.findMethod("BenchmarkData", "historyUsages", "Date[]", "long");
+    private static final MethodHandle USER_PARAM_REQUEST = DefaultPackage.findMethod("BenchmarkData", "userParamRequest", "Date[]", "double[]");
+
+    @Param({"30", "90", "365"})
+    public int historyDays;
+
+    @Param({"false", "true"})
+    public boolean cached;
+
+    private InProcessService service;
+    private MethodDescriptor<Object, Object> getUserParam;
+    private Object request;
+
+    @Setup
+    public void setup() throws Throwable {
+        service = new InProcessService(10, cached);
+        getUserParam = InProcessService.method("GetUserParam");
+        Object dates = (Object) HISTORY_DATES.invokeExact(historyDays);
+        Object usages = (Object) HISTORY_USAGES.invokeExact(dates, 1L);
+        request = (Object) USER_PARAM_REQUEST.invokeExact(dates, usages);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        service.close();
+    }
+
+    @Benchmark
+    public Object getUserParam(){
+        return service.call(getUserParam, request);
+    }
+}
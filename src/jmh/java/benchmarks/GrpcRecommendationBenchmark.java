@@ -0,0 +1,86 @@
+package benchmarks;
+
+import io.grpc.MethodDescriptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * recommendation and utility RPCs end to end through DataPlanServiceImpl on an in-process transport, for a user
+ * calibrated once on 90 days of history. GetRecommendedDataPlans2 keeps 1000 simulated utilities per plan, which
+ * bounds the catalog size
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GrpcRecommendationBenchmark {
+    private static final MethodHandle HISTORY_DATES = DefaultPackage.findMethod("BenchmarkData", "historyDates", "int");
+    private static final MethodHandle HISTORY_USAGES = DefaultPackage.findMethod("BenchmarkData", "historyUsages", "Date[]", "long");
+    private static final MethodHandle CALIBRATE = DefaultPackage.findMethod("BenchmarkData", "calibrate", "Date[]", "double[]");
+    private static final MethodHandle RANDOM_DATA_PLANS = DefaultPackage.findMethod("BenchmarkData", "randomDataPlans", "int", "long");
+    private static final MethodHandle DATA_PLAN_REQUEST = DefaultPackage.findMethod("BenchmarkData", "dataPlanRequest", "UserParamResponse");
+    private static final MethodHandle DATA_PLAN_REQUEST2 = DefaultPackage.findMethod("BenchmarkData", "dataPlanRequest2", "UserParamResponse");
+    private static final MethodHandle UTILITY_REQUEST = DefaultPackage.findMethod("BenchmarkData", "utilityRequest", "UserParamResponse", "DataPlan");
+
+    @Param({"10", "1000", "10000"})
+    public int numPlans;
+
+    private InProcessService service;
+    private MethodDescriptor<Object, Object> getRecommendedDataPlans;
+    private MethodDescriptor<Object, Object> getRecommendedDataPlans2;
+    private MethodDescriptor<Object, Object> getUtility;
+    private Object dataPlanRequest;
+    private Object dataPlanRequest2;
+    private Object utilityRequest;
+
+    @Setup
+    public void setup() throws Throwable {
+        service = new InProcessService(numPlans, true);
+        getRecommendedDataPlans = InProcessService.method("GetRecommendedDataPlans");
+        getRecommendedDataPlans2 = InProcessService.method("GetRecommendedDataPlans2");
+        getUtility = InProcessService.method("GetUtility");
+
+        Object dates = (Object) HISTORY_DATES.invokeExact(90);
+        Object usages = (Object) HISTORY_USAGES.invokeExact(dates, 1L);
+        Object calibration = (Object) CALIBRATE.invokeExact(dates, usages);
+        dataPlanRequest = (Object) DATA_PLAN_REQUEST.invokeExact(calibration);
+        dataPlanRequest2 = (Object) DATA_PLAN_REQUEST2.invokeExact(calibration);
+        Object[] dataPlans = (Object[]) (Object) RANDOM_DATA_PLANS.invokeExact(1, 2L);
+        utilityRequest = (Object) UTILITY_REQUEST.invokeExact(calibration, dataPlans[0]);
+    }
+
+    @TearDown
+    public void tearDown() throws InterruptedException {
+        service.close();
+    }
+
+    @Benchmark
+    public Object getRecommendedDataPlans(){
+        return service.call(getRecommendedDataPlans, dataPlanRequest);
+    }
+
+    @Benchmark
+    public Object getRecommendedDataPlans2(){
+        return service.call(getRecommendedDataPlans2, dataPlanRequest2);
+    }
+
+    @Benchmark
+    public Object getUtility(){
+        return service.call(getUtility, utilityRequest);
+    }
+}
@@ -0,0 +1,67 @@
+package benchmarks;
+
+import io.grpc.CallOptions;
+import io.grpc.ManagedChannel;
+import io.grpc.MethodDescriptor;
+import io.grpc.Server;
+import io.grpc.ServiceDescriptor;
+import io.grpc.inprocess.InProcessChannelBuilder;
+import io.grpc.stub.ClientCalls;
+
+import java.io.File;
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * data plan service on an in-process transport with a generated catalog, called through generic unary calls
+ */
+final class InProcessService {
+    private static final MethodHandle RANDOM_DATA_PLANS = DefaultPackage.findMethod("BenchmarkData", "randomDataPlans", "int", "long");
+    private static final MethodHandle WRITE_DATA_PLANS = DefaultPackage.findMethod("BenchmarkData", "writeDataPlansCSV", "DataPlan[]", "String");
+    private static final MethodHandle START_SERVER = DefaultPackage.findMethod("BenchmarkData", "startInProcessServer", "String", "String", "boolean");
+    private static final MethodHandle SERVICE_DESCRIPTOR = DefaultPackage.findMethod("DataPlanServiceGrpc", "getServiceDescriptor");
+
+    private final File catalogFile;
+    private final Server server;
+    private final ManagedChannel channel;
+
+    /**
+     * @param numPlans - size of the generated catalog
+     * @param cacheCalibrations - false to compute every calibration
+     * @throws Throwable
+     */
+    InProcessService(int numPlans, boolean cacheCalibrations) throws Throwable {
+        Object name = "benchmark-" + System.nanoTime();
+        catalogFile = File.createTempFile("data-plans", ".csv");
+        Object path = catalogFile.getPath();
+        WRITE_DATA_PLANS.invokeExact((Object) RANDOM_DATA_PLANS.invokeExact(numPlans, 2L), path);
+        server = (Server) (Object) START_SERVER.invokeExact(name, path, cacheCalibrations);
+        channel = InProcessChannelBuilder.forName((String) name).build();
+    }
+
+    /**
+     * @param methodName - method of the data plan service, e.g. GetUserParam
+     * @return method descriptor with untyped messages
+     * @throws Throwable
+     */
+    @SuppressWarnings("unchecked")
+    static MethodDescriptor<Object, Object> method(String methodName) throws Throwable {
+        ServiceDescriptor service = (ServiceDescriptor) (Object) SERVICE_DESCRIPTOR.invokeExact();
+        for(MethodDescriptor<?, ?> method : service.getMethods()){
+            if(method.getFullMethodName().equals(service.getName() + "/" + methodName))
+                return (MethodDescriptor<Object, Object>) method;
+        }
+        throw new IllegalArgumentException("No method " + methodName);
+    }
+
+    Object call(MethodDescriptor<Object, Object> method, Object request){
+        return ClientCalls.blockingUnaryCall(channel, method, CallOptions.DEFAULT, request);
+    }
+
+    void close() throws InterruptedException {
+        channel.shutdownNow();
+        server.shutdownNow();
+        server.awaitTermination(10, TimeUnit.SECONDS);
+        catalogFile.delete();
+    }
+}
@@ -0,0 +1,67 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * top 5 data plans of a catalog: the TreeMap ranking it replaced against the bounded top k selection,
+ * on a plan array and on a catalog snapshot
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TopDataPlansBenchmark {
+    private static final MethodHandle RANDOM_USER = DefaultPackage.findMethod("BenchmarkData", "randomUser", "long");
+    private static final MethodHandle RANDOM_DATA_PLANS = DefaultPackage.findMethod("BenchmarkData", "randomDataPlans", "int", "long");
+    private static final MethodHandle SNAPSHOT = DefaultPackage.findMethod("BenchmarkData", "snapshot", "DataPlan[]");
+    private static final MethodHandle LEGACY = DefaultPackage.findMethod("LegacyTopDataPlans", "getTopDataPlans", "User", "DataPlan[]", "int");
+    private static final MethodHandle TOP_K = DefaultPackage.findMethod("Utilities", "getTopDataPlans", "User", "DataPlan[]", "int");
+    private static final MethodHandle TOP_K_SNAPSHOT = DefaultPackage.findMethod("Utilities", "getTopDataPlans", "User", "Snapshot", "int");
+
+    @Param({"10", "1000", "100000"})
+    public int numPlans;
+
+    @Param({"5"})
+    public int k;
+
+    private Object user;
+    private Object dataPlans;
+    private Object snapshot;
+
+    @Setup
+    public void setup() throws Throwable {
+        user = (Object) RANDOM_USER.invokeExact(1L);
+        dataPlans = (Object) RANDOM_DATA_PLANS.invokeExact(numPlans, 2L);
+        snapshot = (Object) SNAPSHOT.invokeExact(dataPlans);
+    }
+
+    @Benchmark
+    public Object treeMap() throws Throwable {
+        return (Object) LEGACY.invokeExact(user, dataPlans, k);
+    }
+
+    @Benchmark
+    public Object topK() throws Throwable {
+        return (Object) TOP_K.invokeExact(user, dataPlans, k);
+    }
+
+    @Benchmark
+    public Object topKSnapshot() throws Throwable {
+        return (Object) TOP_K_SNAPSHOT.invokeExact(user, snapshot, k);
+    }
+}
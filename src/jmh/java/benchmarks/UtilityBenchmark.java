@@ -0,0 +1,61 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.lang.invoke.MethodHandle;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * utility and optimal daily usages of every plan of a catalog for one user, the user has one daily weight per day
+ * of history
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UtilityBenchmark {
+    private static final MethodHandle RANDOM_USER = DefaultPackage.findMethod("BenchmarkData", "randomUser", "int", "long");
+    private static final MethodHandle RANDOM_DATA_PLANS = DefaultPackage.findMethod("BenchmarkData", "randomDataPlans", "int", "long");
+    private static final MethodHandle UTILITY = DefaultPackage.findMethod("Utilities", "calculateDataPlanUtility", "User", "DataPlan");
+    private static final MethodHandle OPTIMAL_USAGES = DefaultPackage.findMethod("Utilities", "getOptimalUsages", "User", "DataPlan");
+
+    @Param({"30", "90", "365"})
+    public int historyDays;
+
+    @Param({"10", "1000"})
+    public int numPlans;
+
+    private Object user;
+    private Object[] dataPlans;
+
+    @Setup
+    public void setup() throws Throwable {
+        user = (Object) RANDOM_USER.invokeExact(historyDays, 1L);
+        dataPlans = (Object[]) (Object) RANDOM_DATA_PLANS.invokeExact(numPlans, 2L);
+    }
+
+    @Benchmark
+    public void calculateDataPlanUtility(Blackhole bh) throws Throwable {
+        for(Object dp : dataPlans)
+            bh.consume((double) UTILITY.invokeExact(user, dp));
+    }
+
+    @Benchmark
+    public void getOptimalUsages(Blackhole bh) throws Throwable {
+        for(Object dp : dataPlans)
+            bh.consume((Object) OPTIMAL_USAGES.invokeExact(user, dp));
+    }
+}
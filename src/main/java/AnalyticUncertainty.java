@@ -0,0 +1,141 @@
+import org.apache.commons.math3.linear.Array2DRowRealMatrix;
+import org.apache.commons.math3.linear.EigenDecomposition;
+import org.apache.commons.math3.linear.RealVector;
+
+import java.util.Arrays;
+
+/**
+ * Asymptotic standard deviations of calibrated user parameters, sigma^2 (J^T J)^-1 with J the Jacobian of the
+ * predicted usages at the optimum, for the cost of one 8x8 eigendecomposition instead of bootstrap refits.
+ * J^T J is rebuilt from the 7 weekday rows of the aggregated problem (the optimizer does not retain its Jacobian),
+ * each row weighted by the number of samples of its weekday, which equals the per-sample J^T J. Sigma is the noise of
+ * the bootstrap paths (standard deviation of the usages), so both modes estimate the same spread.
+ * Seven weekday means cannot identify eight parameters: J^T J always has a null direction, along which the warm
+ * started refits of the bootstrap do not move. The pseudo-inverse of the column scaled matrix drops it the same way.
+ * A second (near) null direction makes the estimate unreliable, it is reported as ill-conditioned.
+ * The weight of the last weekday is 0.25 minus the others, its variance is the sum of their covariance block.
+ * Metrics: uncertainty.analytic_us.
+ */
+public class AnalyticUncertainty {
+    public static final int NUM_PARAMS = BootstrapEngine.NUM_PARAMS;  // w1 ... w7, phi, alpha
+    // above this ratio of the largest to the smallest non-structural eigenvalue the estimate is ill-conditioned
+    public static final double MAX_CONDITION_NUMBER = 1e3;
+    // eigenvalues below this fraction of the largest one are treated as zero by the pseudo-inverse
+    private static final double RANK_TOLERANCE = 1e-10;
+    private static final int NUM_FITTED = 8;  // w0 ... w5, phi, alpha of the fitter
+
+    private static final Metrics.Distribution ANALYTIC_MICROS = Metrics.GLOBAL.distribution("uncertainty.analytic_us");
+
+    private AnalyticUncertainty(){
+    }
+
+    /**
+     * analytic standard deviations
+     */
+    public static class Result{
+        public final double[] std;  // w1 ... w7, phi, alpha
+        public final double conditionNumber;  // of the column scaled J^T J without its structural null direction
+
+        Result(double[] std, double conditionNumber){
+            this.std = std;
+            this.conditionNumber = conditionNumber;
+        }
+
+        /**
+         * @return true if the standard deviations should not be trusted
+         */
+        public boolean isIllConditioned(){
+            if(!(conditionNumber <= MAX_CONDITION_NUMBER))
+                return true;
+            for(double s : std)
+                if(Double.isNaN(s) || Double.isInfinite(s))
+                    return true;
+            return false;
+        }
+
+        public UserParamFitter.UserParamsStd toUserParamsStd(){
+            return UserParamFitter.UserParamsStd.of(std);
+        }
+    }
+
+    /**
+     * @param fitter - fitted user
+     * @return standard deviations of its parameters
+     */
+    public static Result estimate(UserParamFitter fitter){
+        long start = System.nanoTime();
+        double[] params = fitter.params;
+        WeekdayUsageStats stats = fitter.stats;
+
+        double[][] information = new double[NUM_FITTED][NUM_FITTED];  // J^T J
+        double[] row = new double[NUM_FITTED];
+        for(int day = 0; day < 7; day++){
+            if(stats.count[day] == 0)
+                continue;
+            Arrays.fill(row, 0);
+            UserParamFitter.addJacobianRow(row, day, params, Math.sqrt(stats.count[day]), fitter.userType, fitter.overage);
+            for(int i = 0; i < NUM_FITTED; i++)
+                for(int j = 0; j < NUM_FITTED; j++)
+                    information[i][j] += row[i] * row[j];
+        }
+
+        // scale columns to unit diagonal, a parameter without influence keeps a zero column
+        double[] scales = new double[NUM_FITTED];
+        for(int i = 0; i < NUM_FITTED; i++)
+            scales[i] = information[i][i] > 0 ? Math.sqrt(information[i][i]) : 1;
+        for(int i = 0; i < NUM_FITTED; i++)
+            for(int j = 0; j < NUM_FITTED; j++)
+                information[i][j] /= scales[i] * scales[j];
+
+        double[][] covariance = new double[NUM_FITTED][NUM_FITTED];
+        double conditionNumber = Double.POSITIVE_INFINITY;
+        if(isFinite(information)){
+            EigenDecomposition eigen = new EigenDecomposition(new Array2DRowRealMatrix(information, false));
+            double[] eigenvalues = eigen.getRealEigenvalues();
+            double[] sorted = eigenvalues.clone();
+            Arrays.sort(sorted);
+            double max = sorted[NUM_FITTED - 1];
+            if(sorted[1] > 0)
+                conditionNumber = max / sorted[1];
+            double variance = UserParamFitter.calcStd(fitter.usages);
+            variance *= variance;
+            for(int k = 0; k < NUM_FITTED; k++){
+                if(!(eigenvalues[k] > RANK_TOLERANCE * max))
+                    continue;
+                RealVector v = eigen.getEigenvector(k);
+                for(int i = 0; i < NUM_FITTED; i++)
+                    for(int j = 0; j < NUM_FITTED; j++)
+                        covariance[i][j] += variance * v.getEntry(i) * v.getEntry(j) / (eigenvalues[k] * scales[i] * scales[j]);
+            }
+        }else{
+            for(double[] c : covariance)
+                Arrays.fill(c, Double.NaN);
+        }
+
+        double[] std = new double[NUM_PARAMS];
+        for(int day = 1; day <= 7; day++){
+            int index = day % 7;
+            if(index != 6){
+                std[day - 1] = Math.sqrt(covariance[index][index]);
+            }else{
+                double variance = 0;
+                for(int i = 0; i < 6; i++)
+                    for(int j = 0; j < 6; j++)
+                        variance += covariance[i][j];
+                std[day - 1] = Math.sqrt(Math.max(variance, 0));
+            }
+        }
+        std[7] = Math.sqrt(covariance[6][6]);
+        std[8] = Math.sqrt(covariance[7][7]);
+        ANALYTIC_MICROS.recordMicrosSince(start);
+        return new Result(std, conditionNumber);
+    }
+
+    private static boolean isFinite(double[][] matrix){
+        for(double[] row : matrix)
+            for(double x : row)
+                if(Double.isNaN(x) || Double.isInfinite(x))
+                    return false;
+        return true;
+    }
+}
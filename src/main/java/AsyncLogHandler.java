@@ -0,0 +1,173 @@
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * java.util.logging handler publishing through a ring buffer, so that logging threads never wait on the output.
+ * Records go into a bounded ring of preallocated slots (Vyukov's multi-producer queue: a producer claims a slot with
+ * one CAS on the tail, a per slot sequence number publishes it), a full ring drops the record. A daemon thread
+ * passes the records to the wrapped handler, which formats them: message parameters are only turned into strings
+ * there, off the logging thread. The caller of a record is looked up before it is queued, since it is found from the
+ * stack of the logging thread.
+ * Records below the level of the handler are filtered before they are queued; the level is the one of the wrapped
+ * handler when installed with {@link #install}.
+ * Metrics: log.dropped.
+ */
+public class AsyncLogHandler extends Handler {
+    public static final int DEFAULT_CAPACITY = 8192;
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private final Handler delegate;
+    private final int mask;
+    private final LogRecord[] slots;
+    // sequence of each slot: index + k * capacity when free for the k-th lap, one more when filled
+    private final AtomicLongArray sequences;
+    private final AtomicLong tail = new AtomicLong();
+    private long head;  // only read and written by the writer thread
+    private final Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * @param delegate - handler writing the records
+     */
+    public AsyncLogHandler(Handler delegate){
+        this(delegate, DEFAULT_CAPACITY);
+    }
+
+    /**
+     * @param delegate - handler writing the records
+     * @param capacity - number of records that can wait for the writer, rounded up to a power of two
+     */
+    public AsyncLogHandler(Handler delegate, int capacity){
+        if(capacity < 1 || capacity > 1 << 30)
+            throw new IllegalArgumentException("capacity must be between 1 and 2^30");
+        int size = Integer.highestOneBit(capacity) == capacity ? capacity : Integer.highestOneBit(capacity) << 1;
+        this.delegate = delegate;
+        this.mask = size - 1;
+        this.slots = new LogRecord[size];
+        this.sequences = new AtomicLongArray(size);
+        for(int i = 0; i < size; i++)
+            sequences.set(i, i);
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "async-log-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * replace the handlers of a logger by asynchronous handlers wrapping them, with their levels
+     * @param logger - e.g. the root logger, Logger.getLogger("")
+     */
+    public static void install(Logger logger){
+        for(Handler handler : logger.getHandlers()){
+            if(handler instanceof AsyncLogHandler)
+                continue;
+            AsyncLogHandler async = new AsyncLogHandler(handler);
+            async.setLevel(handler.getLevel());
+            logger.removeHandler(handler);
+            logger.addHandler(async);
+        }
+    }
+
+    /**
+     * queue a record, without blocking
+     * @param record
+     */
+    @Override
+    public void publish(LogRecord record) {
+        if(closed || !isLoggable(record))
+            return;
+        // infer the caller now, the writer thread has another stack
+        record.getSourceClassName();
+        long position = tail.get();
+        while (true){
+            int index = (int) position & mask;
+            long difference = sequences.get(index) - position;
+            if(difference == 0){
+                if(tail.compareAndSet(position, position + 1)){
+                    slots[index] = record;
+                    sequences.set(index, position + 1);
+                    return;
+                }
+                position = tail.get();
+            }else if(difference < 0){
+                // full: the slot still holds the record of the previous lap
+                Metrics.GLOBAL.counter("log.dropped").increment();
+                return;
+            }else{
+                position = tail.get();
+            }
+        }
+    }
+
+    /**
+     * flush the wrapped handler, records still in the ring are not waited for
+     */
+    @Override
+    public void flush() {
+        delegate.flush();
+    }
+
+    /**
+     * write the queued records and close the wrapped handler
+     * @throws SecurityException
+     */
+    @Override
+    public void close() throws SecurityException {
+        closed = true;
+        LockSupport.unpark(writer);
+        try {
+            writer.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        delegate.close();
+    }
+
+    /**
+     * @return next record of the ring, null if it is empty
+     */
+    private LogRecord poll(){
+        int index = (int) head & mask;
+        if(sequences.get(index) != head + 1)
+            return null;
+        LogRecord record = slots[index];
+        slots[index] = null;
+        sequences.set(index, head + mask + 1);
+        head++;
+        return record;
+    }
+
+    private void drainLoop(){
+        while (true){
+            // read closed before draining, so that records queued before close are written
+            boolean last = closed;
+            LogRecord record;
+            boolean any = false;
+            while ((record = poll()) != null){
+                any = true;
+                try {
+                    delegate.publish(record);
+                } catch (RuntimeException e) {
+                    reportError("Failed to publish log record", e, ErrorManager.WRITE_FAILURE);
+                }
+            }
+            if(any){
+                delegate.flush();
+                continue;
+            }
+            if(last)
+                return;
+            LockSupport.parkNanos(this, IDLE_NANOS);
+        }
+    }
+}
@@ -0,0 +1,470 @@
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.Arrays;
+import java.util.PriorityQueue;
+import java.util.Properties;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+import java.util.logging.Logger;
+
+/**
+ * Offline calibration of a whole trace, without server.
+ * Users flow through a pipeline: the reader (calling thread) reads them in order from a binary trace
+ * ({@link UsageTrace}) or a CSV ({@link CsvTraceReader}, usages in bytes), fit and bootstrap run as successive tasks
+ * on a work-stealing pool (the bootstrap paths of a user are forked in the same pool, and stop once its standard
+ * deviations are within tolerance, numPaths at most), and a single writer stores the results in a
+ * {@link UserParamStore}. At most maxInFlight users are read and not yet written.
+ * Results are written in completion order. The writer tracks the first user not yet written, every users before it
+ * are in the output; it periodically flushes the output and then records that position in the checkpoint file
+ * (output + ".checkpoint"). A job started again with the same input and output resumes from the checkpoint, users
+ * after it that were already written are overwritten with the same values (bootstrap seeds derive from userIds).
+ * Users whose fit fails are skipped and listed with the error in output + ".errors". The checkpoint also records the
+ * length of that file, a resumed job cuts it back to that length so that failed users recomputed after the checkpoint
+ * are not listed twice (a job without checkpoint starts it empty).
+ */
+public class BatchCalibration {
+    private static final Logger logger = Logger.getLogger(BatchCalibration.class.getName());
+
+    public static final int DEFAULT_NUM_PATHS = 1000;
+    public static final double DEFAULT_OVERAGE = 0.01;
+    public static final int DEFAULT_CHECKPOINT_USERS = 10000;
+    public static final long DEFAULT_CHECKPOINT_MILLIS = 30000;
+
+    private final File input;
+    private final File output;
+    private final File checkpointFile;
+    private final File errorFile;
+    public int numPaths = DEFAULT_NUM_PATHS;  // max paths of a user
+    public double tolerance = BootstrapEngine.DEFAULT_TOLERANCE;  // 0 to always run numPaths
+    public double overage = DEFAULT_OVERAGE;
+    public int parallelism = Runtime.getRuntime().availableProcessors();
+    public int maxInFlight = 0;  // 0 for 4 * parallelism
+    public LocalDate firstDate = LocalDate.now();  // first day of the users of a CSV, a trace has its own
+    public int checkpointUsers = DEFAULT_CHECKPOINT_USERS;
+    public long checkpointMillis = DEFAULT_CHECKPOINT_MILLIS;
+
+    /**
+     * @param input - binary trace, or CSV if its name ends with .csv
+     * @param output - user parameter store, created or updated
+     */
+    public BatchCalibration(File input, File output){
+        this.input = input;
+        this.output = output;
+        this.checkpointFile = new File(output.getPath() + ".checkpoint");
+        this.errorFile = new File(output.getPath() + ".errors");
+    }
+
+    /**
+     * summary of a run
+     */
+    public static class Summary{
+        public long resumedFrom;  // users done by previous runs
+        public long calibrated;
+        public long failed;
+
+        @Override
+        public String toString() {
+            return "resumed from " + resumedFrom + ", calibrated " + calibrated + ", failed " + failed;
+        }
+    }
+
+    /**
+     * users of the input in order
+     */
+    private interface Source extends Closeable{
+        /**
+         * @param row - filled with the next user, usages are scaled to MB
+         * @return false at the end of the input
+         */
+        boolean next(CsvTraceReader.Row row) throws IOException;
+
+        /**
+         * @return day of week of the first day, 0 = Sunday
+         */
+        int firstDay();
+    }
+
+    /**
+     * result of one user
+     */
+    private static class Outcome{
+        final long index;
+        final String userId;
+        final double[] params;
+        final double[] stds;
+        final Throwable error;
+
+        Outcome(long index, String userId, double[] params, double[] stds, Throwable error){
+            this.index = index;
+            this.userId = userId;
+            this.params = params;
+            this.stds = stds;
+            this.error = error;
+        }
+    }
+
+    /**
+     * calibrate the users after the checkpoint
+     * @return
+     * @throws Exception if the input, output or checkpoint cannot be read or written
+     */
+    public Summary run() throws Exception {
+        final Summary summary = new Summary();
+        Properties checkpoint = readCheckpoint();
+        final long start = checkpoint == null ? 0 : Long.parseLong(checkpoint.getProperty("position"));
+        // -1 for a checkpoint written before errorsLength was recorded, the file is then kept whole
+        long errorsLength = checkpoint == null ? 0 : Long.parseLong(checkpoint.getProperty("errorsLength", "-1"));
+        summary.resumedFrom = start;
+        int inFlight = maxInFlight > 0 ? maxInFlight : 4 * parallelism;
+        final Semaphore permits = new Semaphore(inFlight);
+        final BlockingQueue<Outcome> outcomes = new LinkedBlockingQueue<Outcome>();
+        final BootstrapEngine.StoppingRule rule = new BootstrapEngine.StoppingRule(
+                Math.min(BootstrapEngine.DEFAULT_MIN_PATHS, numPaths), numPaths, tolerance);
+        // open the input and the output before starting any thread, a failure there has nothing to stop
+        Source source = open(start);
+        final UserParamStore store;
+        try {
+            store = UserParamStore.open(output);
+        } catch (IOException | RuntimeException e) {
+            source.close();
+            throw e;
+        }
+        try {
+            truncateErrors(errorsLength);
+        } catch (IOException | RuntimeException e) {
+            source.close();
+            store.close();
+            throw e;
+        }
+        final ForkJoinPool pool = new ForkJoinPool(parallelism);
+        final BootstrapEngine engine = new BootstrapEngine(pool, BootstrapEngine.DEFAULT_CHUNK_SIZE);
+        final Outcome end = new Outcome(-1, null, null, null, null);
+        Writer writer = new Writer(store, outcomes, permits, start, end, summary);
+        writer.start();
+
+        final int firstDay = source.firstDay();
+        long index = start;
+        try {
+            CsvTraceReader.Row row = new CsvTraceReader.Row();
+            while (writer.failure == null && source.next(row)) {
+                permits.acquire();
+                final long userIndex = index++;
+                final String userId = row.userId;
+                final double[] usages = Arrays.copyOf(row.usages, row.length);
+                CompletableFuture.supplyAsync(new Supplier<UserParamFitter>() {
+                    @Override
+                    public UserParamFitter get() {
+                        if(usages.length == 0)
+                            throw new CompletionException(new IllegalArgumentException("no usages"));
+                        int[] days = new int[usages.length];
+                        for(int i = 0; i < days.length; i++)
+                            days[i] = (firstDay + i) % 7;
+                        try {
+                            return new UserParamFitter(usages, days, overage, User.UserType.HEAVY);
+                        } catch (Exception e) {
+                            throw new CompletionException(e);
+                        }
+                    }
+                }, pool).thenApplyAsync(new Function<UserParamFitter, Outcome>() {
+                    @Override
+                    public Outcome apply(UserParamFitter fitter) {
+                        BootstrapEngine.Result bootstrap;
+                        try {
+                            bootstrap = engine.run(fitter, rule, userId.hashCode());
+                        } catch (Exception e) {
+                            throw new CompletionException(e);
+                        }
+                        double[] params = new double[UserParamStore.NUM_PARAMS];
+                        for(int day = 1; day <= 7; day++)
+                            params[day - 1] = fitter.getDailyWeight(day);
+                        params[7] = fitter.getPhi();
+                        params[8] = fitter.getAlpha();
+                        return new Outcome(userIndex, userId, params, bootstrap.std, null);
+                    }
+                }, pool).whenComplete(new BiConsumer<Outcome, Throwable>() {
+                    @Override
+                    public void accept(Outcome outcome, Throwable t) {
+                        if(t instanceof CompletionException && t.getCause() != null)
+                            t = t.getCause();
+                        outcomes.add(t != null ? new Outcome(userIndex, userId, null, null, t) : outcome);
+                    }
+                });
+            }
+        } finally {
+            source.close();
+            // wait for the users in flight
+            permits.acquire(inFlight);
+            outcomes.add(end);
+            writer.join();
+            pool.shutdown();
+            store.close();
+        }
+        if(writer.failure != null)
+            throw writer.failure;
+        return summary;
+    }
+
+    /**
+     * writes outcomes, advances and checkpoints the position of the first user not written
+     */
+    private class Writer extends Thread{
+        private final UserParamStore store;
+        private final BlockingQueue<Outcome> outcomes;
+        private final Semaphore permits;
+        private final Outcome end;
+        private final Summary summary;
+        private final PriorityQueue<Long> written = new PriorityQueue<Long>();  // written after the position
+        private long position;
+        volatile Exception failure;
+
+        Writer(UserParamStore store, BlockingQueue<Outcome> outcomes, Semaphore permits, long position, Outcome end,
+               Summary summary){
+            super("batch-calibration-writer");
+            this.store = store;
+            this.outcomes = outcomes;
+            this.permits = permits;
+            this.position = position;
+            this.end = end;
+            this.summary = summary;
+        }
+
+        @Override
+        public void run() {
+            BufferedWriter errors = null;
+            try {
+                errors = new BufferedWriter(new FileWriter(errorFile, true));
+                long checkpointed = position;
+                long lastCheckpoint = System.currentTimeMillis();
+                while (true) {
+                    Outcome outcome = outcomes.poll(1, TimeUnit.SECONDS);
+                    if(outcome == end)
+                        break;
+                    if(outcome != null){
+                        write(outcome, errors);
+                        permits.release();
+                    }
+                    long now = System.currentTimeMillis();
+                    if(position - checkpointed >= checkpointUsers || (position > checkpointed && now - lastCheckpoint >= checkpointMillis)){
+                        checkpoint(errors);
+                        logger.info("Calibrated " + summary.calibrated + " users, failed " + summary.failed + ", checkpoint at " + position);
+                        checkpointed = position;
+                        lastCheckpoint = now;
+                    }
+                }
+                checkpoint(errors);
+            } catch (Exception e) {
+                failure = e;
+                // release the reader, it stops at the next user
+                permits.release(Integer.MAX_VALUE / 2);
+            } finally {
+                if(errors != null){
+                    try {
+                        errors.close();
+                    } catch (IOException e) {
+                        if(failure == null)
+                            failure = e;
+                    }
+                }
+            }
+        }
+
+        private void write(Outcome outcome, BufferedWriter errors) throws IOException {
+            if(outcome.error != null){
+                errors.write(outcome.userId + "," + outcome.error.toString().replace('\n', ' '));
+                errors.newLine();
+                summary.failed++;
+            }else{
+                store.put(outcome.userId, outcome.params, outcome.stds, System.currentTimeMillis());
+                summary.calibrated++;
+            }
+            written.add(outcome.index);
+            while (!written.isEmpty() && written.peek() == position) {
+                written.poll();
+                position++;
+            }
+        }
+
+        /**
+         * make the output durable up to the position, then record the position
+         */
+        private void checkpoint(BufferedWriter errors) throws IOException {
+            errors.flush();
+            store.flush();
+            writeCheckpoint(position, errorFile.length());
+        }
+    }
+
+    /**
+     * open the input after the users done
+     */
+    private Source open(long start) throws IOException {
+        if(input.getName().endsWith(".csv")){
+            final CsvTraceReader reader = new CsvTraceReader(input);
+            final int firstDay = firstDate.getDayOfWeek().getValue() % 7;
+            Source source = new Source() {
+                @Override
+                public boolean next(CsvTraceReader.Row row) throws IOException {
+                    if(!reader.next(row))
+                        return false;
+                    for(int i = 0; i < row.length; i++)
+                        row.usages[i] = row.usages[i] / 1000 / 1000;
+                    return true;
+                }
+
+                @Override
+                public int firstDay() {
+                    return firstDay;
+                }
+
+                @Override
+                public void close() throws IOException {
+                    reader.close();
+                }
+            };
+            try {
+                CsvTraceReader.Row skipped = new CsvTraceReader.Row();
+                for(long i = 0; i < start && reader.next(skipped); i++)
+                    ;
+            } catch (IOException | RuntimeException e) {
+                reader.close();
+                throw e;
+            }
+            return source;
+        }
+
+        final UsageTrace trace = UsageTrace.open(input);
+        final int firstDay = trace.firstDate().getDayOfWeek().getValue() % 7;
+        final long[] next = {start};
+        return new Source() {
+            @Override
+            public boolean next(CsvTraceReader.Row row) {
+                if(next[0] >= trace.numUsers())
+                    return false;
+                int user = (int) next[0]++;
+                int n = trace.numDays(user);
+                if(row.usages.length < n)
+                    row.usages = new double[n];
+                row.userId = trace.userId(user);
+                row.length = trace.read(user, row.usages);
+                return true;
+            }
+
+            @Override
+            public int firstDay() {
+                return firstDay;
+            }
+
+            @Override
+            public void close() throws IOException {
+                trace.close();
+            }
+        };
+    }
+
+    /**
+     * @return progress of previous runs of this job: position (users done) and errorsLength, null without checkpoint
+     * @throws IOException if the checkpoint is of another input
+     */
+    private Properties readCheckpoint() throws IOException {
+        if(!checkpointFile.exists())
+            return null;
+        Properties checkpoint = new Properties();
+        InputStream in = new FileInputStream(checkpointFile);
+        try {
+            checkpoint.load(in);
+        } finally {
+            in.close();
+        }
+        if(!input.getCanonicalPath().equals(checkpoint.getProperty("input"))
+                || input.length() != Long.parseLong(checkpoint.getProperty("inputLength", "-1")))
+            throw new IOException("checkpoint " + checkpointFile + " is of another input: " + checkpoint.getProperty("input"));
+        return checkpoint;
+    }
+
+    /**
+     * drop the errors written after the checkpoint
+     * @param length - length of the errors file at the checkpoint, negative to keep it whole
+     */
+    private void truncateErrors(long length) throws IOException {
+        if(length < 0 || !errorFile.exists() || errorFile.length() <= length)
+            return;
+        RandomAccessFile file = new RandomAccessFile(errorFile, "rw");
+        try {
+            file.setLength(length);
+        } finally {
+            file.close();
+        }
+    }
+
+    /**
+     * replace the checkpoint atomically
+     * @param position - users before it are in the output
+     * @param errorsLength - length of the errors file, flushed
+     */
+    private void writeCheckpoint(long position, long errorsLength) throws IOException {
+        Properties checkpoint = new Properties();
+        checkpoint.setProperty("input", input.getCanonicalPath());
+        checkpoint.setProperty("inputLength", Long.toString(input.length()));
+        checkpoint.setProperty("position", Long.toString(position));
+        checkpoint.setProperty("errorsLength", Long.toString(errorsLength));
+        File tmp = new File(checkpointFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tmp);
+        try {
+            checkpoint.store(out, "batch calibration progress: users before position are in the output");
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        Files.move(tmp.toPath(), checkpointFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * calibrate a trace into a user parameter store
+     * @param args - input trace or CSV, output store, then options: --paths n (max paths), --tolerance x,
+     *             --overage x, --parallelism n, --first-date yyyy-MM-dd (CSV only)
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2){
+            System.err.println("usage: BatchCalibration <trace or csv> <output store> [--paths n] [--tolerance x] "
+                    + "[--overage x] [--parallelism n] [--first-date yyyy-MM-dd]");
+            System.exit(1);
+        }
+        BatchCalibration job = new BatchCalibration(new File(args[0]), new File(args[1]));
+        for(int i = 2; i + 1 < args.length; i += 2){
+            if(args[i].equals("--paths"))
+                job.numPaths = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("--tolerance"))
+                job.tolerance = Double.parseDouble(args[i + 1]);
+            else if(args[i].equals("--overage"))
+                job.overage = Double.parseDouble(args[i + 1]);
+            else if(args[i].equals("--parallelism"))
+                job.parallelism = Integer.parseInt(args[i + 1]);
+            else if(args[i].equals("--first-date"))
+                job.firstDate = LocalDate.parse(args[i + 1]);
+            else
+                throw new IllegalArgumentException("unknown option " + args[i]);
+        }
+        long start = System.nanoTime();
+        Summary summary = job.run();
+        System.out.println("Done in " + (System.nanoTime() - start) / 1000000 + " ms: " + summary);
+    }
+}
@@ -0,0 +1,178 @@
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+/**
+ * Server side of a RecommendAllDataPlans stream.
+ * The users of the parameter store are loaded into columns when the call starts running, then scored by batches of
+ * responses on the compute pool, each response of a batch being scored in parallel on the common pool. The next batch
+ * is only scored once the response stream is ready again, so a slow client throttles scoring instead of having
+ * responses buffered without bound. Users and catalog are those at the start of the call.
+ */
+public class BatchRecommendationStream implements Runnable {
+    public static final int DEFAULT_K = 5;
+    public static final int DEFAULT_USERS_PER_RESPONSE = 1024;
+    public static final int MAX_USERS_PER_RESPONSE = 16384;
+    // plans of all the users of a response, about 12 bytes each
+    public static final int MAX_PLANS_PER_RESPONSE = 1 << 20;
+
+    private final ServerCallStreamObserver<BatchDataPlanResponse> responseObserver;
+    private final Executor executor;
+    private final UserParamStore store;
+    private final BatchRecommender recommender;
+    private final int k;
+    private final int usersPerResponse;
+    private final int responsesPerBatch = Runtime.getRuntime().availableProcessors();
+    private UserColumns users;  // loaded by the first run
+    private int next;  // first user not sent yet
+
+    // guarded by this
+    private boolean running;  // a run is scheduled or running
+    private boolean closed;  // the stream has been completed or failed
+
+    /**
+     * @param responseObserver - response stream of the call
+     * @param executor - runs the stream, e.g. the compute pool
+     * @param store - users to recommend to
+     * @param plans - catalog snapshot
+     * @param k - data plans per user, k * usersPerResponse at most MAX_PLANS_PER_RESPONSE
+     * @param usersPerResponse - at most MAX_USERS_PER_RESPONSE
+     */
+    public BatchRecommendationStream(ServerCallStreamObserver<BatchDataPlanResponse> responseObserver, Executor executor,
+                                     UserParamStore store, DataPlanCatalog.Snapshot plans, int k, int usersPerResponse){
+        this.responseObserver = responseObserver;
+        this.executor = executor;
+        this.store = store;
+        if(k < 0 || usersPerResponse < 1 || usersPerResponse > MAX_USERS_PER_RESPONSE
+                || (long) k * usersPerResponse > MAX_PLANS_PER_RESPONSE)
+            throw new IllegalArgumentException("k and usersPerResponse out of range");
+        this.recommender = new BatchRecommender(plans);
+        this.k = k;
+        this.usersPerResponse = usersPerResponse;
+    }
+
+    /**
+     * start sending responses, and resume whenever the response stream gets ready
+     */
+    public void start(){
+        responseObserver.setOnReadyHandler(new Runnable() {
+            @Override
+            public void run() {
+                schedule();
+            }
+        });
+        schedule();
+    }
+
+    /**
+     * send batches of responses as long as the response stream is ready
+     */
+    @Override
+    public void run() {
+        try {
+            if(users == null)
+                users = UserColumns.fromStore(store);
+            while (next < users.size() && responseObserver.isReady() && !responseObserver.isCancelled()) {
+                for(BatchDataPlanResponse response : scoreBatch(next))
+                    responseObserver.onNext(response);
+                next = (int) Math.min(users.size(), next + (long) responsesPerBatch * usersPerResponse);
+            }
+        } catch (Exception e) {
+            fail(e);
+            return;
+        }
+        synchronized (this){
+            running = false;
+            if(closed || responseObserver.isCancelled())
+                return;
+            if(next == users.size()){
+                closed = true;
+                responseObserver.onCompleted();
+                return;
+            }
+        }
+        // the stream may have become ready again before running was reset
+        if(responseObserver.isReady())
+            schedule();
+    }
+
+    /**
+     * responses of the batch starting at a user, in user order
+     */
+    private List<BatchDataPlanResponse> scoreBatch(int from) throws Exception {
+        List<Callable<BatchDataPlanResponse>> tasks = new ArrayList<Callable<BatchDataPlanResponse>>();
+        for(int i = 0; i < responsesPerBatch; i++){
+            if(from + (long) i * usersPerResponse >= users.size())
+                break;
+            final int start = from + i * usersPerResponse;
+            final int end = (int) Math.min(users.size(), (long) start + usersPerResponse);
+            tasks.add(new Callable<BatchDataPlanResponse>() {
+                @Override
+                public BatchDataPlanResponse call() {
+                    return response(start, end);
+                }
+            });
+        }
+        return ParallelTasks.invokeAll(ForkJoinPool.commonPool(), tasks);
+    }
+
+    private BatchDataPlanResponse response(int from, int to){
+        int[] planIndexes = new int[(to - from) * k];
+        double[] utilities = new double[planIndexes.length];
+        recommender.recommend(users, from, to, k, planIndexes, utilities, 0);
+
+        BatchDataPlanResponse.Builder responseBuilder = BatchDataPlanResponse.newBuilder();
+        if(from == 0){
+            DataPlanCatalog.Snapshot plans = recommender.getPlans();
+            for(int i = 0; i < plans.size(); i++){
+                DataPlan dp = plans.get(i);
+                responseBuilder.addDataPlans(DataPlanMsg.newBuilder()
+                        .setDescription(dp.description)
+                        .setName(dp.name)
+                        .setQuota(dp.quota)
+                        .setOverage(dp.overage)
+                        .setPrice(dp.price).build());
+            }
+        }
+        int n = Math.min(k, recommender.getPlans().size());
+        for(int u = from; u < to; u++){
+            UserDataPlans.Builder userBuilder = UserDataPlans.newBuilder().setUserId(users.userId(u));
+            for(int i = 0; i < n; i++){
+                userBuilder.addPlanIndexes(planIndexes[(u - from) * k + i]);
+                userBuilder.addUtilities(utilities[(u - from) * k + i]);
+            }
+            responseBuilder.addUsers(userBuilder);
+        }
+        return responseBuilder.build();
+    }
+
+    private void schedule(){
+        synchronized (this){
+            if(running || closed)
+                return;
+            running = true;
+        }
+        try {
+            executor.execute(this);
+        } catch (RejectedExecutionException e) {
+            fail(Status.RESOURCE_EXHAUSTED.withDescription("compute pool is full").asException());
+        }
+    }
+
+    private void fail(Exception e){
+        synchronized (this){
+            running = false;
+            if(closed)
+                return;
+            closed = true;
+        }
+        responseObserver.onError(ComputePool.toStatus(e, Context.current()).asRuntimeException());
+    }
+}
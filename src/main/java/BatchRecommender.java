@@ -0,0 +1,229 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Top k data plans of a catalog for every user of a {@link UserColumns} store, the batch form of
+ * getRecommendedDataPlans with the same utilities and the same ranking.
+ * Users are scored by blocks of users times blocks of plans: the plan columns of a block stay in cache while every
+ * user of the user block goes through them, each user keeping its own TopK. The heavy usage of a user depends on the
+ * overage rate only, and catalogs have few distinct rates, so it is computed once per user and rate for the whole
+ * catalog instead of once per plan. Ranges of users are scored in parallel.
+ * Metrics: batch.recommended_users.
+ */
+public class BatchRecommender {
+    public static final int DEFAULT_USER_BLOCK = 256;
+    public static final int DEFAULT_PLAN_BLOCK = 1024;
+    public static final int DEFAULT_TASK_USERS = 8192;  // users scored by one parallel task
+    // above this number of distinct overage rates, heavy usages are computed per plan
+    public static final int MAX_SHARED_RATES = 64;
+
+    private final DataPlanCatalog.Snapshot plans;
+    private final double[] rates;  // distinct overage rates of the catalog, null if there are too many
+    private final int[] rateOf;  // index in rates of the overage of each plan
+    public int userBlock = DEFAULT_USER_BLOCK;
+    public int planBlock = DEFAULT_PLAN_BLOCK;
+
+    /**
+     * @param plans - catalog snapshot to recommend from
+     */
+    public BatchRecommender(DataPlanCatalog.Snapshot plans){
+        this.plans = plans;
+        double[] distinct = plans.overages.clone();
+        Arrays.sort(distinct);
+        int count = 0;
+        for(int i = 0; i < distinct.length; i++)
+            if(i == 0 || Double.compare(distinct[i], distinct[count - 1]) != 0)
+                distinct[count++] = distinct[i];
+        if(count <= MAX_SHARED_RATES){
+            rates = Arrays.copyOf(distinct, count);
+            rateOf = new int[plans.size()];
+            for(int i = 0; i < rateOf.length; i++)
+                rateOf[i] = Arrays.binarySearch(rates, plans.overages[i]);
+        }else{
+            rates = null;
+            rateOf = null;
+        }
+    }
+
+    public DataPlanCatalog.Snapshot getPlans(){
+        return plans;
+    }
+
+    /**
+     * top k plans of every user
+     */
+    public static class Result{
+        public final DataPlanCatalog.Snapshot plans;
+        public final UserColumns users;
+        public final int k;
+        public final int[] planIndexes;  // k per user, best first, -1 when the catalog has less than k plans
+        public final double[] utilities;  // utilities of the plans, NaN for missing plans
+        public final long nanos;  // time to score all users
+
+        Result(DataPlanCatalog.Snapshot plans, UserColumns users, int k, int[] planIndexes, double[] utilities, long nanos){
+            this.plans = plans;
+            this.users = users;
+            this.k = k;
+            this.planIndexes = planIndexes;
+            this.utilities = utilities;
+            this.nanos = nanos;
+        }
+
+        /**
+         * top plans of a user, best first
+         * @param user - index of the user
+         * @return
+         */
+        public DataPlan[] topDataPlans(int user){
+            int n = Math.min(k, plans.size());
+            DataPlan[] top = new DataPlan[n];
+            for(int i = 0; i < n; i++)
+                top[i] = plans.get(planIndexes[user * k + i]);
+            return top;
+        }
+
+        public double usersPerSecond(){
+            return users.size() / (nanos / 1e9);
+        }
+    }
+
+    /**
+     * top k plans of all users, scored in parallel on the common pool
+     * @param users
+     * @param k - number of plans per user
+     * @return
+     * @throws Exception
+     */
+    public Result recommend(UserColumns users, int k) throws Exception {
+        return recommend(users, k, ForkJoinPool.commonPool(), DEFAULT_TASK_USERS);
+    }
+
+    /**
+     * top k plans of all users, scored in parallel
+     * @param users
+     * @param k - number of plans per user
+     * @param pool - runs the tasks, see ParallelTasks.invokeAll
+     * @param taskUsers - number of users of one task
+     * @return
+     * @throws Exception
+     */
+    public Result recommend(final UserColumns users, final int k, ExecutorService pool, int taskUsers) throws Exception {
+        if(k < 0)
+            throw new IllegalArgumentException("k should not be negative");
+        if((long) users.size() * k > Integer.MAX_VALUE)
+            throw new IllegalArgumentException(users.size() + " users * " + k + " plans do not fit in an array, lower k");
+        long start = System.nanoTime();
+        final int n = users.size();
+        final int[] planIndexes = new int[n * k];
+        final double[] utilities = new double[n * k];
+        List<Callable<Void>> tasks = new ArrayList<Callable<Void>>();
+        for(int from = 0; from < n; from += taskUsers){
+            final int taskStart = from;
+            final int taskEnd = Math.min(n, from + taskUsers);
+            tasks.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    recommend(users, taskStart, taskEnd, k, planIndexes, utilities, taskStart * k);
+                    return null;
+                }
+            });
+        }
+        ParallelTasks.invokeAll(pool, tasks);
+        return new Result(plans, users, k, planIndexes, utilities, System.nanoTime() - start);
+    }
+
+    /**
+     * top k plans of a range of users, in the calling thread
+     * @param users
+     * @param from - first user
+     * @param to - end of the range, exclusive
+     * @param k - number of plans per user
+     * @param planIndexes - receives k plan indexes per user, best first, -1 when the catalog has less than k plans
+     * @param utilities - receives the utilities of the plans, NaN for missing plans
+     * @param offset - position of the first user in planIndexes and utilities
+     */
+    public void recommend(UserColumns users, int from, int to, int k, int[] planIndexes, double[] utilities, int offset){
+        int numPlans = plans.size();
+        double[] quotas = plans.quotas;
+        double[] overages = plans.overages;
+        double[] prices = plans.prices;
+        int numRates = rates == null ? 0 : rates.length;
+        double[] heavyUsages = new double[userBlock * numRates];
+        TopK[] tops = new TopK[userBlock];
+        for(int b = 0; b < userBlock; b++)
+            tops[b] = new TopK(Math.min(k, numPlans));
+
+        for(int blockStart = from; blockStart < to; blockStart += userBlock){
+            int blockEnd = Math.min(to, blockStart + userBlock);
+            // heavy usage of each user of the block at each overage rate
+            for(int u = blockStart; u < blockEnd; u++){
+                double exponent = -1 / users.alpha[u];
+                for(int r = 0; r < numRates; r++)
+                    heavyUsages[(u - blockStart) * numRates + r] = users.sum[u] * Math.pow(users.phi[u] + rates[r], exponent);
+                tops[u - blockStart].clear();
+            }
+
+            for(int planStart = 0; planStart < numPlans; planStart += planBlock){
+                int planEnd = Math.min(numPlans, planStart + planBlock);
+                for(int u = blockStart; u < blockEnd; u++){
+                    double alpha = users.alpha[u];
+                    double phi = users.phi[u];
+                    double sum = users.sum[u];
+                    double sumPowAlpha = users.sumPowAlpha[u];
+                    double lightUsage = users.lightUsage[u];
+                    int heavyStart = (u - blockStart) * numRates;
+                    TopK top = tops[u - blockStart];
+                    for(int p = planStart; p < planEnd; p++){
+                        double heavyUsage;
+                        if(quotas[p] > lightUsage)
+                            heavyUsage = lightUsage;  // not used by the light utility
+                        else if(rates != null)
+                            heavyUsage = heavyUsages[heavyStart + rateOf[p]];
+                        else
+                            heavyUsage = sum * Math.pow(phi + overages[p], -1 / alpha);
+                        top.offer(p, UserUtilityKernel.utility(sumPowAlpha, lightUsage, heavyUsage, phi, alpha,
+                                quotas[p], overages[p], prices[p]));
+                    }
+                }
+            }
+
+            for(int u = blockStart; u < blockEnd; u++){
+                int position = offset + (u - from) * k;
+                for(int i = tops[u - blockStart].sorted(planIndexes, utilities, position); i < k; i++){
+                    planIndexes[position + i] = -1;
+                    utilities[position + i] = Double.NaN;
+                }
+            }
+        }
+        Metrics.GLOBAL.counter("batch.recommended_users").add(to - from);
+    }
+
+    /**
+     * recommend plans to every user of a parameter store and report the throughput
+     * @param args - store, catalog csv, optional k
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2){
+            System.err.println("usage: BatchRecommender <user parameter store> <data plans csv> [k]");
+            System.exit(1);
+        }
+        UserParamStore store = UserParamStore.open(new File(args[0]));
+        UserColumns users;
+        try {
+            users = UserColumns.fromStore(store);
+        } finally {
+            store.close();
+        }
+        DataPlanCatalog.Snapshot plans = new DataPlanCatalog.Snapshot(DataPlan.readDataPlansFromCSV(args[1]));
+        int k = args.length > 2 ? Integer.parseInt(args[2]) : 5;
+        Result result = new BatchRecommender(plans).recommend(users, k);
+        System.out.println(users.size() + " users, " + plans.size() + " plans, " + result.nanos / 1000000 + " ms, "
+                + Math.round(result.usersPerSecond()) + " users/s");
+    }
+}
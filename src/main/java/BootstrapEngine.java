@@ -0,0 +1,326 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Parallel bootstrap of calibrated user parameters.
+ * Simulated paths are cut into fixed size chunks, every chunk gets its own SplittableRandom stream split from
+ * the seed and runs on the given pool, and chunk moments are merged back in chunk order. The result only
+ * depends on the seed and the chunk size, not on the pool size or on scheduling.
+ * An adaptive run ({@link StoppingRule}) simulates rounds of chunks until the relative standard error of every
+ * standard deviation falls under a tolerance, estimated from the running fourth moments, so memory does not grow
+ * with the number of paths. Chunks keep the stream order of a fixed run: an adaptive run stopping after n paths
+ * returns the result of a fixed run of n paths. A parameter with the same value on every path never reaches the
+ * tolerance, such a run stops at maxPaths and is reported as not converged.
+ * Metrics: bootstrap.run_us, bootstrap.path_us, bootstrap.paths (paths of adaptive runs), bootstrap.unconverged.
+ */
+public class BootstrapEngine {
+    public static final int NUM_PARAMS = 9; // w1 ... w7, phi, alpha (same order as the UserParams message)
+    public static final int DEFAULT_CHUNK_SIZE = 25;
+    public static final int DEFAULT_MIN_PATHS = 50;
+    public static final int DEFAULT_MAX_PATHS = 1000;
+    public static final double DEFAULT_TOLERANCE = 0.1;  // relative standard error of the standard deviations
+    // squared relative standard deviation under which a parameter is taken as constant
+    private static final double CONSTANT_RELATIVE_VARIANCE = 1e-24;
+
+    // elapsed time of each run and of each simulated path (perturbation and refit)
+    private static final Metrics.Distribution RUN_MICROS = Metrics.GLOBAL.distribution("bootstrap.run_us");
+    private static final Metrics.Distribution PATH_MICROS = Metrics.GLOBAL.distribution("bootstrap.path_us");
+    // paths simulated by each adaptive run, and runs stopped by maxPaths before reaching the tolerance
+    private static final Metrics.Distribution PATHS = Metrics.GLOBAL.distribution("bootstrap.paths");
+    private static final LongAdder UNCONVERGED = Metrics.GLOBAL.counter("bootstrap.unconverged");
+
+    private final ExecutorService pool;
+    private final int chunkSize;
+
+    /**
+     * engine running on the common fork join pool
+     */
+    public BootstrapEngine(){
+        this(ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE);
+    }
+
+    /**
+     * @param pool - ForkJoinPool or any other executor the paths are spread across
+     * @param chunkSize - number of paths simulated by one task
+     */
+    public BootstrapEngine(ExecutorService pool, int chunkSize){
+        if(chunkSize <= 0)
+            throw new IllegalArgumentException("chunkSize should be positive");
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * when an adaptive run stops
+     */
+    public static class StoppingRule{
+        public static final StoppingRule DEFAULT = new StoppingRule(DEFAULT_MIN_PATHS, DEFAULT_MAX_PATHS, DEFAULT_TOLERANCE);
+
+        public final int minPaths;
+        public final int maxPaths;
+        public final double tolerance;
+
+        /**
+         * @param minPaths - paths simulated before the first check
+         * @param maxPaths - paths after which the run stops even if the tolerance is not reached
+         * @param tolerance - max relative standard error of each standard deviation, 0 to always run maxPaths
+         */
+        public StoppingRule(int minPaths, int maxPaths, double tolerance){
+            if(minPaths < 2 || maxPaths < minPaths)
+                throw new IllegalArgumentException("paths should satisfy 2 <= minPaths <= maxPaths");
+            if(!(tolerance >= 0))
+                throw new IllegalArgumentException("tolerance should not be negative");
+            this.minPaths = minPaths;
+            this.maxPaths = maxPaths;
+            this.tolerance = tolerance;
+        }
+
+        @Override
+        public String toString(){
+            return "StoppingRule{minPaths=" + minPaths + ", maxPaths=" + maxPaths + ", tolerance=" + tolerance + "}";
+        }
+    }
+
+    /**
+     * running central moments of the parameters up to the fourth, mergeable across chunks
+     */
+    public static class Moments{
+        public long count;
+        public final double[] mean = new double[NUM_PARAMS];
+        public final double[] m2 = new double[NUM_PARAMS];  // sum of squared deviations from the mean
+        public final double[] m3 = new double[NUM_PARAMS];  // sum of cubed deviations
+        public final double[] m4 = new double[NUM_PARAMS];  // sum of fourth powers of deviations
+
+        /**
+         * add one simulated path (Welford's update, extended to m3 and m4 by Terriberry)
+         * @param x - parameters of the path
+         */
+        public void add(double[] x){
+            long n1 = count;
+            count++;
+            double n = count;
+            for(int i = 0; i < NUM_PARAMS; i++){
+                double delta = x[i] - mean[i];
+                double deltaN = delta / n;
+                double deltaN2 = deltaN * deltaN;
+                double term = delta * deltaN * n1;
+                m4[i] += term * deltaN2 * (n * n - 3 * n + 3) + 6 * deltaN2 * m2[i] - 4 * deltaN * m3[i];
+                m3[i] += term * deltaN * (n - 2) - 3 * deltaN * m2[i];
+                mean[i] += delta / count;
+                m2[i] += delta * (x[i] - mean[i]);
+            }
+        }
+
+        /**
+         * merge moments of another chunk into this one (Chan et al. pairwise update, extended by Pebay)
+         * @param other
+         */
+        public void merge(Moments other){
+            if(other.count == 0)
+                return;
+            long n = count + other.count;
+            double na = count;
+            double nb = other.count;
+            double nn = n;
+            for(int i = 0; i < NUM_PARAMS; i++){
+                double delta = other.mean[i] - mean[i];
+                double delta2 = delta * delta;
+                m4[i] += other.m4[i] + delta2 * delta2 * na * nb * (na * na - na * nb + nb * nb) / (nn * nn * nn)
+                        + 6 * delta2 * (na * na * other.m2[i] + nb * nb * m2[i]) / (nn * nn)
+                        + 4 * delta * (na * other.m3[i] - nb * m3[i]) / nn;
+                m3[i] += other.m3[i] + delta2 * delta * na * nb * (na - nb) / (nn * nn)
+                        + 3 * delta * (na * other.m2[i] - nb * m2[i]) / nn;
+                mean[i] += delta * other.count / n;
+                m2[i] += other.m2[i] + delta * delta * count * other.count / n;
+            }
+            count = n;
+        }
+
+        /**
+         * sample standard deviation of parameter i
+         */
+        public double std(int i){
+            return Math.sqrt(m2[i] / (count - 1));
+        }
+
+        /**
+         * relative standard error of the standard deviation of parameter i, from the sample kurtosis:
+         * Var(s^2) = (mu4 - s^4 (n - 3) / (n - 1)) / n and se(s) / s = sqrt(Var(s^2)) / (2 s^2)
+         * @return infinity with less than 4 paths or for a parameter constant up to rounding (standard deviation
+         * under 1e-12 of the mean): identical refits mean that the optimizer did not move, not that the standard
+         * deviation is 0
+         */
+        public double relativeStdError(int i){
+            if(count < 4)
+                return Double.POSITIVE_INFINITY;
+            double variance = m2[i] / (count - 1);
+            if(variance <= CONSTANT_RELATIVE_VARIANCE * mean[i] * mean[i])
+                return Double.POSITIVE_INFINITY;
+            double varianceOfVariance = (m4[i] / count - variance * variance * (count - 3) / (count - 1)) / count;
+            return Math.sqrt(Math.max(varianceOfVariance, 0)) / (2 * variance);
+        }
+
+        /**
+         * largest relative standard error of the standard deviations, NaN if a parameter is NaN
+         */
+        public double maxRelativeStdError(){
+            double max = 0;
+            for(int i = 0; i < NUM_PARAMS; i++){
+                double error = relativeStdError(i);
+                if(!(error <= max))
+                    max = error;
+            }
+            return max;
+        }
+    }
+
+    /**
+     * merged result of all simulated paths
+     */
+    public static class Result{
+        public final int numPaths;
+        public final double[] mean;
+        public final double[] std;
+        public final double maxRelativeStdError;  // largest relative standard error of std
+        public final boolean converged;  // false if an adaptive run hit maxPaths before the tolerance
+
+        public Result(Moments moments){
+            this(moments, true);
+        }
+
+        public Result(Moments moments, boolean converged){
+            this.numPaths = (int) moments.count;
+            this.mean = Arrays.copyOf(moments.mean, NUM_PARAMS);
+            this.std = new double[NUM_PARAMS];
+            for(int i = 0; i < NUM_PARAMS; i++)
+                std[i] = moments.std(i);
+            this.maxRelativeStdError = moments.maxRelativeStdError();
+            this.converged = converged;
+        }
+
+        public UserParamFitter.UserParamsStd toUserParamsStd(){
+            return UserParamFitter.UserParamsStd.of(std);
+        }
+    }
+
+    /**
+     * run the bootstrap with a random seed
+     */
+    public Result run(UserParamFitter fitter, int numPaths) throws Exception {
+        return run(fitter, numPaths, new SplittableRandom().nextLong());
+    }
+
+    /**
+     * simulate numPaths perturbed usage series, refit each of them and merge the parameter moments
+     * @param fitter - fitted user whose usages are perturbed
+     * @param numPaths - number of simulated paths
+     * @param seed - seed of the root random stream
+     * @return means and standard deviations of simulated parameters
+     */
+    public Result run(final UserParamFitter fitter, int numPaths, long seed) throws Exception {
+        long start = System.nanoTime();
+        Moments total = new Moments();
+        simulateRound(fitter, UserParamFitter.calcStd(fitter.usages), new SplittableRandom(seed), numPaths, total);
+        RUN_MICROS.recordMicrosSince(start);
+        return new Result(total);
+    }
+
+    /**
+     * run the adaptive bootstrap with a random seed
+     */
+    public Result run(UserParamFitter fitter, StoppingRule rule) throws Exception {
+        return run(fitter, rule, new SplittableRandom().nextLong());
+    }
+
+    /**
+     * simulate rounds of paths until every standard deviation is within the tolerance of the rule or maxPaths is
+     * reached. A round adds the paths the current relative error projects to be missing, at least one chunk and at
+     * most as many paths as already simulated, so a noisy early estimate does not overshoot.
+     * @param fitter - fitted user whose usages are perturbed
+     * @param rule - path budget and tolerance
+     * @param seed - seed of the root random stream
+     * @return means and standard deviations of simulated parameters
+     */
+    public Result run(UserParamFitter fitter, StoppingRule rule, long seed) throws Exception {
+        long start = System.nanoTime();
+        double usageStd = UserParamFitter.calcStd(fitter.usages);
+        SplittableRandom root = new SplittableRandom(seed);
+        Moments total = new Moments();
+        int paths = rule.minPaths;
+        boolean converged;
+        while (true) {
+            simulateRound(fitter, usageStd, root, Math.min(roundUp(paths), rule.maxPaths - (int) total.count), total);
+            double error = total.maxRelativeStdError();
+            converged = error <= rule.tolerance;
+            if(converged || total.count >= rule.maxPaths)
+                break;
+            double ratio = error / rule.tolerance;
+            double missing = total.count * (ratio * ratio - 1);  // infinite when the tolerance is 0, NaN for NaN params
+            paths = missing >= total.count ? (int) total.count : missing > chunkSize ? (int) missing : chunkSize;
+        }
+        if(!converged)
+            UNCONVERGED.increment();
+        PATHS.record(total.count);
+        RUN_MICROS.recordMicrosSince(start);
+        return new Result(total, converged);
+    }
+
+    /**
+     * paths rounded up to whole chunks
+     */
+    private int roundUp(int paths){
+        return (int) Math.min(Integer.MAX_VALUE, (paths + (long) chunkSize - 1) / chunkSize * chunkSize);
+    }
+
+    /**
+     * simulate numPaths more paths in chunks split from root and merge them into total in chunk order
+     */
+    private void simulateRound(final UserParamFitter fitter, final double usageStd, SplittableRandom root, int numPaths,
+                               Moments total) throws Exception {
+        List<Callable<Moments>> tasks = new ArrayList<Callable<Moments>>();
+        for(int from = 0; from < numPaths; from += chunkSize){
+            final int paths = Math.min(chunkSize, numPaths - from);
+            final SplittableRandom rand = root.split();
+            tasks.add(new Callable<Moments>() {
+                @Override
+                public Moments call() throws Exception {
+                    return simulate(fitter, usageStd, paths, rand);
+                }
+            });
+        }
+        for(Moments moments : ParallelTasks.invokeAll(pool, tasks))
+            total.merge(moments);
+    }
+
+    /**
+     * simulate one chunk of paths
+     */
+    private static Moments simulate(UserParamFitter fitter, double usageStd, int paths, SplittableRandom rand) throws Exception {
+        Moments moments = new Moments();
+        double[] x = new double[NUM_PARAMS];
+        for(int i = 0; i < paths; i++){
+            long start = System.nanoTime();
+            double[] simulatedUsages = Arrays.copyOf(fitter.usages, fitter.usages.length);
+            // add perturbations
+            for(int j = 0; j < simulatedUsages.length; j++){
+                simulatedUsages[j] += Utilities.nextGaussian(rand) * usageStd;
+                simulatedUsages[j] = Math.max(simulatedUsages[j], 0);
+            }
+
+            UserParamFitter userParamsFitter = fitter.refit(simulatedUsages);
+            for(int j = 1; j < 8; j++)
+                x[j - 1] = userParamsFitter.getDailyWeight(j);
+            x[7] = userParamsFitter.getPhi();
+            x[8] = userParamsFitter.getAlpha();
+            moments.add(x);
+            PATH_MICROS.recordMicrosSince(start);
+        }
+        return moments;
+    }
+}
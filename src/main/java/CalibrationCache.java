@@ -0,0 +1,240 @@
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.grpc.Context;
+import io.grpc.Status;
+
+import java.nio.ByteBuffer;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.Function;
+
+/**
+ * Content addressed cache of calibration results.
+ * The key is the SHA-256 of the (date, usage) pairs in request order, the overage, the user type and the uncertainty
+ * mode, so the same usage window sent again, by any user, gets the same parameters and standard deviations without a
+ * new fit and bootstrap. Entries are bounded in number (W-TinyLFU eviction) and expire after a while. Concurrent requests with the
+ * same key share one computation on the compute pool. The computation runs in its own Context, cancelled once every
+ * request waiting for it has been cancelled or is past its deadline: a cancelled request does not fail the others,
+ * and a computation nobody waits for any more is dropped when a pool thread picks it up (or stops between bootstrap
+ * chunks) like the tasks of ComputePool. A request arriving after that starts a new computation. A failed computation
+ * is not cached.
+ * Metrics: calibration_cache.requests, calibration_cache.loads (requests that started a computation).
+ */
+public class CalibrationCache {
+    public static final long DEFAULT_MAXIMUM_SIZE = 100000;
+    public static final long DEFAULT_TTL_MINUTES = 60;
+
+    private final ComputePool computePool;
+    private final AsyncCache<Key, UserParamResponse> cache;
+
+    /**
+     * cache with default size and TTL
+     * @param computePool - pool running the calibrations
+     */
+    public CalibrationCache(ComputePool computePool){
+        this(computePool, DEFAULT_MAXIMUM_SIZE, DEFAULT_TTL_MINUTES, TimeUnit.MINUTES);
+    }
+
+    /**
+     * @param computePool - pool running the calibrations
+     * @param maximumSize - maximum number of cached results
+     * @param ttl - time a result stays cached after it is computed
+     * @param unit - unit of ttl
+     */
+    public CalibrationCache(ComputePool computePool, long maximumSize, long ttl, TimeUnit unit){
+        this.computePool = computePool;
+        this.cache = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterWrite(ttl, unit)
+                .buildAsync();
+    }
+
+    /**
+     * calibrated parameters and standard deviations of the request, cached or computed
+     * @param request
+     * @return response with the userId of this request
+     */
+    public CompletableFuture<UserParamResponse> calibrate(final UserParamRequest request){
+        Metrics.GLOBAL.counter("calibration_cache.requests").increment();
+        Key key = key(request);
+        BiFunction<Key, Executor, CompletableFuture<UserParamResponse>> loader =
+                new BiFunction<Key, Executor, CompletableFuture<UserParamResponse>>() {
+                    @Override
+                    public CompletableFuture<UserParamResponse> apply(Key key, Executor executor) {
+                        Metrics.GLOBAL.counter("calibration_cache.loads").increment();
+                        return load(request);
+                    }
+                };
+        CompletableFuture<UserParamResponse> response = cache.get(key, loader);
+        while (response instanceof Load && !((Load) response).addWaiter(Context.current())){
+            // every waiter left and the computation is being cancelled, start another one
+            cache.asMap().remove(key, response);
+            response = cache.get(key, loader);
+        }
+        return response.thenApply(new Function<UserParamResponse, UserParamResponse>() {
+            @Override
+            public UserParamResponse apply(UserParamResponse cached) {
+                return cached.toBuilder().setUserId(request.getUserId()).build();
+            }
+        });
+    }
+
+    /**
+     * number of cached results, including computations in progress
+     * @return
+     */
+    public long size(){
+        return cache.synchronous().estimatedSize();
+    }
+
+    private CompletableFuture<UserParamResponse> load(final UserParamRequest request){
+        final Load load = new Load();
+        Context previous = load.context.attach();
+        CompletableFuture<UserParamResponse> computed;
+        try {
+            computed = computePool.compute(new Callable<UserParamResponse>() {
+                @Override
+                public UserParamResponse call() throws Exception {
+                    return DataPlanServer.DataPlanServiceImpl.calibrate(request).toBuilder().clearUserId().build();
+                }
+            });
+        } finally {
+            load.context.detach(previous);
+        }
+        computed.whenComplete(new BiConsumer<UserParamResponse, Throwable>() {
+            @Override
+            public void accept(UserParamResponse response, Throwable t) {
+                if(t != null)
+                    load.completeExceptionally(t instanceof CompletionException && t.getCause() != null ? t.getCause() : t);
+                else
+                    load.complete(response);
+                load.finish();
+            }
+        });
+        return load;
+    }
+
+    /**
+     * computation shared by the requests of a key, its Context is cancelled once all of them are cancelled.
+     * Requests without a cancellable Context keep it alive until it completes.
+     */
+    private static final class Load extends CompletableFuture<UserParamResponse>{
+        private static final Executor DIRECT = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                command.run();
+            }
+        };
+
+        final Context.CancellableContext context = Context.ROOT.withCancellation();
+        // Contexts of the requests waiting for the computation, guarded by this
+        private final Map<Context, Context.CancellationListener> waiters = new HashMap<Context, Context.CancellationListener>();
+        private boolean abandoned;  // guarded by this
+
+        /**
+         * count the request of a Context as waiting for the computation, requests of one stream share their Context
+         * @param caller
+         * @return false if the computation was cancelled because its previous waiters were
+         */
+        synchronized boolean addWaiter(final Context caller){
+            if(isDone())
+                return !(abandoned && isCompletedExceptionally());
+            if(abandoned)
+                return false;
+            if(waiters.containsKey(caller))
+                return true;
+            Context.CancellationListener listener = new Context.CancellationListener() {
+                @Override
+                public void cancelled(Context context) {
+                    removeWaiter(caller);
+                }
+            };
+            waiters.put(caller, listener);
+            // called right away if the caller is already cancelled, never if it cannot be cancelled
+            caller.addListener(listener, DIRECT);
+            return true;
+        }
+
+        private void removeWaiter(Context caller){
+            synchronized (this){
+                if(waiters.remove(caller) == null || !waiters.isEmpty() || isDone())
+                    return;
+                abandoned = true;
+            }
+            context.cancel(Status.CANCELLED.withDescription("every request of the calibration was cancelled").asException());
+            // fails the waiters (all cancelled) and evicts the entry, the task completing later has no effect
+            cancel(false);
+        }
+
+        /**
+         * stop listening to the waiters once the computation completed
+         */
+        synchronized void finish(){
+            for(Map.Entry<Context, Context.CancellationListener> entry : waiters.entrySet())
+                entry.getKey().removeListener(entry.getValue());
+            waiters.clear();
+            context.cancel(null);
+        }
+    }
+
+    /**
+     * content address of a calibration request, the userId is not part of it
+     * @param request
+     * @return
+     */
+    public static Key key(UserParamRequest request){
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        List<Usage> usages = request.getUsagesList();
+        ByteBuffer buffer = ByteBuffer.allocate(20 * usages.size() + 16);
+        for(Usage usage : usages){
+            buffer.putInt(usage.getYear());
+            buffer.putInt(usage.getMonth());
+            buffer.putInt(usage.getDay());
+            buffer.putDouble(usage.getUsage());
+        }
+        buffer.putDouble(request.getOverage());
+        buffer.putInt(DataPlanServer.DataPlanServiceImpl.userTypeOf(request).ordinal());
+        buffer.putInt(request.getUncertaintyModeValue());
+        digest.update(buffer.array(), 0, buffer.position());
+        return new Key(digest.digest());
+    }
+
+    /**
+     * SHA-256 digest of a request
+     */
+    public static final class Key{
+        private final byte[] digest;
+        private final int hash;
+
+        Key(byte[] digest){
+            this.digest = digest;
+            this.hash = Arrays.hashCode(digest);
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Key && Arrays.equals(digest, ((Key) o).digest);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+    }
+}
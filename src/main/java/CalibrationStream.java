@@ -0,0 +1,175 @@
+import io.grpc.Context;
+import io.grpc.Status;
+import io.grpc.stub.ServerCallStreamObserver;
+import io.grpc.stub.StreamObserver;
+
+import java.util.concurrent.CompletionException;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Server side of a CalibrateUsers stream.
+ * At most maxInFlight requests are pulled from the client at a time, and one more is pulled each time a calibration
+ * has been answered while the response stream is ready. A slow client therefore throttles the calibrations instead
+ * of having requests or responses buffered without bound. Calibrations go through the calibration cache. While the
+ * compute pool queue is full, a request stays in flight without pulling the next one and is submitted once a task
+ * leaves the queue (also when the pool rejects it in a race with other callers): a full pool slows the stream down.
+ * Only a calibration that fails is answered with an error for that user. Requests of a cancelled or expired stream
+ * are skipped before they reach the cache, and the Context of the call cancels the calibrations it still waits for.
+ * Each successful calibration is passed to a callback before it is answered (the server stores and seeds the user).
+ * Metrics: calibrate_users.deferred (calibrations held back because the compute pool was full).
+ */
+public class CalibrationStream implements StreamObserver<UserParamRequest> {
+    private static final Logger logger = Logger.getLogger(CalibrationStream.class.getName());
+
+    private final ServerCallStreamObserver<UserParamResponse> responseObserver;
+    private final CalibrationCache calibrationCache;
+    private final ComputePool computePool;
+    private final BiConsumer<UserParamRequest, UserParamResponse> onCalibrated;
+
+    // guarded by this
+    private int inFlight;  // requests received and not answered yet
+    private int deferredRequests;  // requests to pull once the response stream is ready again
+    private boolean halfClosed;  // the client has sent all its requests
+    private boolean closed;  // the stream has been completed or cancelled
+
+    /**
+     * @param responseObserver - response stream of the call
+     * @param calibrationCache - cache computing calibrations on the compute pool
+     * @param computePool - pool of the cache, notifies when rejected calibrations can be submitted again
+     * @param maxInFlight - maximum number of calibrations of this stream running or queued at a time
+     * @param onCalibrated - called with each request and its response when the calibration succeeds
+     */
+    public CalibrationStream(ServerCallStreamObserver<UserParamResponse> responseObserver, CalibrationCache calibrationCache,
+                             ComputePool computePool, int maxInFlight,
+                             BiConsumer<UserParamRequest, UserParamResponse> onCalibrated){
+        this.responseObserver = responseObserver;
+        this.calibrationCache = calibrationCache;
+        this.computePool = computePool;
+        this.onCalibrated = onCalibrated;
+        responseObserver.disableAutoInboundFlowControl();
+        responseObserver.setOnReadyHandler(new Runnable() {
+            @Override
+            public void run() {
+                requestDeferred();
+            }
+        });
+        responseObserver.request(maxInFlight);
+    }
+
+    @Override
+    public void onNext(final UserParamRequest request) {
+        synchronized (this){
+            inFlight++;
+        }
+        calibrate(request, Context.current());
+    }
+
+    /**
+     * calibrate a request of the stream in the Context of the call
+     * @param request
+     * @param context - Context of the call
+     */
+    private void calibrate(final UserParamRequest request, final Context context){
+        if(isClosed() || context.isCancelled()){
+            // cancelled or past its deadline, nobody is waiting for this calibration
+            respond(null);
+            return;
+        }
+        if(computePool.isFull()){
+            deferUntilCapacity(request, context);
+            return;
+        }
+        Context previous = context.attach();
+        try {
+            calibrationCache.calibrate(request).whenComplete(new BiConsumer<UserParamResponse, Throwable>() {
+                @Override
+                public void accept(UserParamResponse response, Throwable t) {
+                    if(t instanceof CompletionException && t.getCause() != null)
+                        t = t.getCause();
+                    if(t != null && Status.fromThrowable(t).getCode() == Status.Code.RESOURCE_EXHAUSTED){
+                        deferUntilCapacity(request, context);
+                        return;
+                    }
+                    if(t != null){
+                        response = UserParamResponse.newBuilder()
+                                .setUserId(request.getUserId())
+                                .setError(String.valueOf(t))
+                                .build();
+                    }else{
+                        try {
+                            onCalibrated.accept(request, response);
+                        } catch (RuntimeException e) {
+                            logger.log(Level.WARNING, "Calibration of user " + request.getUserId() + " not kept", e);
+                        }
+                    }
+                    respond(response);
+                }
+            });
+        } finally {
+            context.detach(previous);
+        }
+    }
+
+    /**
+     * keep a request in flight, without pulling the next one, until the compute pool has room for it
+     */
+    private void deferUntilCapacity(final UserParamRequest request, final Context context){
+        Metrics.GLOBAL.counter("calibrate_users.deferred").increment();
+        computePool.whenCapacity(new Runnable() {
+            @Override
+            public void run() {
+                calibrate(request, context);
+            }
+        });
+    }
+
+    private synchronized boolean isClosed(){
+        return closed || responseObserver.isCancelled();
+    }
+
+    @Override
+    public synchronized void onError(Throwable t) {
+        // the client cancelled the call, drop the calibrations still running
+        closed = true;
+    }
+
+    @Override
+    public synchronized void onCompleted() {
+        halfClosed = true;
+        if(inFlight == 0 && !closed){
+            closed = true;
+            responseObserver.onCompleted();
+        }
+    }
+
+    /**
+     * send the response of one calibration and pull the next request
+     * @param response - null for a calibration skipped because the stream is closed
+     */
+    private synchronized void respond(UserParamResponse response){
+        inFlight--;
+        if(response == null || closed || responseObserver.isCancelled())
+            return;
+
+        responseObserver.onNext(response);
+        if(halfClosed && inFlight == 0){
+            closed = true;
+            responseObserver.onCompleted();
+        }else if(responseObserver.isReady())
+            responseObserver.request(1);
+        else
+            deferredRequests++;
+    }
+
+    /**
+     * pull the requests deferred while the response stream was not ready
+     */
+    private synchronized void requestDeferred(){
+        if(closed || deferredRequests == 0 || !responseObserver.isReady())
+            return;
+        responseObserver.request(deferredRequests);
+        deferredRequests = 0;
+    }
+}
@@ -0,0 +1,257 @@
+import io.grpc.Context;
+import io.grpc.Contexts;
+import io.grpc.Status;
+import io.grpc.stub.StreamObserver;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.BiConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Bounded pool for CPU heavy RPCs, so that calibrations and simulations do not hold the gRPC executor that serves
+ * cheap calls.
+ * A fixed number of threads takes tasks from a bounded queue. A task submitted while the queue is full is rejected
+ * with RESOURCE_EXHAUSTED instead of piling up. Tasks run in the gRPC Context of their call: a call whose deadline
+ * expired or that the client cancelled is dropped before it starts, and ParallelTasks stops the chunks of a call once
+ * its context is cancelled. Callers that would rather wait than be rejected can register with {@link #whenCapacity},
+ * they are called back as tasks leave the queue.
+ * Metrics: compute.queue_us (time spent queued), compute.rejected, compute.dropped.
+ */
+public class ComputePool {
+    private static final Logger logger = Logger.getLogger(ComputePool.class.getName());
+    public static final int DEFAULT_QUEUE_CAPACITY_PER_THREAD = 16;
+
+    private static final Metrics.Distribution QUEUE_MICROS = Metrics.GLOBAL.distribution("compute.queue_us");
+
+    private final ThreadPoolExecutor executor;
+    // callbacks waiting for room in the queue, one is run each time a task leaves it
+    private final ConcurrentLinkedQueue<Runnable> capacityWaiters = new ConcurrentLinkedQueue<Runnable>();
+
+    /**
+     * pool with one thread per core
+     */
+    public ComputePool(){
+        this(Runtime.getRuntime().availableProcessors(),
+                DEFAULT_QUEUE_CAPACITY_PER_THREAD * Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param threads - number of compute threads
+     * @param queueCapacity - number of tasks that can wait for a thread
+     */
+    public ComputePool(int threads, int queueCapacity){
+        final AtomicInteger count = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity),
+                new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable r) {
+                        Thread thread = new Thread(r, "compute-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+    }
+
+    /**
+     * executor of the pool, tasks run in the Context they were submitted from and a full queue throws
+     * RejectedExecutionException
+     * @return
+     */
+    public Executor executor(){
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                submitted(Context.current().wrap(command));
+            }
+        };
+    }
+
+    /**
+     * compute the response of a unary call on the pool and reply asynchronously. The call fails with
+     * RESOURCE_EXHAUSTED if the queue is full, with the status of the task if it throws, and is dropped if it is
+     * cancelled or past its deadline when a thread picks it up.
+     * @param responseObserver - response observer of the call
+     * @param task - computes the response
+     */
+    public <T> void submit(final StreamObserver<T> responseObserver, final Callable<T> task){
+        final Context context = Context.current();
+        if(context.isCancelled()){
+            drop(responseObserver, context);
+            return;
+        }
+        try {
+            submitted(context.wrap(new Runnable() {
+                @Override
+                public void run() {
+                    if(context.isCancelled()){
+                        drop(responseObserver, context);
+                        return;
+                    }
+                    T response;
+                    try {
+                        response = task.call();
+                    } catch (Exception e) {
+                        responseObserver.onError(toStatus(e, context).asRuntimeException());
+                        return;
+                    }
+                    responseObserver.onNext(response);
+                    responseObserver.onCompleted();
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            responseObserver.onError(rejected().asRuntimeException());
+        }
+    }
+
+    /**
+     * run a task on the pool in the current Context
+     * @param task
+     * @return result of the task, failed with a RESOURCE_EXHAUSTED StatusException if the queue is full, UNAVAILABLE
+     * if the pool is shut down, and with the cancellation status if the Context is cancelled when a thread picks the
+     * task up
+     */
+    public <T> CompletableFuture<T> compute(final Callable<T> task){
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        final Context context = Context.current();
+        try {
+            submitted(context.wrap(new Runnable() {
+                @Override
+                public void run() {
+                    if(context.isCancelled()){
+                        Metrics.GLOBAL.counter("compute.dropped").increment();
+                        future.completeExceptionally(Contexts.statusFromCancelled(context).asException());
+                        return;
+                    }
+                    try {
+                        future.complete(task.call());
+                    } catch (Exception e) {
+                        future.completeExceptionally(e);
+                    }
+                }
+            }));
+        } catch (RejectedExecutionException e) {
+            future.completeExceptionally(rejected().asException());
+        }
+        return future;
+    }
+
+    /**
+     * @return true if a task submitted now would be rejected with RESOURCE_EXHAUSTED, other callers may fill or
+     * empty the queue meanwhile
+     */
+    public boolean isFull(){
+        return !executor.isShutdown() && executor.getQueue().remainingCapacity() == 0;
+    }
+
+    /**
+     * call back once a task leaves the queue, or right away if the queue has room or the pool is shut down (tasks
+     * submitted then fail with UNAVAILABLE). The callback runs on the thread that noticed the room (a pool thread or
+     * the caller) and should only submit work.
+     * @param callback
+     */
+    public void whenCapacity(Runnable callback){
+        capacityWaiters.offer(callback);
+        if(!isFull())
+            runCapacityWaiter();
+    }
+
+    /**
+     * reply to a unary call once the response is computed, failures are mapped to a status like in
+     * {@link #submit(StreamObserver, Callable)}
+     * @param responseObserver - response observer of the call
+     * @param response
+     */
+    public static <T> void reply(final StreamObserver<T> responseObserver, CompletableFuture<T> response){
+        final Context context = Context.current();
+        response.whenComplete(new BiConsumer<T, Throwable>() {
+            @Override
+            public void accept(T result, Throwable t) {
+                if(t != null){
+                    if(t instanceof CompletionException && t.getCause() != null)
+                        t = t.getCause();
+                    responseObserver.onError(toStatus(t, context).asRuntimeException());
+                    return;
+                }
+                responseObserver.onNext(result);
+                responseObserver.onCompleted();
+            }
+        });
+    }
+
+    /**
+     * stop taking tasks, queued and running tasks still complete, callbacks waiting for capacity are run
+     */
+    public void shutdown(){
+        executor.shutdown();
+        while (!capacityWaiters.isEmpty())
+            runCapacityWaiter();
+    }
+
+    private void submitted(final Runnable task){
+        final long queuedAt = System.nanoTime();
+        try {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    QUEUE_MICROS.recordMicrosSince(queuedAt);
+                    runCapacityWaiter();
+                    task.run();
+                }
+            });
+        } catch (RejectedExecutionException e) {
+            Metrics.GLOBAL.counter("compute.rejected").increment();
+            throw e;
+        }
+    }
+
+    private void runCapacityWaiter(){
+        Runnable callback = capacityWaiters.poll();
+        if(callback == null)
+            return;
+        try {
+            callback.run();
+        } catch (RuntimeException e) {
+            logger.log(Level.WARNING, "Capacity callback failed", e);
+        }
+    }
+
+    /**
+     * status of a task the executor did not take
+     */
+    private Status rejected(){
+        if(executor.isShutdown())
+            return Status.UNAVAILABLE.withDescription("compute pool is shut down");
+        return Status.RESOURCE_EXHAUSTED.withDescription("compute pool is full");
+    }
+
+    private static void drop(StreamObserver<?> responseObserver, Context context){
+        Metrics.GLOBAL.counter("compute.dropped").increment();
+        responseObserver.onError(Contexts.statusFromCancelled(context).asRuntimeException());
+    }
+
+    /**
+     * status of a failed task: the cancellation status if its call was cancelled meanwhile, the status carried by
+     * the exception if any, INTERNAL otherwise
+     */
+    static Status toStatus(Throwable e, Context context){
+        if(context.isCancelled())
+            return Contexts.statusFromCancelled(context);
+        Status status = Status.fromThrowable(e);
+        if(status.getCode() != Status.Code.UNKNOWN)
+            return status;
+        logger.log(Level.WARNING, "Compute task failed", e);
+        return Status.INTERNAL.withDescription(e.toString()).withCause(e);
+    }
+}
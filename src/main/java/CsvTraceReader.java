@@ -0,0 +1,324 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Streaming reader of trace CSVs shaped like daily.csv: a userId then one usage per day on each row.
+ * Rows are read one at a time from a channel through a fixed buffer and usages are parsed straight from its bytes,
+ * so memory does not depend on the file size and there is no String per cell. Unquoted and double quoted cells are
+ * supported, quotes inside cells are not.
+ * {@link #process} feeds the rows to parallel workers through a bounded pool of rows: the reader waits when all rows
+ * are being processed, so a slow calibration slows down reading instead of filling the heap.
+ */
+public class CsvTraceReader implements Closeable {
+    public static final int DEFAULT_BUFFER_BYTES = 1 << 16;
+    public static final int MAX_ROW_BYTES = 1 << 24;
+
+    // exact powers of ten of the fast path
+    private static final double[] POWERS_OF_TEN = new double[23];
+    static {
+        POWERS_OF_TEN[0] = 1;
+        for(int i = 1; i < POWERS_OF_TEN.length; i++)
+            POWERS_OF_TEN[i] = POWERS_OF_TEN[i - 1] * 10;
+    }
+
+    private final ReadableByteChannel channel;
+    private ByteBuffer buffer;
+    private int rowStart;  // start of the unread bytes in the buffer
+    private boolean endOfInput;
+    private long rowNumber;
+
+    /**
+     * one row, the arrays are reused from one row to the next
+     */
+    public static class Row{
+        public String userId;
+        public double[] usages = new double[64];
+        public int length;  // number of usages
+        public long rowNumber;  // 1 based row number in the file
+    }
+
+    /**
+     * processes a row, the row is reused once it returns
+     */
+    public interface RowHandler{
+        void handle(Row row) throws Exception;
+    }
+
+    /**
+     * @param channel - CSV bytes
+     * @param bufferBytes - initial buffer size, the buffer grows for longer rows up to MAX_ROW_BYTES
+     */
+    public CsvTraceReader(ReadableByteChannel channel, int bufferBytes){
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(bufferBytes);
+        buffer.flip();
+    }
+
+    /**
+     * @param file - CSV file
+     * @throws IOException
+     */
+    public CsvTraceReader(File file) throws IOException {
+        this(new FileInputStream(file).getChannel(), DEFAULT_BUFFER_BYTES);
+    }
+
+    /**
+     * read the next row
+     * @param row - filled with the row
+     * @return false at the end of the file
+     * @throws IOException - also NumberFormatException for a cell that is not a number
+     */
+    public boolean next(Row row) throws IOException {
+        while (true) {
+            int rowEnd = findLineEnd();
+            if(rowEnd < 0)
+                return false;
+            int lineEnd = rowEnd;
+            byte[] bytes = buffer.array();
+            if(lineEnd > rowStart && bytes[lineEnd - 1] == '\r')
+                lineEnd--;
+            int start = rowStart;
+            rowStart = Math.min(rowEnd + 1, buffer.limit());
+            rowNumber++;
+            if(lineEnd > start && parseRow(bytes, start, lineEnd, row))
+                return true;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * index of the end of the next row in the buffer, reading more bytes if needed
+     * @return index of the '\n' or end of the last row without one, -1 at the end of the file
+     */
+    private int findLineEnd() throws IOException {
+        int scanned = rowStart;
+        while (true) {
+            byte[] bytes = buffer.array();
+            for(int i = scanned; i < buffer.limit(); i++)
+                if(bytes[i] == '\n')
+                    return i;
+            if(endOfInput)
+                return rowStart < buffer.limit() ? buffer.limit() : -1;
+            scanned = buffer.limit() - rowStart;
+            fill();
+        }
+    }
+
+    /**
+     * move the unread bytes to the start of the buffer, grow it if they fill it, and read from the channel
+     */
+    private void fill() throws IOException {
+        int unread = buffer.limit() - rowStart;
+        if(unread == buffer.capacity()){
+            if(buffer.capacity() >= MAX_ROW_BYTES)
+                throw new IOException("row " + (rowNumber + 1) + " is longer than " + MAX_ROW_BYTES + " bytes");
+            ByteBuffer grown = ByteBuffer.allocate(Math.min(2 * buffer.capacity(), MAX_ROW_BYTES));
+            grown.put(buffer.array(), rowStart, unread);
+            buffer = grown;
+        }else{
+            System.arraycopy(buffer.array(), rowStart, buffer.array(), 0, unread);
+            buffer.clear();
+            buffer.position(unread);
+        }
+        rowStart = 0;
+        while (buffer.hasRemaining()) {
+            int n = channel.read(buffer);
+            if(n < 0){
+                endOfInput = true;
+                break;
+            }
+            if(n == 0)
+                break;
+        }
+        buffer.flip();
+    }
+
+    /**
+     * @return false for a row without userId
+     */
+    private boolean parseRow(byte[] bytes, int start, int end, Row row){
+        int cellEnd = cellEnd(bytes, start, end);
+        int idStart = start;
+        int idEnd = cellEnd;
+        if(idEnd - idStart >= 2 && bytes[idStart] == '"' && bytes[idEnd - 1] == '"'){
+            idStart++;
+            idEnd--;
+        }
+        if(idEnd == idStart)
+            return false;
+        row.userId = new String(bytes, idStart, idEnd - idStart, StandardCharsets.UTF_8);
+        row.rowNumber = rowNumber;
+        row.length = 0;
+        int cellStart = cellEnd + 1;
+        while (cellStart <= end && cellEnd < end) {
+            cellEnd = cellEnd(bytes, cellStart, end);
+            if(row.length == row.usages.length)
+                row.usages = Arrays.copyOf(row.usages, 2 * row.usages.length);
+            row.usages[row.length++] = parseDouble(bytes, cellStart, cellEnd);
+            cellStart = cellEnd + 1;
+        }
+        return true;
+    }
+
+    private static int cellEnd(byte[] bytes, int start, int end){
+        for(int i = start; i < end; i++)
+            if(bytes[i] == ',')
+                return i;
+        return end;
+    }
+
+    /**
+     * parse a decimal number from ASCII bytes. Numbers with at most 18 significant digits, a mantissa below 2^53 and
+     * an exponent of at most 22 are computed exactly with one multiplication or division, like Double.parseDouble;
+     * other numbers go through Double.parseDouble
+     * @param bytes
+     * @param start - first byte of the cell
+     * @param end - end of the cell, exclusive
+     * @return
+     * @throws NumberFormatException
+     */
+    static double parseDouble(byte[] bytes, int start, int end){
+        while (start < end && (bytes[start] == ' ' || bytes[start] == '"'))
+            start++;
+        while (end > start && (bytes[end - 1] == ' ' || bytes[end - 1] == '"'))
+            end--;
+        int i = start;
+        boolean negative = false;
+        if(i < end && (bytes[i] == '-' || bytes[i] == '+')){
+            negative = bytes[i] == '-';
+            i++;
+        }
+        long mantissa = 0;
+        int digits = 0;
+        int exponent = 0;
+        boolean anyDigit = false;
+        boolean fast = true;
+        for(; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++){
+            anyDigit = true;
+            if(digits < 18){
+                mantissa = 10 * mantissa + (bytes[i] - '0');
+                if(mantissa != 0)
+                    digits++;
+            }else{
+                fast = false;
+            }
+        }
+        if(i < end && bytes[i] == '.'){
+            for(i++; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++){
+                anyDigit = true;
+                if(digits < 18){
+                    mantissa = 10 * mantissa + (bytes[i] - '0');
+                    if(mantissa != 0)
+                        digits++;
+                    exponent--;
+                }else{
+                    fast = false;
+                }
+            }
+        }
+        if(anyDigit && i < end && (bytes[i] == 'e' || bytes[i] == 'E')){
+            i++;
+            boolean negativeExponent = false;
+            if(i < end && (bytes[i] == '-' || bytes[i] == '+')){
+                negativeExponent = bytes[i] == '-';
+                i++;
+            }
+            int e = 0;
+            boolean anyExponentDigit = false;
+            for(; i < end && bytes[i] >= '0' && bytes[i] <= '9'; i++){
+                anyExponentDigit = true;
+                if(e < 10000)
+                    e = 10 * e + (bytes[i] - '0');
+            }
+            if(!anyExponentDigit)
+                fast = false;
+            exponent += negativeExponent ? -e : e;
+        }
+        if(fast && anyDigit && i == end && mantissa < (1L << 53) && Math.abs(exponent) < POWERS_OF_TEN.length){
+            double value = exponent >= 0 ? mantissa * POWERS_OF_TEN[exponent] : mantissa / POWERS_OF_TEN[-exponent];
+            return negative ? -value : value;
+        }
+        // more digits, large exponents, NaN, Infinity or malformed numbers
+        return Double.parseDouble(new String(bytes, start, end - start, StandardCharsets.US_ASCII));
+    }
+
+    /**
+     * read a CSV and process its rows on an executor with at most maxInFlight rows read and not yet processed
+     * @param file - CSV file
+     * @param executor - runs the handler, e.g. a ForkJoinPool
+     * @param maxInFlight - number of pooled rows
+     * @param handler - processes a row, called concurrently
+     * @return number of rows processed
+     * @throws IOException if the file cannot be read
+     * @throws ExecutionException if the handler failed, the rows after the failure are not read
+     * @throws InterruptedException
+     */
+    public static long process(File file, Executor executor, int maxInFlight, final RowHandler handler)
+            throws IOException, ExecutionException, InterruptedException {
+        final BlockingQueue<Row> free = new ArrayBlockingQueue<Row>(maxInFlight);
+        for(int i = 0; i < maxInFlight; i++)
+            free.add(new Row());
+        final AtomicReference<Throwable> failure = new AtomicReference<Throwable>();
+        long count = 0;
+        CsvTraceReader reader = new CsvTraceReader(file);
+        try {
+            while (failure.get() == null) {
+                // waits for a row to be processed when all are in flight
+                final Row row = free.take();
+                boolean read;
+                try {
+                    read = reader.next(row);
+                } catch (IOException | RuntimeException e) {
+                    free.add(row);
+                    throw e;
+                }
+                if(!read){
+                    free.add(row);
+                    break;
+                }
+                try {
+                    executor.execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            try {
+                                handler.handle(row);
+                            } catch (Throwable t) {
+                                failure.compareAndSet(null, t);
+                            } finally {
+                                free.add(row);
+                            }
+                        }
+                    });
+                } catch (RejectedExecutionException e) {
+                    free.add(row);
+                    throw e;
+                }
+                count++;
+            }
+        } finally {
+            reader.close();
+            // wait for the rows in flight
+            for(int i = 0; i < maxInFlight; i++)
+                free.take();
+        }
+        if(failure.get() != null)
+            throw new ExecutionException(failure.get());
+        return count;
+    }
+}
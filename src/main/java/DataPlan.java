@@ -44,27 +44,46 @@ public class DataPlan {
      * @return
      */
     public static DataPlan[] getDataPlansFromCSV(String fname){
-        CSVReader reader = null;
         try {
-            reader = new CSVReader(new FileReader(fname), ',');
+            return readDataPlansFromCSV(fname);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        return null;
+    }
+
+    /**
+     * read csv file and return an array of data plans
+     * @param fname - csv filename
+     * @return
+     * @throws IOException - if the file cannot be read or a row is malformed
+     */
+    public static DataPlan[] readDataPlansFromCSV(String fname) throws IOException {
+        CSVReader reader = new CSVReader(new FileReader(fname), ',');
+        try {
             List<String[]> rows = reader.readAll();
-            DataPlan[] dps = new DataPlan[rows.size() - 1];
+            DataPlan[] dps = new DataPlan[Math.max(rows.size() - 1, 0)];
             for(int i = 1; i < rows.size(); i++){
-                String name = rows.get(i)[0];
-                String description = rows.get(i)[1];
+                String[] row = rows.get(i);
+                if(row.length < 5)
+                    throw new IOException("Malformed data plan at line " + (i + 1) + " of " + fname);
+                String name = row[0];
+                String description = row[1];
                 double quota = Double.MAX_VALUE;
-                if(!rows.get(i)[2].equals("unlimited"))
-                    quota = Double.parseDouble(rows.get(i)[2]);
-                double overage = Double.parseDouble(rows.get(i)[3]);
-                double price = Double.parseDouble(rows.get(i)[4]);
-                DataPlan dp = new DataPlan(name, description, quota, overage, price);
-                dps[i - 1] = dp;
+                try {
+                    if(!row[2].equals("unlimited"))
+                        quota = Double.parseDouble(row[2]);
+                    double overage = Double.parseDouble(row[3]);
+                    double price = Double.parseDouble(row[4]);
+                    dps[i - 1] = new DataPlan(name, description, quota, overage, price);
+                } catch (NumberFormatException e) {
+                    throw new IOException("Malformed data plan at line " + (i + 1) + " of " + fname, e);
+                }
             }
             return dps;
-        } catch (IOException e) {
-            e.printStackTrace();
+        } finally {
+            reader.close();
         }
-        return null;
     }
 
 }
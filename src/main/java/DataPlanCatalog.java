@@ -0,0 +1,156 @@
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * In-memory catalog of available data plans.
+ * The csv file is parsed once into an immutable snapshot, and parsed again into a new snapshot when a file watcher
+ * sees it change. Requests read the current snapshot through a volatile field, without locking and without touching
+ * disk. A file that fails to parse or has no data plans leaves the previous snapshot in place.
+ */
+public class DataPlanCatalog {
+    private static final Logger logger = Logger.getLogger(DataPlanCatalog.class.getName());
+    private static final long QUIET_PERIOD_MILLIS = 200;
+
+    /**
+     * immutable view of the catalog, plan attributes are also laid out in primitive arrays
+     */
+    public static class Snapshot{
+        private final DataPlan[] plans;
+        public final double[] quotas;
+        public final double[] overages;
+        public final double[] prices;
+        public final long loadedAt; // epoch millis
+
+        public Snapshot(DataPlan[] plans){
+            this.plans = plans.clone();
+            this.quotas = new double[plans.length];
+            this.overages = new double[plans.length];
+            this.prices = new double[plans.length];
+            for(int i = 0; i < plans.length; i++){
+                quotas[i] = plans[i].quota;
+                overages[i] = plans[i].overage;
+                prices[i] = plans[i].price;
+            }
+            this.loadedAt = System.currentTimeMillis();
+        }
+
+        public int size(){
+            return plans.length;
+        }
+
+        public DataPlan get(int i){
+            return plans[i];
+        }
+
+        /**
+         * data plans of the snapshot, the array and the plans are shared and must not be modified
+         * @return
+         */
+        public DataPlan[] getDataPlans(){
+            return plans;
+        }
+    }
+
+    private final Path path;
+    private volatile Snapshot snapshot;
+    private WatchService watchService;
+
+    /**
+     * load catalog from csv file
+     * @param fname - csv filename
+     * @throws IOException - if the initial load fails
+     */
+    public DataPlanCatalog(String fname) throws IOException {
+        this.path = Paths.get(fname).toAbsolutePath();
+        reload();
+    }
+
+    /**
+     * @return current snapshot
+     */
+    public Snapshot getSnapshot(){
+        return snapshot;
+    }
+
+    /**
+     * parse the csv file and swap in the new snapshot
+     * @throws IOException
+     */
+    public synchronized void reload() throws IOException {
+        DataPlan[] plans = DataPlan.readDataPlansFromCSV(path.toString());
+        if(plans.length == 0)
+            throw new IOException("No data plans in " + path);
+        snapshot = new Snapshot(plans);
+        logger.info("Loaded " + snapshot.size() + " data plans from " + path);
+    }
+
+    /**
+     * start a daemon thread reloading the catalog whenever the csv file is created or modified
+     * @throws IOException
+     */
+    public synchronized void startWatching() throws IOException {
+        if(watchService != null)
+            return;
+        final WatchService watcher = FileSystems.getDefault().newWatchService();
+        path.getParent().register(watcher, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        watchService = watcher;
+
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                watch(watcher);
+            }
+        }, "data-plan-catalog-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * stop watching the csv file
+     * @throws IOException
+     */
+    public synchronized void close() throws IOException {
+        if(watchService != null)
+            watchService.close();
+        watchService = null;
+    }
+
+    private void watch(WatchService watcher){
+        try {
+            while (true) {
+                WatchKey key = watcher.take();
+                boolean changed = false;
+                // a rewrite usually fires several events, wait until the file has been quiet for a while
+                while (key != null) {
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW || path.getFileName().equals(event.context()))
+                            changed = true;
+                    }
+                    key.reset();
+                    key = watcher.poll(QUIET_PERIOD_MILLIS, TimeUnit.MILLISECONDS);
+                }
+                if (!changed)
+                    continue;
+                try {
+                    reload();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Failed to reload " + path + ", keeping previous data plans", e);
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+}
@@ -16,8 +16,13 @@
 
 import io.grpc.ManagedChannel;
 import io.grpc.ManagedChannelBuilder;
+import io.grpc.Status;
+import io.grpc.stub.ClientCallStreamObserver;
+import io.grpc.stub.ClientResponseObserver;
+import io.grpc.stub.StreamObserver;
 
 import java.util.*;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
 
@@ -28,6 +33,7 @@ public class DataPlanClient {
     private static final Logger logger = Logger.getLogger(DataPlanClient.class.getName());
     private final ManagedChannel channel;
     private final DataPlanServiceGrpc.DataPlanServiceBlockingStub blockingStub;
+    private final DataPlanServiceGrpc.DataPlanServiceStub asyncStub;
 
     /**
      * Construct client connecting to Data Plan server at host:port
@@ -46,6 +52,7 @@ public class DataPlanClient {
     DataPlanClient(ManagedChannel channel) {
         this.channel = channel;
         blockingStub = DataPlanServiceGrpc.newBlockingStub(channel);
+        asyncStub = DataPlanServiceGrpc.newStub(channel);
     }
 
     public void shutdown() throws InterruptedException {
@@ -87,15 +94,124 @@ public class DataPlanClient {
      * @return - calibrated user parameter
      */
     public UserParamResponse getUserParams(Date[] dates, double[] usages, double overage) {
+        return this.blockingStub.getUserParam(buildUserParamRequest(dates, usages, overage).build());
+    }
+
+    /**
+     * get calibrated user parameters from server, with standard deviations computed in the given mode
+     * @param dates
+     * @param usages
+     * @param overage - overage charge
+     * @param mode - bootstrap, analytic or analytic unless ill-conditioned
+     * @return - calibrated user parameter
+     */
+    public UserParamResponse getUserParams(Date[] dates, double[] usages, double overage, UncertaintyMode mode) {
+        return this.blockingStub.getUserParam(buildUserParamRequest(dates, usages, overage).setUncertaintyMode(mode).build());
+    }
+
+    /**
+     * update the parameters of a user calibrated with its userId with the usage of one new day
+     * @param userId
+     * @param usage - usage of a day after the last one sent for the user
+     * @return - updated user parameter
+     */
+    public UserParamResponse updateUserParams(String userId, Usage usage) {
+        return this.blockingStub.updateUserParam(UsageUpdateRequest.newBuilder().setUserId(userId).setUsage(usage).build());
+    }
 
+    /**
+     * build a calibration request, usages are dated by calendar date (full year, month 1 to 12, day of month) in the
+     * default time zone
+     * @param dates
+     * @param usages
+     * @param overage - overage charge
+     * @return request builder
+     */
+    public static UserParamRequest.Builder buildUserParamRequest(Date[] dates, double[] usages, double overage) {
         UserParamRequest.Builder builder = UserParamRequest.newBuilder();
+        Calendar calendar = Calendar.getInstance();
         for (int i = 0; i < dates.length; i++) {
-            Date date = dates[i];
-            Usage usage = Usage.newBuilder().setUsage(usages[i]).setDay(date.getDay()).setMonth(date.getMonth()).setYear(date.getYear()).build();
+            calendar.setTime(dates[i]);
+            Usage usage = Usage.newBuilder().setUsage(usages[i]).setDay(calendar.get(Calendar.DAY_OF_MONTH))
+                    .setMonth(calendar.get(Calendar.MONTH) + 1).setYear(calendar.get(Calendar.YEAR)).build();
             builder.addUsages(usage);
         }
         builder.setOverage(overage);
-        return this.blockingStub.getUserParam(builder.build());
+        return builder;
+    }
+
+    /**
+     * calibrate users over one stream, requests are sent whenever the server is ready to receive them
+     * @param requests - one request per user, with userId set
+     * @param responseObserver - receives one response per user in completion order
+     */
+    public void calibrateUsers(final Iterator<UserParamRequest> requests, final StreamObserver<UserParamResponse> responseObserver) {
+        asyncStub.calibrateUsers(new ClientResponseObserver<UserParamRequest, UserParamResponse>() {
+            @Override
+            public void beforeStart(final ClientCallStreamObserver<UserParamRequest> requestStream) {
+                requestStream.setOnReadyHandler(new Runnable() {
+                    boolean completed = false;
+
+                    @Override
+                    public void run() {
+                        while (requestStream.isReady() && requests.hasNext())
+                            requestStream.onNext(requests.next());
+                        if (!requests.hasNext() && !completed) {
+                            completed = true;
+                            requestStream.onCompleted();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onNext(UserParamResponse response) {
+                responseObserver.onNext(response);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                responseObserver.onError(t);
+            }
+
+            @Override
+            public void onCompleted() {
+                responseObserver.onCompleted();
+            }
+        });
+    }
+
+    /**
+     * calibrate users over one stream and wait for all responses
+     * @param requests - one request per user, with userId set
+     * @return responses in completion order
+     * @throws InterruptedException
+     */
+    public List<UserParamResponse> calibrateUsers(List<UserParamRequest> requests) throws InterruptedException {
+        final List<UserParamResponse> responses = Collections.synchronizedList(new ArrayList<UserParamResponse>());
+        final CountDownLatch finished = new CountDownLatch(1);
+        final Throwable[] error = new Throwable[1];
+        calibrateUsers(requests.iterator(), new StreamObserver<UserParamResponse>() {
+            @Override
+            public void onNext(UserParamResponse response) {
+                responses.add(response);
+            }
+
+            @Override
+            public void onError(Throwable t) {
+                error[0] = t;
+                finished.countDown();
+            }
+
+            @Override
+            public void onCompleted() {
+                finished.countDown();
+            }
+        });
+        finished.await();
+        if (error[0] != null)
+            throw Status.fromThrowable(error[0]).asRuntimeException();
+        return responses;
     }
 
     /**
@@ -134,6 +250,26 @@ public class DataPlanClient {
         return response.getDataPlansList();
     }
 
+    /**
+     * get recommended data plan of a user whose parameters are stored on the server
+     * @param userId
+     * @return a list of data plans
+     */
+    public List<DataPlanMsg> getRecommendDataPlans(String userId){
+        DataPlanRequest request = DataPlanRequest.newBuilder().setUserId(userId).build();
+        DataPlanResponse response = this.blockingStub.getRecommendedDataPlans(request);
+        return response.getDataPlansList();
+    }
+
+    /**
+     * get recommended data plans of every user whose parameters are stored on the server
+     * @param k - data plans per user
+     * @return responses by batches of users, the first one has the catalog the plan indexes refer to
+     */
+    public Iterator<BatchDataPlanResponse> recommendAllDataPlans(int k){
+        return this.blockingStub.recommendAllDataPlans(BatchDataPlanRequest.newBuilder().setK(k).build());
+    }
+
     /**
      * get detailed utilities of data plans
      * @param userParams
@@ -159,6 +295,14 @@ public class DataPlanClient {
         return modifiableList;
     }
 
+    /**
+     * get server metrics
+     * @return RPC latencies, solver and bootstrap metrics
+     */
+    public MetricsResponse getMetrics(){
+        return this.blockingStub.getMetrics(MetricsRequest.getDefaultInstance());
+    }
+
     /**
      * Hello word for testing
      */
@@ -218,6 +362,9 @@ public class DataPlanClient {
         for(DataPlanMsg2 dp : dataPlanMsgs2){
             System.out.println(dp);
         }
+
+        System.out.println("Server metrics");
+        System.out.println(client.getMetrics());
         client.shutdown();
     }
 }
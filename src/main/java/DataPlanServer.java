@@ -1,16 +1,29 @@
-import com.opencsv.CSVWriter;
+import io.grpc.Context;
+import io.grpc.Contexts;
 import io.grpc.Server;
 import io.grpc.ServerBuilder;
+import io.grpc.ServerInterceptors;
+import io.grpc.Status;
+import io.grpc.StatusException;
+import io.grpc.stub.ServerCallStreamObserver;
 import io.grpc.stub.StreamObserver;
+import org.HdrHistogram.Histogram;
 
-import java.io.FileWriter;
+import java.io.File;
 import java.io.IOException;
-import java.text.DateFormat;
-import java.text.SimpleDateFormat;
+import java.nio.file.Paths;
+import java.time.DateTimeException;
+import java.time.LocalDate;
 import java.util.Arrays;
-import java.util.Date;
 import java.util.List;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
+import java.util.logging.Level;
 import java.util.logging.Logger;
 
 /**
@@ -20,12 +33,24 @@ public class DataPlanServer {
     private static final Logger logger = Logger.getLogger(DataPlanServer.class.getName());
 
     private Server server;
+    private DataPlanCatalog catalog;
+    private ComputePool computePool;
+    private UserParamStore userParamStore;
+    private UsageExportSink usageExportSink;
 
     private void start() throws IOException {
     /* The port on which the server should run */
         int port = 50051;
+        catalog = new DataPlanCatalog("Data Plans.csv");
+        catalog.startWatching();
+        computePool = new ComputePool();
+        userParamStore = UserParamStore.open(new File("user_params.dat"));
+        logger.info("User parameter store opened with " + userParamStore.size() + " users");
+        usageExportSink = new UsageExportSink(Paths.get("visualizer/static/usages"), Paths.get("visualizer/static/data.csv"));
+        DataPlanServiceImpl service = new DataPlanServiceImpl(catalog, computePool, new CalibrationCache(computePool),
+                userParamStore, usageExportSink);
         server = ServerBuilder.forPort(port)
-                .addService(new DataPlanServiceImpl())
+                .addService(ServerInterceptors.intercept(service, new MetricsInterceptor(Metrics.GLOBAL)))
                 .build()
                 .start();
         logger.info("Server started, listening on " + port);
@@ -44,6 +69,30 @@ public class DataPlanServer {
         if (server != null) {
             server.shutdown();
         }
+        if (computePool != null) {
+            computePool.shutdown();
+        }
+        if (usageExportSink != null) {
+            try {
+                usageExportSink.close(1, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (userParamStore != null) {
+            try {
+                userParamStore.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+        if (catalog != null) {
+            try {
+                catalog.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
     }
 
     /**
@@ -59,6 +108,7 @@ public class DataPlanServer {
      * Main launches the server from the command line.
      */
     public static void main(String[] args) throws IOException, InterruptedException {
+        AsyncLogHandler.install(Logger.getLogger(""));
         final DataPlanServer server = new DataPlanServer();
         server.start();
         server.blockUntilShutdown();
@@ -110,6 +160,56 @@ public class DataPlanServer {
         return user;
     }
 
+    /**
+     * user parameters as an array: w1 ... w7, phi, alpha
+     * @param userParams
+     * @return
+     */
+    public static double[] toArray(UserParams userParams){
+        return new double[]{
+                userParams.getW1(), userParams.getW2(), userParams.getW3(), userParams.getW4(),
+                userParams.getW5(), userParams.getW6(), userParams.getW7(),
+                userParams.getPhi(), userParams.getAlpha()};
+    }
+
+    /**
+     * standard deviations of user parameters as an array: w1 ... w7, phi, alpha
+     * @param userParamsStd
+     * @return
+     */
+    public static double[] toArray(UserParamsStd userParamsStd){
+        return new double[]{
+                userParamsStd.getW1(), userParamsStd.getW2(), userParamsStd.getW3(), userParamsStd.getW4(),
+                userParamsStd.getW5(), userParamsStd.getW6(), userParamsStd.getW7(),
+                userParamsStd.getPhi(), userParamsStd.getAlpha()};
+    }
+
+    /**
+     * user parameters from an array: w1 ... w7, phi, alpha
+     * @param params
+     * @return
+     */
+    public static UserParams toUserParams(double[] params){
+        return UserParams.newBuilder()
+                .setW1(params[0]).setW2(params[1]).setW3(params[2]).setW4(params[3])
+                .setW5(params[4]).setW6(params[5]).setW7(params[6])
+                .setPhi(params[7]).setAlpha(params[8])
+                .build();
+    }
+
+    /**
+     * standard deviations of user parameters from an array: w1 ... w7, phi, alpha
+     * @param stds
+     * @return
+     */
+    public static UserParamsStd toUserParamsStd(double[] stds){
+        return UserParamsStd.newBuilder()
+                .setW1(stds[0]).setW2(stds[1]).setW3(stds[2]).setW4(stds[3])
+                .setW5(stds[4]).setW6(stds[5]).setW7(stds[6])
+                .setPhi(stds[7]).setAlpha(stds[8])
+                .build();
+    }
+
     /**
      * generate a random normal simulated user using given user parameters and standard deviation
      * @param userParams
@@ -161,64 +261,247 @@ public class DataPlanServer {
      * Implementation of GetUserParams API
      */
     static class DataPlanServiceImpl extends DataPlanServiceGrpc.DataPlanServiceImplBase {
+        static final int BAND_PATHS = 1024;
+        static final long BAND_SEED = 0;
+        // sampled request and response logs, see RpcLog
+        private static final RpcLog USER_PARAM_LOG = RpcLog.of("GetUserParam");
+        private static final RpcLog DATA_PLANS_LOG = RpcLog.of("GetRecommendedDataPlans");
+        private static final RpcLog USAGES_LOG = RpcLog.of("GetRecommendUsages");
+        private static final RpcLog UTILITY_LOG = RpcLog.of("GetUtility");
+        private static final RpcLog HELLO_WORLD_LOG = RpcLog.of("HelloWorld");
+
+        private final DataPlanCatalog catalog;  // available data plans
+        // at the cost of 1000 pseudo-random paths, Sobol draws keep the band error within 2% of the band width where
+        // pseudo-random ones need 8 times more paths, see UtilityBandConvergence; a fixed seed gives every request the
+        // same draws (common random numbers)
+        private final UtilityBandEngine utilityBandEngine = new UtilityBandEngine(PathSampler.SOBOL);
+        // runs calibrations and simulations, cheap calls stay on the gRPC executor
+        private final ComputePool computePool;
+        private final CalibrationCache calibrationCache;
+        private final IncrementalCalibrator incrementalCalibrator = new IncrementalCalibrator();
+        // calibrated parameters by userId, null if parameters are not kept
+        private final UserParamStore userParamStore;
+        // writes recommended usages for the visualizer, null if they are not exported
+        private final UsageExportSink usageExportSink;
+
+        DataPlanServiceImpl(DataPlanCatalog catalog){
+            this(catalog, new ComputePool());
+        }
+
+        DataPlanServiceImpl(DataPlanCatalog catalog, ComputePool computePool){
+            this(catalog, computePool, new CalibrationCache(computePool));
+        }
+
+        DataPlanServiceImpl(DataPlanCatalog catalog, ComputePool computePool, CalibrationCache calibrationCache){
+            this(catalog, computePool, calibrationCache, null);
+        }
+
+        DataPlanServiceImpl(DataPlanCatalog catalog, ComputePool computePool, CalibrationCache calibrationCache,
+                            UserParamStore userParamStore){
+            this(catalog, computePool, calibrationCache, userParamStore, null);
+        }
+
+        DataPlanServiceImpl(DataPlanCatalog catalog, ComputePool computePool, CalibrationCache calibrationCache,
+                            UserParamStore userParamStore, UsageExportSink usageExportSink){
+            this.catalog = catalog;
+            this.computePool = computePool;
+            this.calibrationCache = calibrationCache;
+            this.userParamStore = userParamStore;
+            this.usageExportSink = usageExportSink;
+        }
+
         /**
          * API for user parameter calibration, and calculate standard deviation of parameters using simulations
          * @param request
          * @param responseObserver
          */
         @Override
-        public void getUserParam(UserParamRequest request, StreamObserver<UserParamResponse> responseObserver){
-            try {
-                List<Usage> usages = request.getUsagesList();
-
-                // Process request to fit user parameters
-                double[] dailyUsages = new double[usages.size()];
-                Date[] dates = new Date[usages.size()];
-                for (int i = 0; i < usages.size(); i++) {
-                    dailyUsages[i] = usages.get(i).getUsage();
-                    dates[i] = new Date(usages.get(i).getYear() - 1900, usages.get(i).getMonth() - 1, usages.get(i).getDay());
+        public void getUserParam(final UserParamRequest request, StreamObserver<UserParamResponse> responseObserver){
+            if(Context.current().isCancelled()){
+                responseObserver.onError(Contexts.statusFromCancelled(Context.current()).asRuntimeException());
+                return;
+            }
+            final boolean sampled = USER_PARAM_LOG.sample();
+            if(sampled)
+                USER_PARAM_LOG.request(request);
+            CompletableFuture<UserParamResponse> response = calibrationCache.calibrate(request).thenApply(
+                    new Function<UserParamResponse, UserParamResponse>() {
+                        @Override
+                        public UserParamResponse apply(UserParamResponse response) {
+                            if(sampled)
+                                USER_PARAM_LOG.response(response);
+                            incrementalCalibrator.seed(request, response);
+                            storeUserParams(response);
+                            return response;
+                        }
+                    });
+            ComputePool.reply(responseObserver, response);
+        }
+
+        /**
+         * API for incremental calibration, add one day of usage to a user calibrated by getUserParam and refit its
+         * parameters from the previous ones, on the compute pool
+         * @param request
+         * @param responseObserver
+         */
+        @Override
+        public void updateUserParam(final UsageUpdateRequest request, StreamObserver<UserParamResponse> responseObserver) {
+            computePool.submit(responseObserver, new Callable<UserParamResponse>() {
+                @Override
+                public UserParamResponse call() throws Exception {
+                    UserParamResponse response;
+                    try {
+                        response = incrementalCalibrator.update(request.getUserId(), request.getUsage());
+                    } catch (DateTimeException e) {
+                        throw Status.INVALID_ARGUMENT.withDescription(e.getMessage()).asException();
+                    }
+                    storeUserParams(response);
+                    return response;
                 }
+            });
+        }
+
+        /**
+         * keep calibrated parameters of a response with a userId in the store, a put failing because the store was
+         * closed by a shutdown is logged like a failed write
+         * @param response
+         */
+        private void storeUserParams(UserParamResponse response){
+            if(userParamStore == null || response.getUserId().isEmpty())
+                return;
+            try {
+                userParamStore.put(response.getUserId(), toArray(response.getUserParams()),
+                        toArray(response.getUserParamsStd()), System.currentTimeMillis());
+            } catch (IOException | IllegalArgumentException | IllegalStateException e) {
+                logger.log(Level.WARNING, "Parameters of user " + response.getUserId() + " not stored", e);
+            }
+        }
+
+        /**
+         * stored parameters of a user referenced by a request
+         * @param userId
+         * @return
+         * @throws StatusException INVALID_ARGUMENT if the request has neither parameters nor userId, NOT_FOUND if the
+         * user has no stored parameters
+         */
+        private UserParamStore.Record storedUserParams(String userId) throws StatusException {
+            if(userId.isEmpty())
+                throw Status.INVALID_ARGUMENT.withDescription("userParams or userId should be set").asException();
+            UserParamStore.Record record = userParamStore == null ? null : userParamStore.get(userId);
+            if(record == null)
+                throw Status.NOT_FOUND.withDescription("no parameters stored for user " + userId).asException();
+            return record;
+        }
+
+        /**
+         * parameters sent with a request, or the stored ones of its userId
+         */
+        private UserParams userParamsOf(boolean hasUserParams, UserParams userParams, String userId) throws StatusException {
+            if(hasUserParams)
+                return userParams;
+            return toUserParams(storedUserParams(userId).params);
+        }
 
-                User.UserType userType = User.UserType.LIGHT;
-                if (request.getOverage() > 0)
-                    userType = User.UserType.HEAVY;
-                UserParamFitter userParamFitter = new UserParamFitter(dailyUsages, dates, request.getOverage(), userType);
-
-                UserParamFitter.UserParamsStd userParamsStd = userParamFitter.getSimulatedParamStds(1000);
-
-                UserParamsStd userParamsStdProto = UserParamsStd.newBuilder()
-                        .setW1(userParamsStd.w1)
-                        .setW2(userParamsStd.w2)
-                        .setW3(userParamsStd.w3)
-                        .setW4(userParamsStd.w4)
-                        .setW5(userParamsStd.w5)
-                        .setW6(userParamsStd.w6)
-                        .setW7(userParamsStd.w7)
-                        .setAlpha(userParamsStd.alpha)
-                        .setPhi(userParamsStd.phi)
-                        .build();
-
-
-                UserParams userParams = UserParams.newBuilder()
-                        .setW1(userParamFitter.getDailyWeight(1))
-                        .setW2(userParamFitter.getDailyWeight(2))
-                        .setW3(userParamFitter.getDailyWeight(3))
-                        .setW4(userParamFitter.getDailyWeight(4))
-                        .setW5(userParamFitter.getDailyWeight(5))
-                        .setW6(userParamFitter.getDailyWeight(6))
-                        .setW7(userParamFitter.getDailyWeight(7))
-                        .setAlpha(userParamFitter.getAlpha())
-                        .setPhi(userParamFitter.getPhi())
-                        .build();
-
-                System.out.println("Response:");
-                System.out.println(userParams);
-                System.out.println(userParamsStd);
-                responseObserver.onNext(UserParamResponse.newBuilder().setUserParams(userParams).setUserParamsStd(userParamsStdProto).build());
-                responseObserver.onCompleted();
-            }catch (Exception e){
+        /**
+         * API for calibration of a stream of users, responses are sent in completion order. Users with a userId are
+         * stored and seeded for incremental updates like in getUserParam.
+         * @param responseObserver
+         * @return request observer
+         */
+        @Override
+        public StreamObserver<UserParamRequest> calibrateUsers(StreamObserver<UserParamResponse> responseObserver) {
+            return new CalibrationStream((ServerCallStreamObserver<UserParamResponse>) responseObserver,
+                    calibrationCache, computePool, 2 * Runtime.getRuntime().availableProcessors(),
+                    new BiConsumer<UserParamRequest, UserParamResponse>() {
+                        @Override
+                        public void accept(UserParamRequest request, UserParamResponse response) {
+                            incrementalCalibrator.seed(request, response);
+                            storeUserParams(response);
+                        }
+                    });
+        }
+
+        /**
+         * @param request
+         * @return HEAVY if the request has an overage fee, LIGHT otherwise
+         */
+        public static User.UserType userTypeOf(UserParamRequest request){
+            if (request.getOverage() > 0)
+                return User.UserType.HEAVY;
+            return User.UserType.LIGHT;
+        }
 
+        /**
+         * calibrate user parameters, and calculate standard deviation of parameters using simulations or, depending on
+         * the uncertainty mode of the request, the Jacobian at the optimum
+         * @param request
+         * @return calibrated parameters and their standard deviations
+         * @throws Exception
+         */
+        public static UserParamResponse calibrate(UserParamRequest request) throws Exception {
+            List<Usage> usages = request.getUsagesList();
+
+            // Process request to fit user parameters
+            double[] dailyUsages = new double[usages.size()];
+            int[] days = new int[usages.size()];  // 0 = Sunday
+            for (int i = 0; i < usages.size(); i++) {
+                Usage usage = usages.get(i);
+                dailyUsages[i] = usage.getUsage();
+                days[i] = WeekdayCalendar.dayOfWeek(usage.getYear(), usage.getMonth(), usage.getDay()) % 7;
             }
+
+            User.UserType userType = userTypeOf(request);
+            UserParamFitter userParamFitter = new UserParamFitter(dailyUsages, days, request.getOverage(), userType);
+
+            UncertaintyMode mode = request.getUncertaintyMode();
+            UserParamFitter.UserParamsStd userParamsStd;
+            if (mode == UncertaintyMode.ANALYTIC || mode == UncertaintyMode.ANALYTIC_OR_BOOTSTRAP) {
+                AnalyticUncertainty.Result analytic = AnalyticUncertainty.estimate(userParamFitter);
+                if (mode == UncertaintyMode.ANALYTIC_OR_BOOTSTRAP && analytic.isIllConditioned()) {
+                    Metrics.GLOBAL.counter("uncertainty.bootstrap_fallbacks").increment();
+                    mode = UncertaintyMode.BOOTSTRAP;
+                    userParamsStd = userParamFitter.getSimulatedParamStds(BootstrapEngine.StoppingRule.DEFAULT);
+                } else {
+                    mode = UncertaintyMode.ANALYTIC;
+                    userParamsStd = analytic.toUserParamsStd();
+                }
+            } else if (mode == UncertaintyMode.BOOTSTRAP) {
+                userParamsStd = userParamFitter.getSimulatedParamStds(BootstrapEngine.StoppingRule.DEFAULT);
+            } else {
+                throw Status.INVALID_ARGUMENT.withDescription("unknown uncertainty mode").asException();
+            }
+
+            UserParamsStd userParamsStdProto = UserParamsStd.newBuilder()
+                    .setW1(userParamsStd.w1)
+                    .setW2(userParamsStd.w2)
+                    .setW3(userParamsStd.w3)
+                    .setW4(userParamsStd.w4)
+                    .setW5(userParamsStd.w5)
+                    .setW6(userParamsStd.w6)
+                    .setW7(userParamsStd.w7)
+                    .setAlpha(userParamsStd.alpha)
+                    .setPhi(userParamsStd.phi)
+                    .build();
+
+
+            UserParams userParams = UserParams.newBuilder()
+                    .setW1(userParamFitter.getDailyWeight(1))
+                    .setW2(userParamFitter.getDailyWeight(2))
+                    .setW3(userParamFitter.getDailyWeight(3))
+                    .setW4(userParamFitter.getDailyWeight(4))
+                    .setW5(userParamFitter.getDailyWeight(5))
+                    .setW6(userParamFitter.getDailyWeight(6))
+                    .setW7(userParamFitter.getDailyWeight(7))
+                    .setAlpha(userParamFitter.getAlpha())
+                    .setPhi(userParamFitter.getPhi())
+                    .build();
+
+            return UserParamResponse.newBuilder()
+                    .setUserParams(userParams)
+                    .setUserParamsStd(userParamsStdProto)
+                    .setUserId(request.getUserId())
+                    .setUncertaintyMode(mode)
+                    .build();
         }
 
         /**
@@ -228,10 +511,20 @@ public class DataPlanServer {
          */
         @Override
         public void getRecommendedDataPlans(DataPlanRequest request, StreamObserver<DataPlanResponse> responseObserver) {
+            boolean sampled = DATA_PLANS_LOG.sample();
+            if(sampled)
+                DATA_PLANS_LOG.request(request);
             //Get available dataplans from server side
-            DataPlan[] dps = DataPlan.getDataPlansFromCSV("Data Plans.csv");
-            User user = convertUserParamsToUser(request.getUserParams());
-            DataPlan[] topDataPlans = Utilities.getTopDataPlans(user, dps, 5);
+            UserParams userParams;
+            try {
+                userParams = userParamsOf(request.hasUserParams(), request.getUserParams(), request.getUserId());
+            } catch (StatusException e) {
+                responseObserver.onError(e);
+                return;
+            }
+            DataPlanCatalog.Snapshot plans = catalog.getSnapshot();
+            User user = convertUserParamsToUser(userParams);
+            DataPlan[] topDataPlans = Utilities.getTopDataPlans(user, plans, 5);
 
             DataPlanResponse.Builder responseBuilder = DataPlanResponse.newBuilder();
             for(int i = 0; i < topDataPlans.length; i++){
@@ -244,7 +537,10 @@ public class DataPlanServer {
                                 .setPrice(topDataPlans[i].price).build()
                 );
             }
-            responseObserver.onNext(responseBuilder.build());
+            DataPlanResponse response = responseBuilder.build();
+            if(sampled)
+                DATA_PLANS_LOG.response(response);
+            responseObserver.onNext(response);
             responseObserver.onCompleted();
         }
 
@@ -254,39 +550,78 @@ public class DataPlanServer {
          * @param responseObserver
          */
         @Override
-        public void getRecommendedDataPlans2(DataPlanRequest2 request, StreamObserver<DataPlanResponse2> responseObserver) {
-
-            DataPlan[] dps = DataPlan.getDataPlansFromCSV("Data Plans.csv");
-            double[] utilities = new double[dps.length];
-            double[] maxUtilities = new double[dps.length];
-            double[] minUtilities = new double[dps.length];
-
-            int numPaths = 1000;
-
-            double[][] simulatedUtilities = new double[dps.length][numPaths];
-
-            User user = convertUserParamsToUser(request.getUserParams());
-            for(int i = 0; i < dps.length; i++){
+        public void getRecommendedDataPlans2(final DataPlanRequest2 request, StreamObserver<DataPlanResponse2> responseObserver) {
+            computePool.submit(responseObserver, new Callable<DataPlanResponse2>() {
+                @Override
+                public DataPlanResponse2 call() throws Exception {
+                    return recommendDataPlans2(request);
+                }
+            });
+        }
 
-                utilities[i] = Utilities.calculateDataPlanUtility(user, dps[i]);
-                simulatedUtilities[i][0] = utilities[i];
+        /**
+         * API for batch data plan recommendation, top k data plans of every user of the parameter store, streamed by
+         * batches of users as the client reads them
+         * @param request
+         * @param responseObserver
+         */
+        @Override
+        public void recommendAllDataPlans(BatchDataPlanRequest request, StreamObserver<BatchDataPlanResponse> responseObserver) {
+            if(userParamStore == null){
+                responseObserver.onError(Status.FAILED_PRECONDITION.withDescription("user parameters are not stored")
+                        .asException());
+                return;
             }
-
-            for(int j = 1; j < numPaths; j++){
-                User randomUser = generateRandomNormUser(request.getUserParams(), request.getUserParamsStd());
-                for(int i = 0; i < dps.length; i++) {
-                    double utility = Utilities.calculateDataPlanUtility(randomUser, dps[i]);
-                    simulatedUtilities[i][j] = utility;
-                }
+            if(request.getK() < 0 || request.getUsersPerResponse() < 0){
+                responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("k and usersPerResponse should not be negative")
+                        .asException());
+                return;
             }
+            if(request.getUsersPerResponse() > BatchRecommendationStream.MAX_USERS_PER_RESPONSE){
+                responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("usersPerResponse should be at most "
+                        + BatchRecommendationStream.MAX_USERS_PER_RESPONSE).asException());
+                return;
+            }
+            DataPlanCatalog.Snapshot plans = catalog.getSnapshot();
+            // more plans than the catalog has would only be padding
+            int k = Math.min(request.getK() > 0 ? request.getK() : BatchRecommendationStream.DEFAULT_K, plans.size());
+            int usersPerResponse = request.getUsersPerResponse() > 0 ? request.getUsersPerResponse()
+                    : BatchRecommendationStream.DEFAULT_USERS_PER_RESPONSE;
+            if((long) k * usersPerResponse > BatchRecommendationStream.MAX_PLANS_PER_RESPONSE){
+                responseObserver.onError(Status.INVALID_ARGUMENT.withDescription("k * usersPerResponse should be at most "
+                        + BatchRecommendationStream.MAX_PLANS_PER_RESPONSE).asException());
+                return;
+            }
+            new BatchRecommendationStream((ServerCallStreamObserver<BatchDataPlanResponse>) responseObserver,
+                    computePool.executor(), userParamStore, plans, k, usersPerResponse).start();
+        }
 
-
-            for(int i = 0; i < dps.length; i++){
-                //calculate 5 and 95 percentiles of dps
-                Arrays.sort(simulatedUtilities[i]);
-                minUtilities[i] = simulatedUtilities[i][(int)(numPaths * 0.05)];
-                maxUtilities[i] = simulatedUtilities[i][(int)(numPaths * 0.95)];
+        /**
+         * utilities and 5% and 95% of simulated utilities of all data plans
+         * @param request
+         * @return
+         * @throws Exception
+         */
+        private DataPlanResponse2 recommendDataPlans2(DataPlanRequest2 request) throws Exception {
+            DataPlanCatalog.Snapshot plans = catalog.getSnapshot();
+            DataPlan[] dps = plans.getDataPlans();
+
+            int numPaths = BAND_PATHS;
+
+            double[] params;
+            double[] stds;
+            if(request.hasUserParams()){
+                params = toArray(request.getUserParams());
+                stds = toArray(request.getUserParamsStd());
+            }else{
+                UserParamStore.Record record = storedUserParams(request.getUserId());
+                params = record.params;
+                stds = record.stds;
             }
+            UtilityBandEngine.Result bands = utilityBandEngine.run(params, stds, plans, numPaths, BAND_SEED);
+            double[] utilities = bands.utilities;
+            double[] maxUtilities = bands.upperUtilities;
+            double[] minUtilities = bands.lowerUtilities;
 
             DataPlanResponse2.Builder responseBuilder = DataPlanResponse2.newBuilder();
             for(int i = 0; i < dps.length; i++){
@@ -303,28 +638,7 @@ public class DataPlanServer {
                                 .build()
                 );
             }
-            responseObserver.onNext(responseBuilder.build());
-            responseObserver.onCompleted();
-        }
-
-        /**
-         * write recommended usages and dates to csv
-         * @param dates
-         * @param usages
-         * @throws IOException
-         */
-        public void generateUsagesCSV(Date[] dates, double[] usages) throws IOException {
-            CSVWriter writer = new CSVWriter(new FileWriter("visualizer/static/data.csv"), ',');
-            DateFormat dateFormat = new SimpleDateFormat("yyyy-MM-dd");
-            String[] columnNames = {"date", "value"};
-            writer.writeNext(columnNames);
-            for(int i = 0; i < dates.length; i++){
-                String[] line = new String[2];
-                line[0] = dateFormat.format(dates[i]);
-                line[1] = Double.toString(usages[i]);
-                writer.writeNext(line);
-            }
-            writer.close();
+            return responseBuilder.build();
         }
 
         /**
@@ -340,35 +654,43 @@ public class DataPlanServer {
                     request.getDataPlan().getOverage(),
                     request.getDataPlan().getQuota());
 
-            System.out.println("Request: get recommend usages");
-            System.out.println(request);
+            boolean sampled = USAGES_LOG.sample();
+            if(sampled)
+                USAGES_LOG.request(request);
+            UserParams userParams;
+            try {
+                userParams = userParamsOf(request.hasUserParams(), request.getUserParams(), request.getUserId());
+            } catch (StatusException e) {
+                responseObserver.onError(e);
+                return;
+            }
 
             //set up daily weights
-            Date[] dates = Utilities.daysOfMonth(request.getYear(), request.getMonth());
-            double[] weights = new double[dates.length];
+            int[] daysOfWeek = WeekdayCalendar.monthLayout(request.getYear(), request.getMonth());
+            LocalDate firstDay = WeekdayCalendar.firstDayOfMonth(request.getYear(), request.getMonth());
+            double[] weights = new double[daysOfWeek.length];
             for(int i = 0; i < weights.length; i++){
-                int dayOfWeek = Utilities.dayOfWeek(dates[i]);
-                switch (dayOfWeek){
+                switch (daysOfWeek[i]){
                     case 1:
-                        weights[i] = request.getUserParams().getW1();
+                        weights[i] = userParams.getW1();
                         break;
                     case 2:
-                        weights[i] = request.getUserParams().getW2();
+                        weights[i] = userParams.getW2();
                         break;
                     case 3:
-                        weights[i] = request.getUserParams().getW3();
+                        weights[i] = userParams.getW3();
                         break;
                     case 4:
-                        weights[i] = request.getUserParams().getW4();
+                        weights[i] = userParams.getW4();
                         break;
                     case 5:
-                        weights[i] = request.getUserParams().getW5();
+                        weights[i] = userParams.getW5();
                         break;
                     case 6:
-                        weights[i] = request.getUserParams().getW6();
+                        weights[i] = userParams.getW6();
                         break;
                     case 7:
-                        weights[i] = request.getUserParams().getW7();
+                        weights[i] = userParams.getW7();
                         break;
                     default:
                         break;
@@ -376,24 +698,23 @@ public class DataPlanServer {
             }
 
             User user = new User(weights, dp);
-            user.setAlpha(request.getUserParams().getAlpha());
-            user.setPhi(request.getUserParams().getPhi());
+            user.setAlpha(userParams.getAlpha());
+            user.setPhi(userParams.getPhi());
             double[] usages = Utilities.getOptimalUsages(user, dp);
 
-            // write recommended usages to csv
-            try {
-                generateUsagesCSV(dates, usages);
-            } catch (IOException e) {
-                e.printStackTrace();
-            }
+            // export recommended usages for the visualizer, in the background
+            if(usageExportSink != null)
+                usageExportSink.offer(new UsageExportSink.Series(request.getUserId(), firstDay, usages));
 
             UsagesResponse.Builder responseBuilder = UsagesResponse.newBuilder();
-            for(int i = 0; i < dates.length; i++){
-                Date date = dates[i];
-                Usage usage = Usage.newBuilder().setUsage(usages[i]).setDay(date.getDate()).setMonth(date.getMonth() + 1).setYear(date.getYear() + 1900).build();
+            for(int i = 0; i < usages.length; i++){
+                Usage usage = Usage.newBuilder().setUsage(usages[i]).setDay(i + 1).setMonth(firstDay.getMonthValue()).setYear(firstDay.getYear()).build();
                 responseBuilder.addUsages(usage);
             }
-            responseObserver.onNext(responseBuilder.build());
+            UsagesResponse response = responseBuilder.build();
+            if(sampled)
+                USAGES_LOG.response(response);
+            responseObserver.onNext(response);
             responseObserver.onCompleted();
         }
 
@@ -409,13 +730,23 @@ public class DataPlanServer {
                     request.getDataPlan().getQuota(),
                     request.getDataPlan().getOverage(),
                     request.getDataPlan().getPrice());
-            System.out.println("Request: get utility");
-            System.out.println(request);
+            boolean sampled = UTILITY_LOG.sample();
+            if(sampled)
+                UTILITY_LOG.request(request);
+            UserParams userParams;
+            try {
+                userParams = userParamsOf(request.hasUserParams(), request.getUserParams(), request.getUserId());
+            } catch (StatusException e) {
+                responseObserver.onError(e);
+                return;
+            }
 
-            User user = convertUserParamsToUser(request.getUserParams());
+            User user = convertUserParamsToUser(userParams);
             user.currentDataPlan = dp;
             double utility = Utilities.calculateDataPlanUtility(user, dp);
             UtilityResponse response = UtilityResponse.newBuilder().setUtility(utility).build();
+            if(sampled)
+                UTILITY_LOG.response(response);
 
             responseObserver.onNext(response);
             responseObserver.onCompleted();
@@ -429,11 +760,48 @@ public class DataPlanServer {
          */
         @Override
         public void helloWorld(HWRequest request, StreamObserver<HWResponse> responseObserver) {
-            System.out.println("Request: hello World");
-            System.out.println(request);
+            if(HELLO_WORLD_LOG.sample())
+                HELLO_WORLD_LOG.request(request);
             responseObserver.onNext(HWResponse.newBuilder().setWord("Hello from server!").build());
             responseObserver.onCompleted();
         }
+
+        /**
+         * API of server metrics: RPC latencies and in-flight calls, solver iterations and failures, bootstrap timings
+         * @param request
+         * @param responseObserver
+         */
+        @Override
+        public void getMetrics(MetricsRequest request, StreamObserver<MetricsResponse> responseObserver) {
+            responseObserver.onNext(toMetricsResponse(Metrics.GLOBAL));
+            responseObserver.onCompleted();
+        }
+
+        /**
+         * @param metrics
+         * @return snapshot of all distributions and counters of metrics
+         */
+        public static MetricsResponse toMetricsResponse(Metrics metrics){
+            MetricsResponse.Builder builder = MetricsResponse.newBuilder();
+            for(Map.Entry<String, Histogram> entry : metrics.snapshotDistributions().entrySet()){
+                Histogram histogram = entry.getValue();
+                DistributionMetric.Builder distribution = DistributionMetric.newBuilder()
+                        .setName(entry.getKey())
+                        .setCount(histogram.getTotalCount());
+                if(histogram.getTotalCount() > 0)
+                    distribution.setMin(histogram.getMinValue())
+                            .setMean(histogram.getMean())
+                            .setP50(histogram.getValueAtPercentile(50))
+                            .setP90(histogram.getValueAtPercentile(90))
+                            .setP99(histogram.getValueAtPercentile(99))
+                            .setP999(histogram.getValueAtPercentile(99.9))
+                            .setMax(histogram.getMaxValue());
+                builder.addDistributions(distribution);
+            }
+            for(Map.Entry<String, Long> entry : metrics.snapshotCounters().entrySet())
+                builder.addCounters(CounterMetric.newBuilder().setName(entry.getKey()).setValue(entry.getValue()));
+            return builder.build();
+        }
     }
 
 }
\ No newline at end of file
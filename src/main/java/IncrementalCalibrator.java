@@ -0,0 +1,173 @@
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import io.grpc.Status;
+import io.grpc.StatusException;
+
+import java.time.LocalDate;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per user calibration state for daily ingestion without resending the history.
+ * A full calibration of a request with a userId seeds the state of that user: weekday aggregates of its usages,
+ * fitted parameters, standard deviations and the date of the last usage. Each new day is then added to the
+ * aggregates and the parameters are refitted warm started from the previous ones, so an update costs the same
+ * whatever the length of the history. Standard deviations are those of the last full calibration.
+ * States are bounded in number and expire when a user is not updated for a while; an update of an unknown user fails
+ * with NOT_FOUND and the user has to be calibrated again.
+ * Metrics: incremental.updates, incremental.update_us, incremental.misses.
+ */
+public class IncrementalCalibrator {
+    public static final long DEFAULT_MAXIMUM_SIZE = 1000000;
+    public static final long DEFAULT_TTL_DAYS = 35;
+
+    private static final Metrics.Distribution UPDATE_MICROS = Metrics.GLOBAL.distribution("incremental.update_us");
+
+    private final Cache<String, State> states;
+
+    /**
+     * calibrator with default size and TTL
+     */
+    public IncrementalCalibrator(){
+        this(DEFAULT_MAXIMUM_SIZE, DEFAULT_TTL_DAYS, TimeUnit.DAYS);
+    }
+
+    /**
+     * @param maximumSize - maximum number of users kept
+     * @param ttl - time a user is kept after its last update
+     * @param unit - unit of ttl
+     */
+    public IncrementalCalibrator(long maximumSize, long ttl, TimeUnit unit){
+        this.states = Caffeine.newBuilder()
+                .maximumSize(maximumSize)
+                .expireAfterAccess(ttl, unit)
+                .build();
+    }
+
+    /**
+     * calibration state of one user, updates of the same user are serialized on it
+     */
+    private static class State{
+        final WeekdayUsageStats stats;
+        final double overage;
+        final User.UserType userType;
+        final UserParamsStd userParamsStd;
+        double[] params;  // fitter parameters: Sunday ... Friday weights, phi, alpha
+        long lastEpochDay;
+
+        State(WeekdayUsageStats stats, double overage, User.UserType userType, double[] params,
+              UserParamsStd userParamsStd, long lastEpochDay){
+            this.stats = stats;
+            this.overage = overage;
+            this.userType = userType;
+            this.params = params;
+            this.userParamsStd = userParamsStd;
+            this.lastEpochDay = lastEpochDay;
+        }
+    }
+
+    /**
+     * start (or restart) the state of a user from a full calibration, requests without userId are ignored
+     * @param request - calibration request
+     * @param response - its calibrated parameters and standard deviations
+     */
+    public void seed(UserParamRequest request, UserParamResponse response){
+        if(request.getUserId().isEmpty() || request.getUsagesCount() == 0)
+            return;
+        WeekdayUsageStats stats = new WeekdayUsageStats();
+        long lastEpochDay = Long.MIN_VALUE;
+        for(Usage usage : request.getUsagesList()){
+            LocalDate date = toDate(usage);
+            stats.add(dayOfWeek(date), usage.getUsage());
+            lastEpochDay = Math.max(lastEpochDay, date.toEpochDay());
+        }
+        states.put(request.getUserId(), new State(stats, request.getOverage(),
+                DataPlanServer.DataPlanServiceImpl.userTypeOf(request), toFitterParams(response.getUserParams()),
+                response.getUserParamsStd(), lastEpochDay));
+    }
+
+    /**
+     * add the usage of a new day to a user and refit its parameters
+     * @param userId
+     * @param usage - usage of a day after the last one of the user
+     * @return updated parameters, standard deviations of the last full calibration
+     * @throws StatusException NOT_FOUND if the user has no state, FAILED_PRECONDITION if the day is not after the
+     * last one of the user
+     */
+    public UserParamResponse update(String userId, Usage usage) throws StatusException {
+        long start = System.nanoTime();
+        State state = states.getIfPresent(userId);
+        if(state == null){
+            Metrics.GLOBAL.counter("incremental.misses").increment();
+            throw Status.NOT_FOUND.withDescription("no calibration of user " + userId + ", call GetUserParam first")
+                    .asException();
+        }
+        LocalDate date = toDate(usage);
+        double[] params;
+        synchronized (state){
+            if(date.toEpochDay() <= state.lastEpochDay)
+                throw Status.FAILED_PRECONDITION.withDescription("usage of " + date + " is not after the last usage "
+                        + LocalDate.ofEpochDay(state.lastEpochDay) + " of user " + userId).asException();
+            state.stats.add(dayOfWeek(date), usage.getUsage());
+            state.lastEpochDay = date.toEpochDay();
+            state.params = UserParamFitter.updateFit(state.stats, state.overage, state.userType, state.params);
+            params = state.params;
+        }
+        Metrics.GLOBAL.counter("incremental.updates").increment();
+        UPDATE_MICROS.recordMicrosSince(start);
+        return UserParamResponse.newBuilder()
+                .setUserParams(toUserParams(params))
+                .setUserParamsStd(state.userParamsStd)
+                .setUserId(userId)
+                .build();
+    }
+
+    /**
+     * number of users with a state
+     * @return
+     */
+    public long size(){
+        return states.estimatedSize();
+    }
+
+    /**
+     * date of a usage, read like in the calibration, see {@link WeekdayCalendar}
+     */
+    private static LocalDate toDate(Usage usage){
+        return LocalDate.ofEpochDay(WeekdayCalendar.epochDay(usage.getYear(), usage.getMonth(), usage.getDay()));
+    }
+
+    /**
+     * @param date
+     * @return day of week, 0 = Sunday
+     */
+    private static int dayOfWeek(LocalDate date){
+        return date.getDayOfWeek().getValue() % 7;
+    }
+
+    /**
+     * fitter parameters of calibrated user parameters: w7 is Sunday, w1 ... w5 Monday to Friday, w6 (Saturday)
+     * is implied by the weights summing to 0.25
+     */
+    private static double[] toFitterParams(UserParams userParams){
+        return new double[]{
+                userParams.getW7(), userParams.getW1(), userParams.getW2(), userParams.getW3(),
+                userParams.getW4(), userParams.getW5(), userParams.getPhi(), userParams.getAlpha()};
+    }
+
+    private static UserParams toUserParams(double[] params){
+        double sum = 0;
+        for(int i = 0; i < 6; i++)
+            sum += params[i];
+        return UserParams.newBuilder()
+                .setW1(params[1])
+                .setW2(params[2])
+                .setW3(params[3])
+                .setW4(params[4])
+                .setW5(params[5])
+                .setW6(0.25 - sum)
+                .setW7(params[0])
+                .setPhi(params[6])
+                .setAlpha(params[7])
+                .build();
+    }
+}
@@ -0,0 +1,102 @@
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Registry of named distributions and counters.
+ * Distributions are HdrHistograms with three significant digits, recorded through a Recorder so that recording
+ * does not block and a reader gets a consistent copy. Counters are LongAdders, a counter that is decremented as well
+ * as incremented is a gauge (e.g. in-flight calls).
+ * The server interceptor, the fitter and the bootstrap engine record into {@link #GLOBAL}.
+ */
+public class Metrics {
+    public static final Metrics GLOBAL = new Metrics();
+
+    private final ConcurrentMap<String, Distribution> distributions = new ConcurrentHashMap<String, Distribution>();
+    private final ConcurrentMap<String, LongAdder> counters = new ConcurrentHashMap<String, LongAdder>();
+
+    /**
+     * distribution of non negative values, cumulated since it was created
+     */
+    public static class Distribution{
+        private final Recorder recorder = new Recorder(3);
+        private final Histogram total = new Histogram(3);
+        private Histogram interval;
+
+        /**
+         * @param value - negative values are recorded as 0
+         */
+        public void record(long value){
+            recorder.recordValue(Math.max(value, 0));
+        }
+
+        /**
+         * record an elapsed time in microseconds
+         * @param startNanos - System.nanoTime() at the start
+         */
+        public void recordMicrosSince(long startNanos){
+            record((System.nanoTime() - startNanos) / 1000);
+        }
+
+        /**
+         * @return copy of all values recorded so far
+         */
+        public synchronized Histogram snapshot(){
+            interval = recorder.getIntervalHistogram(interval);
+            total.add(interval);
+            return total.copy();
+        }
+    }
+
+    /**
+     * @param name
+     * @return distribution of that name, created on first use
+     */
+    public Distribution distribution(String name){
+        Distribution distribution = distributions.get(name);
+        if(distribution == null){
+            distributions.putIfAbsent(name, new Distribution());
+            distribution = distributions.get(name);
+        }
+        return distribution;
+    }
+
+    /**
+     * @param name
+     * @return counter of that name, created on first use
+     */
+    public LongAdder counter(String name){
+        LongAdder counter = counters.get(name);
+        if(counter == null){
+            counters.putIfAbsent(name, new LongAdder());
+            counter = counters.get(name);
+        }
+        return counter;
+    }
+
+    /**
+     * @return copies of all distributions, sorted by name
+     */
+    public SortedMap<String, Histogram> snapshotDistributions(){
+        SortedMap<String, Histogram> snapshots = new TreeMap<String, Histogram>();
+        for(Map.Entry<String, Distribution> entry : distributions.entrySet())
+            snapshots.put(entry.getKey(), entry.getValue().snapshot());
+        return snapshots;
+    }
+
+    /**
+     * @return current values of all counters, sorted by name
+     */
+    public SortedMap<String, Long> snapshotCounters(){
+        SortedMap<String, Long> snapshots = new TreeMap<String, Long>();
+        for(Map.Entry<String, LongAdder> entry : counters.entrySet())
+            snapshots.put(entry.getKey(), entry.getValue().sum());
+        return snapshots;
+    }
+}
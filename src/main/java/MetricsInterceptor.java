@@ -0,0 +1,76 @@
+import io.grpc.ForwardingServerCall;
+import io.grpc.ForwardingServerCallListener;
+import io.grpc.Metadata;
+import io.grpc.ServerCall;
+import io.grpc.ServerCallHandler;
+import io.grpc.ServerInterceptor;
+import io.grpc.Status;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Server interceptor recording, per RPC method:
+ * rpc.METHOD.latency_us - distribution of the time from the start of the call to its close or cancellation
+ * rpc.METHOD.in_flight - gauge of calls started and not yet finished
+ * rpc.METHOD.status.CODE - counter of finished calls per status code, CANCELLED for calls cancelled by the client
+ */
+public class MetricsInterceptor implements ServerInterceptor {
+    private final Metrics metrics;
+
+    public MetricsInterceptor(Metrics metrics){
+        this.metrics = metrics;
+    }
+
+    @Override
+    public <ReqT, RespT> ServerCall.Listener<ReqT> interceptCall(ServerCall<ReqT, RespT> call, Metadata headers,
+                                                                 ServerCallHandler<ReqT, RespT> next) {
+        final CallMetrics callMetrics = new CallMetrics(call.getMethodDescriptor().getFullMethodName());
+        ServerCall<ReqT, RespT> monitoredCall = new ForwardingServerCall.SimpleForwardingServerCall<ReqT, RespT>(call) {
+            @Override
+            public void close(Status status, Metadata trailers) {
+                callMetrics.finish(status.getCode());
+                super.close(status, trailers);
+            }
+        };
+
+        ServerCall.Listener<ReqT> listener;
+        try {
+            listener = next.startCall(monitoredCall, headers);
+        } catch (RuntimeException e) {
+            callMetrics.finish(Status.fromThrowable(e).getCode());
+            throw e;
+        }
+        return new ForwardingServerCallListener.SimpleForwardingServerCallListener<ReqT>(listener) {
+            @Override
+            public void onCancel() {
+                callMetrics.finish(Status.Code.CANCELLED);
+                super.onCancel();
+            }
+        };
+    }
+
+    /**
+     * metrics of one call, recorded once when it is closed or cancelled
+     */
+    private class CallMetrics{
+        private final String prefix;
+        private final LongAdder inFlight;
+        private final long start = System.nanoTime();
+        private final AtomicBoolean finished = new AtomicBoolean();
+
+        CallMetrics(String method){
+            this.prefix = "rpc." + method;
+            this.inFlight = metrics.counter(prefix + ".in_flight");
+            inFlight.increment();
+        }
+
+        void finish(Status.Code code){
+            if(!finished.compareAndSet(false, true))
+                return;
+            metrics.distribution(prefix + ".latency_us").recordMicrosSince(start);
+            inFlight.decrement();
+            metrics.counter(prefix + ".status." + code).increment();
+        }
+    }
+}
@@ -0,0 +1,86 @@
+import io.grpc.Context;
+import io.grpc.Contexts;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.Future;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * helpers to run independent tasks on a pool and collect their results in task order.
+ * Tasks run in the gRPC Context of the caller, and tasks that start after it is cancelled (deadline expired or call
+ * cancelled) throw a StatusException instead of running.
+ */
+public class ParallelTasks {
+
+    /**
+     * run tasks on the pool and return their results in task order. On a ForkJoinPool the tasks are forked and
+     * joined, so a caller running inside the same pool helps instead of blocking one of its workers. On any other
+     * executor the caller should not be one of its threads.
+     * @param pool
+     * @param tasks
+     * @return results in task order
+     * @throws Exception - first exception thrown by a task
+     */
+    public static <T> List<T> invokeAll(ExecutorService pool, List<Callable<T>> tasks) throws Exception {
+        List<T> results = new ArrayList<T>(tasks.size());
+        Context context = Context.current();
+        List<Callable<T>> contextTasks = new ArrayList<Callable<T>>(tasks.size());
+        for(Callable<T> task : tasks)
+            contextTasks.add(inContext(context, task));
+
+        if(pool instanceof ForkJoinPool){
+            final List<ForkJoinTask<T>> forkJoinTasks = new ArrayList<ForkJoinTask<T>>(tasks.size());
+            for(Callable<T> task : contextTasks)
+                forkJoinTasks.add(ForkJoinTask.adapt(task));
+            try {
+                if(ForkJoinTask.getPool() == pool)
+                    ForkJoinTask.invokeAll(forkJoinTasks);
+                else
+                    ((ForkJoinPool) pool).invoke(new RecursiveAction() {
+                        @Override
+                        protected void compute() {
+                            invokeAll(forkJoinTasks);
+                        }
+                    });
+            } catch (RuntimeException e) {
+                // adapted callables wrap checked exceptions
+                if(e.getCause() instanceof Exception)
+                    throw (Exception) e.getCause();
+                throw e;
+            }
+            for(ForkJoinTask<T> task : forkJoinTasks)
+                results.add(task.join());
+            return results;
+        }
+
+        try {
+            for(Future<T> future : pool.invokeAll(contextTasks))
+                results.add(future.get());
+        } catch (ExecutionException e) {
+            if(e.getCause() instanceof Exception)
+                throw (Exception) e.getCause();
+            throw e;
+        }
+        return results;
+    }
+
+    /**
+     * run task in context, unless context is cancelled
+     */
+    private static <T> Callable<T> inContext(final Context context, final Callable<T> task){
+        return new Callable<T>() {
+            @Override
+            public T call() throws Exception {
+                if(context.isCancelled())
+                    throw Contexts.statusFromCancelled(context).asException();
+                return context.call(task);
+            }
+        };
+    }
+}
@@ -0,0 +1,195 @@
+import org.apache.commons.math3.special.Erf;
+
+import java.util.SplittableRandom;
+
+/**
+ * Standard normal draws of simulated paths.
+ * PSEUDO: independent pseudo-random Gaussians, one SplittableRandom stream per chunk.
+ * ANTITHETIC: draws come in pairs z, -z, which cancels the odd part of the error of means and percentiles.
+ * SOBOL: Sobol points (Joe and Kuo direction numbers) randomized by a digital shift drawn from the seed, mapped through
+ * the inverse normal CDF. The points of a run fill the unit cube more evenly than random ones, runs of powers of two
+ * points are the most balanced.
+ * Draws are numbered within a run; ANTITHETIC and SOBOL draws only depend on the seed and their number, so chunks of
+ * any size can be drawn in parallel.
+ */
+public enum PathSampler {
+    PSEUDO, ANTITHETIC, SOBOL;
+
+    public static final int MAX_SOBOL_DIMENSION = 16;
+
+    private static final int BITS = 32;
+    private static final double SQRT2 = Math.sqrt(2);
+    // degree s, coefficients a and initial direction numbers m of the primitive polynomials of dimensions 2 to 16
+    private static final int[][] POLYNOMIALS = {
+            {1, 0, 1},
+            {2, 1, 1, 3},
+            {3, 1, 1, 3, 1},
+            {3, 2, 1, 1, 1},
+            {4, 1, 1, 1, 3, 3},
+            {4, 4, 1, 3, 5, 13},
+            {5, 2, 1, 1, 5, 5, 17},
+            {5, 4, 1, 1, 5, 5, 5},
+            {5, 7, 1, 1, 7, 11, 19},
+            {5, 11, 1, 1, 5, 1, 1},
+            {5, 13, 1, 1, 1, 3, 11},
+            {5, 14, 1, 3, 5, 5, 31},
+            {6, 1, 1, 3, 3, 9, 7, 49},
+            {6, 13, 1, 1, 1, 15, 21, 21},
+            {6, 16, 1, 3, 1, 13, 27, 49},
+    };
+    // DIRECTIONS[d][k] is the direction number of bit k of dimension d, as a fraction of 2^32
+    private static final long[][] DIRECTIONS = new long[MAX_SOBOL_DIMENSION][BITS];
+
+    static {
+        for(int k = 0; k < BITS; k++)
+            DIRECTIONS[0][k] = 1L << (BITS - 1 - k);
+        for(int d = 1; d < MAX_SOBOL_DIMENSION; d++){
+            int[] polynomial = POLYNOMIALS[d - 1];
+            int s = polynomial[0];
+            int a = polynomial[1];
+            long[] v = DIRECTIONS[d];
+            for(int k = 0; k < s; k++)
+                v[k] = (long) polynomial[2 + k] << (BITS - 1 - k);
+            for(int k = s; k < BITS; k++){
+                v[k] = v[k - s] ^ (v[k - s] >> s);
+                for(int j = 1; j < s; j++)
+                    if(((a >> (s - 1 - j)) & 1) != 0)
+                        v[k] ^= v[k - j];
+            }
+        }
+    }
+
+    /**
+     * draws of one run
+     */
+    public interface Run{
+        /**
+         * draws of consecutive numbers, to be used by one thread. Chunks are created by one thread in increasing
+         * order of first draw.
+         * @param first - number of the first draw of the chunk
+         * @return
+         */
+        Chunk chunk(long first);
+    }
+
+    /**
+     * consecutive draws
+     */
+    public interface Chunk{
+        /**
+         * fill z with the next draw, one standard normal per dimension
+         * @param z
+         */
+        void next(double[] z);
+    }
+
+    /**
+     * @param dimension - standard normals per draw
+     * @param seed - seed of the run
+     * @return
+     */
+    public Run newRun(final int dimension, long seed){
+        final SplittableRandom root = new SplittableRandom(seed);
+        switch (this){
+            case ANTITHETIC:
+                final long pairSeed = root.nextLong();
+                return new Run() {
+                    @Override
+                    public Chunk chunk(long first) {
+                        return new AntitheticChunk(pairSeed, first);
+                    }
+                };
+            case SOBOL:
+                if(dimension > MAX_SOBOL_DIMENSION)
+                    throw new IllegalArgumentException("Sobol points have at most " + MAX_SOBOL_DIMENSION + " dimensions");
+                final long[] shift = new long[dimension];
+                for(int d = 0; d < dimension; d++)
+                    shift[d] = root.nextLong() >>> (64 - BITS);
+                return new Run() {
+                    @Override
+                    public Chunk chunk(long first) {
+                        return new SobolChunk(shift, first);
+                    }
+                };
+            default:
+                return new Run() {
+                    @Override
+                    public Chunk chunk(long first) {
+                        final SplittableRandom rand = root.split();
+                        return new Chunk() {
+                            @Override
+                            public void next(double[] z) {
+                                for(int i = 0; i < z.length; i++)
+                                    z[i] = Utilities.nextGaussian(rand);
+                            }
+                        };
+                    }
+                };
+        }
+    }
+
+    /**
+     * draws 2k and 2k + 1 are z and -z, z drawn from a stream seeded by k
+     */
+    private static class AntitheticChunk implements Chunk{
+        private final long pairSeed;
+        private long draw;
+
+        AntitheticChunk(long pairSeed, long first){
+            this.pairSeed = pairSeed;
+            this.draw = first;
+        }
+
+        @Override
+        public void next(double[] z) {
+            // the second draw of a pair regenerates the first one, so that pairs may straddle chunks
+            SplittableRandom rand = new SplittableRandom(mix64(pairSeed + (draw >> 1)));
+            double sign = (draw & 1) == 0 ? 1 : -1;
+            for(int i = 0; i < z.length; i++)
+                z[i] = sign * Utilities.nextGaussian(rand);
+            draw++;
+        }
+    }
+
+    /**
+     * Sobol points in Gray code order: point n + 1 is point n with one direction number flipped per dimension
+     */
+    private static class SobolChunk implements Chunk{
+        private final long[] shift;
+        private final long[] x;
+        private long index;
+
+        SobolChunk(long[] shift, long first){
+            this.shift = shift;
+            this.index = first;
+            this.x = new long[shift.length];
+            long gray = first ^ (first >>> 1);
+            for(int k = 0; k < BITS && (gray >>> k) != 0; k++)
+                if(((gray >>> k) & 1) != 0)
+                    for(int d = 0; d < x.length; d++)
+                        x[d] ^= DIRECTIONS[d][k];
+        }
+
+        @Override
+        public void next(double[] z) {
+            for(int d = 0; d < z.length; d++){
+                // centered in its cell of width 2^-32, never 0 or 1
+                double u = ((x[d] ^ shift[d]) + 0.5) / (1L << BITS);
+                z[d] = SQRT2 * Erf.erfInv(2 * u - 1);
+            }
+            index++;
+            int k = Long.numberOfTrailingZeros(index);
+            for(int d = 0; d < x.length; d++)
+                x[d] ^= DIRECTIONS[d][k];
+        }
+    }
+
+    /**
+     * Stafford's variant 13 of the MurmurHash3 finalizer, as used by SplittableRandom
+     */
+    private static long mix64(long z){
+        z = (z ^ (z >>> 30)) * 0xbf58476d1ce4e5b9L;
+        z = (z ^ (z >>> 27)) * 0x94d049bb133111ebL;
+        return z ^ (z >>> 31);
+    }
+}
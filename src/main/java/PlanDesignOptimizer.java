@@ -0,0 +1,390 @@
+import com.opencsv.CSVWriter;
+
+import java.io.File;
+import java.io.FileWriter;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Search of the data plan (quota, overage, price) that maximizes the ISP profit over a population of users.
+ * Users are reduced once to the plan independent quantities of {@link UserUtilityKernel}, kept in parallel arrays.
+ * The profit of a plan is the one of {@link Utilities#ISPProfit}; with participation, a user only subscribes to a
+ * plan whose utility is not negative.
+ * A grid level evaluates every (quota, overage, price) point of a box. Tasks take one overage and a chunk of users:
+ * the heavy usage of a user, which depends on the overage only, is computed once for all quotas, and the prices
+ * cost a binary search per user (a user subscribes to every price up to its utility without price). Levels zoom on
+ * the best point of the previous one, by one grid step on each side, instead of a fine grid of the whole space.
+ */
+public class PlanDesignOptimizer {
+    public static final int DEFAULT_CHUNK_SIZE = 1 << 16;  // users per task
+
+    private final double sigma;  // cost of data for the ISP
+    private final boolean participation;
+    private final int numUsers;
+    private final double[] alpha;
+    private final double[] phi;
+    private final double[] sum;  // sum of w^(1/alpha) over daily weights
+    private final double[] sumPowAlpha;  // sum^alpha
+    private final double[] lightUsage;  // usage when data costs phi
+    public int chunkSize = DEFAULT_CHUNK_SIZE;
+
+    /**
+     * @param users
+     * @param sigma - cost of data for the ISP
+     * @param participation - users only subscribe to plans with non negative utility, otherwise every user
+     *                      subscribes like in Utilities.ISPProfit
+     */
+    public PlanDesignOptimizer(User[] users, double sigma, boolean participation){
+        this(kernels(users), sigma, participation);
+    }
+
+    /**
+     * @param kernels - reductions of the users, users with non finite reductions are left out
+     * @param sigma - cost of data for the ISP
+     * @param participation - users only subscribe to plans with non negative utility
+     */
+    public PlanDesignOptimizer(List<UserUtilityKernel> kernels, double sigma, boolean participation){
+        this.sigma = sigma;
+        this.participation = participation;
+        int n = kernels.size();
+        alpha = new double[n];
+        phi = new double[n];
+        sum = new double[n];
+        sumPowAlpha = new double[n];
+        lightUsage = new double[n];
+        int count = 0;
+        for(UserUtilityKernel kernel : kernels){
+            if(!isFinite(kernel.sum) || !isFinite(kernel.sumPowAlpha) || !isFinite(kernel.lightUsage))
+                continue;
+            alpha[count] = kernel.alpha;
+            phi[count] = kernel.phi;
+            sum[count] = kernel.sum;
+            sumPowAlpha[count] = kernel.sumPowAlpha;
+            lightUsage[count] = kernel.lightUsage;
+            count++;
+        }
+        numUsers = count;
+    }
+
+    /**
+     * optimizer over the calibrated users of a store, with the 28 day month of the recommendation API
+     * @param store
+     * @param sigma - cost of data for the ISP
+     * @param participation - users only subscribe to plans with non negative utility
+     * @return
+     */
+    public static PlanDesignOptimizer fromStore(UserParamStore store, double sigma, boolean participation){
+        final List<UserUtilityKernel> kernels = new ArrayList<UserUtilityKernel>(store.size());
+        store.scan(new UserParamStore.Visitor() {
+            @Override
+            public void visit(String userId, double[] params, double[] stds, long timestamp) {
+                User user = DataPlanServer.convertUserParamsToUser(DataPlanServer.toUserParams(params));
+                kernels.add(new UserUtilityKernel(user));
+            }
+        });
+        return new PlanDesignOptimizer(kernels, sigma, participation);
+    }
+
+    /**
+     * number of users with finite reductions
+     * @return
+     */
+    public int numUsers(){
+        return numUsers;
+    }
+
+    /**
+     * profits of all points of a grid
+     */
+    public static class Level{
+        public final double[] quotas;
+        public final double[] overages;
+        public final double[] prices;  // ascending
+        public final double[] profits;  // by quota, then overage, then price
+        public final long[] subscribers;
+
+        Level(double[] quotas, double[] overages, double[] prices){
+            this.quotas = quotas;
+            this.overages = overages;
+            this.prices = prices;
+            this.profits = new double[quotas.length * overages.length * prices.length];
+            this.subscribers = new long[profits.length];
+        }
+
+        public int index(int quota, int overage, int price){
+            return (quota * overages.length + overage) * prices.length + price;
+        }
+
+        public double profit(int quota, int overage, int price){
+            return profits[index(quota, overage, price)];
+        }
+
+        /**
+         * @return index of the best point, first one on ties
+         */
+        public int argmax(){
+            int best = 0;
+            for(int i = 1; i < profits.length; i++)
+                if(profits[i] > profits[best])
+                    best = i;
+            return best;
+        }
+    }
+
+    /**
+     * evaluated levels and the best plan
+     */
+    public static class Result{
+        public final List<Level> levels;
+        public final double quota;
+        public final double overage;
+        public final double price;
+        public final double profit;
+        public final long subscribers;
+
+        Result(List<Level> levels, Level best, int index){
+            this.levels = Collections.unmodifiableList(levels);
+            int prices = best.prices.length;
+            int overages = best.overages.length;
+            this.quota = best.quotas[index / prices / overages];
+            this.overage = best.overages[index / prices % overages];
+            this.price = best.prices[index % prices];
+            this.profit = best.profits[index];
+            this.subscribers = best.subscribers[index];
+        }
+
+        /**
+         * best plan
+         * @return
+         */
+        public DataPlan toDataPlan(){
+            return new DataPlan(quota, overage, price);
+        }
+
+        /**
+         * write the profit surface, one line per evaluated point
+         * @param fname
+         * @throws IOException
+         */
+        public void writeCSV(String fname) throws IOException {
+            CSVWriter writer = new CSVWriter(new FileWriter(fname), ',');
+            try {
+                writer.writeNext(new String[]{"level", "quota", "overage", "price", "profit", "subscribers"});
+                for(int l = 0; l < levels.size(); l++){
+                    Level level = levels.get(l);
+                    for(int q = 0; q < level.quotas.length; q++)
+                        for(int o = 0; o < level.overages.length; o++)
+                            for(int p = 0; p < level.prices.length; p++){
+                                int i = level.index(q, o, p);
+                                writer.writeNext(new String[]{Integer.toString(l), Double.toString(level.quotas[q]),
+                                        Double.toString(level.overages[o]), Double.toString(level.prices[p]),
+                                        Double.toString(level.profits[i]), Long.toString(level.subscribers[i])});
+                            }
+                }
+            } finally {
+                writer.close();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return "Quota: " + quota + ", Overage: " + overage + ", Price: " + price + ", Profit: " + profit
+                    + ", Subscribers: " + subscribers + " (" + levels.size() + " levels)";
+        }
+    }
+
+    /**
+     * coarse to fine search of the most profitable plan in a box
+     * @param minQuota
+     * @param maxQuota
+     * @param minOverage
+     * @param maxOverage
+     * @param minPrice
+     * @param maxPrice
+     * @param gridSize - points per dimension and level, at least 2
+     * @param levels - number of levels, each one zooms on the best point of the previous one
+     * @return surface of every level and best plan
+     * @throws Exception
+     */
+    public Result optimize(double minQuota, double maxQuota, double minOverage, double maxOverage,
+                           double minPrice, double maxPrice, int gridSize, int levels) throws Exception {
+        if(gridSize < 2 || levels < 1)
+            throw new IllegalArgumentException("gridSize should be at least 2 and levels at least 1");
+        List<Level> evaluated = new ArrayList<Level>();
+        double[] lower = {minQuota, minOverage, minPrice};
+        double[] upper = {maxQuota, maxOverage, maxPrice};
+        double[] bounds = {minQuota, maxQuota, minOverage, maxOverage, minPrice, maxPrice};
+        Level best = null;
+        int bestIndex = 0;
+        for(int l = 0; l < levels; l++){
+            Level level = evaluate(linspace(lower[0], upper[0], gridSize), linspace(lower[1], upper[1], gridSize),
+                    linspace(lower[2], upper[2], gridSize));
+            evaluated.add(level);
+            int index = level.argmax();
+            if(best == null || level.profits[index] > best.profits[bestIndex]){
+                best = level;
+                bestIndex = index;
+            }
+            // zoom on the best point of this level, one step on each side
+            int[] point = {index / gridSize / gridSize, index / gridSize % gridSize, index % gridSize};
+            for(int d = 0; d < 3; d++){
+                double step = (upper[d] - lower[d]) / (gridSize - 1);
+                double center = lower[d] + point[d] * step;
+                lower[d] = Math.max(bounds[2 * d], center - step);
+                upper[d] = Math.min(bounds[2 * d + 1], center + step);
+            }
+        }
+        return new Result(evaluated, best, bestIndex);
+    }
+
+    /**
+     * profits of every point of a grid, evaluated in parallel on the common pool
+     * @param quotas
+     * @param overages
+     * @param prices - ascending
+     * @return
+     * @throws Exception
+     */
+    public Level evaluate(final double[] quotas, double[] overages, final double[] prices) throws Exception {
+        final Level level = new Level(quotas, overages, prices);
+        final double[] logQuotas = new double[quotas.length];
+        for(int q = 0; q < quotas.length; q++)
+            logQuotas[q] = Math.log(quotas[q]);
+
+        List<Callable<double[]>> tasks = new ArrayList<Callable<double[]>>();
+        final List<Integer> taskOverages = new ArrayList<Integer>();
+        for(int o = 0; o < overages.length; o++){
+            final double overage = overages[o];
+            for(int from = 0; from < Math.max(numUsers, 1); from += chunkSize){
+                final int start = from;
+                final int end = Math.min(numUsers, from + chunkSize);
+                taskOverages.add(o);
+                tasks.add(new Callable<double[]>() {
+                    @Override
+                    public double[] call() {
+                        return accumulate(quotas, logQuotas, overage, prices, start, end);
+                    }
+                });
+            }
+        }
+
+        List<double[]> partials = ParallelTasks.invokeAll(ForkJoinPool.commonPool(), tasks);
+        int numPrices = prices.length;
+        for(int t = 0; t < partials.size(); t++){
+            double[] partial = partials.get(t);
+            int o = taskOverages.get(t);
+            for(int q = 0; q < quotas.length; q++){
+                // users subscribing up to bucket k - 1, cumulated from the highest price down
+                double count = 0;
+                double contribution = 0;
+                int base = 2 * q * (numPrices + 1);
+                for(int p = numPrices - 1; p >= 0; p--){
+                    count += partial[base + 2 * (p + 1)];
+                    contribution += partial[base + 2 * (p + 1) + 1];
+                    int i = level.index(q, o, p);
+                    level.profits[i] += count * prices[p] + contribution;
+                    level.subscribers[i] += (long) count;
+                }
+            }
+        }
+        return level;
+    }
+
+    /**
+     * per quota and bucket k, number of users and sum of their profits without price, for the users that
+     * subscribe to the k lowest prices
+     * @return buckets, [quota][k][count, profit] flattened
+     */
+    private double[] accumulate(double[] quotas, double[] logQuotas, double overage, double[] prices, int start, int end){
+        int numPrices = prices.length;
+        double[] buckets = new double[2 * quotas.length * (numPrices + 1)];
+        for(int u = start; u < end; u++){
+            double a = alpha[u];
+            double light = lightUsage[u];
+            double heavy = sum[u] * Math.pow(phi[u] + overage, -1 / a);
+            for(int q = 0; q < quotas.length; q++){
+                double quota = quotas[q];
+                double profit;
+                double utility;  // utility without price
+                if(quota > light){
+                    profit = -sigma * light;
+                    utility = a / (1 - a) * light * phi[u];
+                }else if(quota < heavy){
+                    profit = overage * (heavy - quota) - sigma * heavy;
+                    utility = sumPowAlpha[u] * Math.exp((1 - a) * logQuotas[q]) / (1 - a) - phi[u] * quota;
+                }else{
+                    profit = -sigma * quota;
+                    utility = a / (1 - a) * heavy * (phi[u] + overage) + overage * quota;
+                }
+                int k = participation ? subscribedPrices(prices, utility) : numPrices;
+                int i = 2 * (q * (numPrices + 1) + k);
+                buckets[i]++;
+                buckets[i + 1] += profit;
+            }
+        }
+        return buckets;
+    }
+
+    /**
+     * @return number of prices not above utility, 0 for NaN
+     */
+    private static int subscribedPrices(double[] prices, double utility){
+        int low = 0;
+        int high = prices.length;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if(prices[mid] <= utility)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private static double[] linspace(double from, double to, int n){
+        double[] values = new double[n];
+        for(int i = 0; i < n; i++)
+            values[i] = from + (to - from) * i / (n - 1);
+        return values;
+    }
+
+    private static List<UserUtilityKernel> kernels(User[] users){
+        List<UserUtilityKernel> kernels = new ArrayList<UserUtilityKernel>(users.length);
+        for(User user : users)
+            kernels.add(new UserUtilityKernel(user));
+        return kernels;
+    }
+
+    private static boolean isFinite(double x){
+        return !Double.isNaN(x) && !Double.isInfinite(x);
+    }
+
+    /**
+     * optimize a plan for the users of a parameter store written by GetUserParam or BatchCalibration
+     * @param args - store, cost of data per MB, optional surface CSV
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2){
+            System.err.println("usage: PlanDesignOptimizer <user parameter store> <cost per MB> [surface csv]");
+            System.exit(1);
+        }
+        UserParamStore store = UserParamStore.open(new File(args[0]));
+        PlanDesignOptimizer optimizer;
+        try {
+            optimizer = fromStore(store, Double.parseDouble(args[1]), true);
+        } finally {
+            store.close();
+        }
+        long start = System.nanoTime();
+        Result result = optimizer.optimize(100, 20000, 0, 0.05, 0, 100, 9, 4);
+        System.out.println(optimizer.numUsers() + " users, " + (System.nanoTime() - start) / 1000000 + " ms");
+        System.out.println(result);
+        if(args.length > 2)
+            result.writeCSV(args[2]);
+    }
+}
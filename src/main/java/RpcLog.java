@@ -0,0 +1,82 @@
+import com.google.protobuf.MessageOrBuilder;
+import com.google.protobuf.TextFormat;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+/**
+ * Sampled log of the requests and responses of an RPC method, on the "rpc" logger at FINE.
+ * A call is sampled once with {@link #sample()} and its request and response are logged only if it is. When FINE is
+ * off for the logger a call costs one level check; when it is on, only a fraction of the calls is logged, the rate
+ * of a method is read from the system property rpc.log.METHOD.rate, else rpc.log.rate, else DEFAULT_RATE.
+ * Records are key=value lines: rpc=METHOD event=request|response message=PROTO, the proto is printed on one line
+ * when the record is formatted (by AsyncLogHandler, off the request thread).
+ * To see them, e.g. in a logging.properties: rpc.level = FINE and java.util.logging.ConsoleHandler.level = FINE.
+ */
+public final class RpcLog {
+    public static final double DEFAULT_RATE = 0.01;
+    private static final Logger logger = Logger.getLogger("rpc");
+    private static final String FORMAT = "rpc={0} event={1} message={2}";
+
+    private final String method;
+    private final double rate;
+
+    /**
+     * @param method - RPC method name, e.g. GetUserParam
+     * @param rate - fraction of the calls that are logged
+     */
+    public RpcLog(String method, double rate){
+        this.method = method;
+        this.rate = rate;
+    }
+
+    /**
+     * @param method - RPC method name, e.g. GetUserParam
+     * @return log with the rate configured for the method
+     */
+    public static RpcLog of(String method){
+        String rate = System.getProperty("rpc.log." + method + ".rate", System.getProperty("rpc.log.rate"));
+        return new RpcLog(method, rate == null ? DEFAULT_RATE : Double.parseDouble(rate));
+    }
+
+    /**
+     * @return true if the current call is logged
+     */
+    public boolean sample(){
+        if(!logger.isLoggable(Level.FINE))
+            return false;
+        return rate >= 1 || (rate > 0 && ThreadLocalRandom.current().nextDouble() < rate);
+    }
+
+    /**
+     * log the request of a sampled call
+     * @param request
+     */
+    public void request(MessageOrBuilder request){
+        log("request", request);
+    }
+
+    /**
+     * log the response of a sampled call
+     * @param response
+     */
+    public void response(MessageOrBuilder response){
+        log("response", response);
+    }
+
+    private void log(String event, final MessageOrBuilder message){
+        LogRecord record = new LogRecord(Level.FINE, FORMAT);
+        record.setLoggerName(logger.getName());
+        record.setSourceClassName(RpcLog.class.getName());
+        record.setSourceMethodName(method);
+        record.setParameters(new Object[]{method, event, new Object() {
+            @Override
+            public String toString() {
+                return TextFormat.shortDebugString(message);
+            }
+        }});
+        logger.log(record);
+    }
+}
@@ -1,10 +1,13 @@
-import com.opencsv.CSVReader;
-
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
+import java.time.LocalDate;
+import java.time.ZoneId;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /**
  * Class of tests generated from trace data in CSV
@@ -88,7 +91,7 @@ public class TestFromCSV {
     public static Date[] generateDates(Date start, int len){
         Date[] dates = new Date[len];
         for (int i = 0; i < len; i++) {
-            Date date = new Date(start.getTime() + (1000 * 60 * 60 * 24 * i));
+            Date date = new Date(start.getTime() + (1000L * 60 * 60 * 24 * i));
             dates[i] = date;
         }
         return dates;
@@ -100,22 +103,22 @@ public class TestFromCSV {
      * @return
      */
     public static UserTest[] generateUserTestsFromCSV(String fname){
-        CSVReader reader;
         try {
-            reader = new CSVReader(new FileReader(fname), ',');
-            List<String[]> rows = reader.readAll();
-
-            UserTest[] userTests = new UserTest[rows.size()];
-            int count = 0;
-            for(String[] row : rows){
-                String userId = row[0];
-                Date[] dates = generateDates(new Date(), row.length - 1);
-                double[] usages = new double[row.length - 1];
-                for(int i = 1; i < row.length; i++)
-                    usages[i - 1] = Double.valueOf(row[i]) / 1000 / 1000;
-                userTests[count++] = new UserTest(userId, usages, dates);
+            CsvTraceReader reader = new CsvTraceReader(new File(fname));
+            List<UserTest> userTests = new ArrayList<UserTest>();
+            try {
+                CsvTraceReader.Row row = new CsvTraceReader.Row();
+                while (reader.next(row)){
+                    Date[] dates = generateDates(new Date(), row.length);
+                    double[] usages = new double[row.length];
+                    for(int i = 0; i < row.length; i++)
+                        usages[i] = row.usages[i] / 1000 / 1000;
+                    userTests.add(new UserTest(row.userId, usages, dates));
+                }
+            } finally {
+                reader.close();
             }
-            return userTests;
+            return userTests.toArray(new UserTest[userTests.size()]);
 
         } catch (IOException e) {
             e.printStackTrace();
@@ -123,9 +126,101 @@ public class TestFromCSV {
         return null;
     }
 
+    /**
+     * calibrate the users of a csv in process, rows are streamed to parallel fitters so memory does not depend on
+     * the size of the file
+     * @param fname
+     * @param overage - overage charge
+     * @param workers - number of parallel fitters
+     * @return number of users
+     * @throws Exception
+     */
+    public static long fitCSV(String fname, final double overage, int workers) throws Exception {
+        // first day is today, like generateDates
+        final int firstDay = LocalDate.now().getDayOfWeek().getValue() % 7;  // 0 = Sunday
+        ExecutorService executor = Executors.newFixedThreadPool(workers);
+        try {
+            return CsvTraceReader.process(new File(fname), executor, 2 * workers, new CsvTraceReader.RowHandler() {
+                @Override
+                public void handle(CsvTraceReader.Row row) throws Exception {
+                    double[] usages = new double[row.length];
+                    int[] days = new int[row.length];
+                    for(int i = 0; i < row.length; i++){
+                        usages[i] = row.usages[i] / 1000 / 1000;
+                        days[i] = (firstDay + i) % 7;
+                    }
+                    UserParamFitter fitter = new UserParamFitter(usages, days, overage, User.UserType.HEAVY);
+                    String result = "User: " + row.userId + "\n" + fitter;
+                    synchronized (System.out){
+                        System.out.println(result);
+                    }
+                }
+            });
+        } finally {
+            executor.shutdown();
+        }
+    }
+
+    /**
+     * generate an array of test cases from a binary trace, see {@link UsageTrace}
+     * @param fname
+     * @return
+     * @throws IOException
+     */
+    public static UserTest[] generateUserTestsFromTrace(String fname) throws IOException {
+        UsageTrace trace = UsageTrace.open(new File(fname));
+        try {
+            Date start = Date.from(trace.firstDate().atStartOfDay(ZoneId.systemDefault()).toInstant());
+            UserTest[] userTests = new UserTest[trace.numUsers()];
+            for(int user = 0; user < userTests.length; user++){
+                double[] usages = trace.usages(user);
+                userTests[user] = new UserTest(trace.userId(user), usages, generateDates(start, usages.length));
+            }
+            return userTests;
+        } finally {
+            trace.close();
+        }
+    }
+
+    /**
+     * calibrate all test users over a single CalibrateUsers stream
+     * @param host
+     * @param userTests
+     * @param overage - overage charge
+     * @return responses in completion order
+     * @throws InterruptedException
+     */
+    public static List<UserParamResponse> calibrateAll(String host, UserTest[] userTests, double overage) throws InterruptedException {
+        List<UserParamRequest> requests = new ArrayList<UserParamRequest>();
+        for(UserTest userTest : userTests)
+            requests.add(DataPlanClient.buildUserParamRequest(userTest.dates, userTest.usages, overage)
+                    .setUserId(userTest.userId).build());
+
+        DataPlanClient client = new DataPlanClient(host, 50051);
+        try {
+            return client.calibrateUsers(requests);
+        } finally {
+            client.shutdown();
+        }
+    }
 
     public static void main(String[] args) throws Exception {
-        UserTest[] userTests = generateUserTestsFromCSV("daily.csv");
+        // a binary trace converted by UsageTrace, or the CSV
+        String fname = args.length > 0 ? args[0] : "daily.csv";
+        if(args.length > 1 && args[1].equals("--local")){
+            // calibrate in process, without server
+            long count = fitCSV(fname, 0.01, Runtime.getRuntime().availableProcessors());
+            System.out.println("Calibrated " + count + " users");
+            return;
+        }
+        UserTest[] userTests = fname.endsWith(".csv") ? generateUserTestsFromCSV(fname) : generateUserTestsFromTrace(fname);
+
+        // calibrate the whole file over one stream
+        for(UserParamResponse response : calibrateAll("localhost", userTests, 0.01)){
+            System.out.println("User: " + response.getUserId());
+            System.out.println(response.getError().isEmpty() ? response.getUserParams() : response.getError());
+        }
+
         for(int i = 0; i < 3 && i < userTests.length; i++){
             System.out.println(userTests[i]);
             userTests[i].test();
@@ -0,0 +1,134 @@
+import java.util.Arrays;
+
+/**
+ * Bounded selection of the k best scored items, kept in a primitive min-heap.
+ * Items with equal scores are all kept and ranked by index, lower index first; NaN scores rank last.
+ * Offering an item does not allocate.
+ */
+public class TopK {
+    private final double[] scores;
+    private final int[] indexes;
+    private int size;
+
+    /**
+     * @param k - number of items to keep
+     */
+    public TopK(int k){
+        if(k < 0)
+            throw new IllegalArgumentException("k should not be negative");
+        scores = new double[k];
+        indexes = new int[k];
+    }
+
+    public int size(){
+        return size;
+    }
+
+    /**
+     * offer an item, it is kept if it ranks among the k best seen so far
+     * @param index - item index
+     * @param score - item score, higher is better
+     */
+    public void offer(int index, double score){
+        if(size < scores.length){
+            // sift up
+            int i = size++;
+            while (i > 0) {
+                int parent = (i - 1) >>> 1;
+                if(!better(scores[parent], indexes[parent], score, index))
+                    break;
+                scores[i] = scores[parent];
+                indexes[i] = indexes[parent];
+                i = parent;
+            }
+            scores[i] = score;
+            indexes[i] = index;
+        }else if(size > 0 && better(score, index, scores[0], indexes[0])){
+            // replace the worst item
+            siftDown(scores, indexes, size, score, index);
+        }
+    }
+
+    /**
+     * offer all items of another selection
+     * @param other
+     */
+    public void merge(TopK other){
+        for(int i = 0; i < other.size; i++)
+            offer(other.indexes[i], other.scores[i]);
+    }
+
+    /**
+     * forget all items
+     */
+    public void clear(){
+        size = 0;
+    }
+
+    /**
+     * indexes of kept items, best first
+     * @return
+     */
+    public int[] sortedIndexes(){
+        int[] sorted = new int[size];
+        sorted(sorted, new double[size], 0);
+        return sorted;
+    }
+
+    /**
+     * copy kept items, best first
+     * @param sortedIndexes - receives size() indexes from offset
+     * @param sortedScores - receives their scores from offset
+     * @param offset
+     * @return number of items copied
+     */
+    public int sorted(int[] sortedIndexes, double[] sortedScores, int offset){
+        double[] heapScores = Arrays.copyOf(scores, size);
+        int[] heapIndexes = Arrays.copyOf(indexes, size);
+        // pop the worst item into the last free slot
+        for(int n = size; n > 0; n--){
+            sortedIndexes[offset + n - 1] = heapIndexes[0];
+            sortedScores[offset + n - 1] = heapScores[0];
+            siftDown(heapScores, heapIndexes, n - 1, heapScores[n - 1], heapIndexes[n - 1]);
+        }
+        return size;
+    }
+
+    /**
+     * put an item at the root of a heap of the given size and sift it down
+     */
+    private static void siftDown(double[] scores, int[] indexes, int size, double score, int index){
+        int i = 0;
+        while (true) {
+            int child = 2 * i + 1;
+            if(child >= size)
+                break;
+            if(child + 1 < size && better(scores[child], indexes[child], scores[child + 1], indexes[child + 1]))
+                child++;
+            if(!better(score, index, scores[child], indexes[child]))
+                break;
+            scores[i] = scores[child];
+            indexes[i] = indexes[child];
+            i = child;
+        }
+        if(size > 0){
+            scores[i] = score;
+            indexes[i] = index;
+        }
+    }
+
+    /**
+     * whether item 1 ranks before item 2: higher score first, then lower index, NaN scores last
+     */
+    static boolean better(double score1, int index1, double score2, int index2){
+        if(score1 > score2)
+            return true;
+        if(score1 < score2)
+            return false;
+        boolean nan1 = Double.isNaN(score1);
+        boolean nan2 = Double.isNaN(score2);
+        if(nan1 != nan2)
+            return nan2;
+        return index1 < index2;
+    }
+}
@@ -0,0 +1,116 @@
+import java.io.File;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Latency and accuracy of the analytic standard deviations against the bootstrap on the users of a CSV trace
+ * (usages in bytes, fitted in MB like TestFromCSV). For every user, prints the time of each mode, the condition
+ * number of the analytic estimate and the median over parameters of analytic / bootstrap standard deviation
+ * (parameters with a zero bootstrap deviation are left out), then a summary over all users.
+ */
+public class UncertaintyComparison {
+    public static final double DEFAULT_OVERAGE = 0.01;
+
+    /**
+     * compare the modes on a CSV trace
+     * @param args - csv, optional overage, optional first date yyyy-MM-dd of the usages
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length < 1){
+            System.err.println("usage: UncertaintyComparison <csv> [overage] [first date yyyy-MM-dd]");
+            System.exit(1);
+        }
+        double overage = args.length > 1 ? Double.parseDouble(args[1]) : DEFAULT_OVERAGE;
+        LocalDate firstDate = args.length > 2 ? LocalDate.parse(args[2]) : LocalDate.now();
+        int firstDay = firstDate.getDayOfWeek().getValue() % 7;
+        User.UserType userType = overage > 0 ? User.UserType.HEAVY : User.UserType.LIGHT;
+
+        List<String> userIds = new ArrayList<String>();
+        List<UserParamFitter> fitters = new ArrayList<UserParamFitter>();
+        CsvTraceReader reader = new CsvTraceReader(new File(args[0]));
+        try {
+            CsvTraceReader.Row row = new CsvTraceReader.Row();
+            while (reader.next(row)){
+                double[] usages = new double[row.length];
+                int[] days = new int[row.length];
+                for(int i = 0; i < row.length; i++){
+                    usages[i] = row.usages[i] / 1000 / 1000;
+                    days[i] = (firstDay + i) % 7;
+                }
+                userIds.add(row.userId);
+                fitters.add(new UserParamFitter(usages, days, overage, userType));
+            }
+        } finally {
+            reader.close();
+        }
+        if(fitters.isEmpty())
+            return;
+
+        BootstrapEngine engine = new BootstrapEngine();
+        // warm up both modes
+        AnalyticUncertainty.estimate(fitters.get(0));
+        engine.run(fitters.get(0), 100, 0);
+
+        System.out.println("userId,analytic_us,bootstrap_us,condition,ill_conditioned,median_ratio");
+        long analyticNanos = 0;
+        long bootstrapNanos = 0;
+        int illConditioned = 0;
+        List<Double> ratios = new ArrayList<Double>();
+        for(int u = 0; u < fitters.size(); u++){
+            UserParamFitter fitter = fitters.get(u);
+            long start = System.nanoTime();
+            AnalyticUncertainty.Result analytic = AnalyticUncertainty.estimate(fitter);
+            long analyticEnd = System.nanoTime();
+            BootstrapEngine.Result bootstrap = engine.run(fitter, BootstrapEngine.DEFAULT_MAX_PATHS, userIds.get(u).hashCode());
+            long bootstrapEnd = System.nanoTime();
+            analyticNanos += analyticEnd - start;
+            bootstrapNanos += bootstrapEnd - analyticEnd;
+
+            double ratio = medianRatio(analytic.std, bootstrap.std);
+            if(analytic.isIllConditioned())
+                illConditioned++;
+            else if(!Double.isNaN(ratio))
+                ratios.add(ratio);
+            System.out.println(userIds.get(u) + "," + (analyticEnd - start) / 1000 + "," + (bootstrapEnd - analyticEnd) / 1000
+                    + "," + String.format("%.3g", analytic.conditionNumber) + "," + analytic.isIllConditioned()
+                    + "," + String.format("%.3f", ratio));
+        }
+
+        int n = fitters.size();
+        System.out.println(String.format("%d users: analytic %.1f us/user, bootstrap %.1f ms/user (%d paths), %.0fx faster",
+                n, analyticNanos / 1e3 / n, bootstrapNanos / 1e6 / n, BootstrapEngine.DEFAULT_MAX_PATHS,
+                (double) bootstrapNanos / analyticNanos));
+        System.out.println(illConditioned + " ill-conditioned users (bootstrap in ANALYTIC_OR_BOOTSTRAP mode)");
+        if(!ratios.isEmpty()){
+            double[] sorted = new double[ratios.size()];
+            for(int i = 0; i < sorted.length; i++)
+                sorted[i] = ratios.get(i);
+            Arrays.sort(sorted);
+            System.out.println(String.format("analytic / bootstrap std of well-conditioned users: median %.3f, min %.3f, max %.3f",
+                    median(sorted, sorted.length), sorted[0], sorted[sorted.length - 1]));
+        }
+    }
+
+    /**
+     * median of analytic[i] / bootstrap[i] over parameters with a positive bootstrap deviation
+     * @return NaN if there are none
+     */
+    private static double medianRatio(double[] analytic, double[] bootstrap){
+        double[] ratios = new double[analytic.length];
+        int count = 0;
+        for(int i = 0; i < analytic.length; i++)
+            if(bootstrap[i] > 0)
+                ratios[count++] = analytic[i] / bootstrap[i];
+        if(count == 0)
+            return Double.NaN;
+        Arrays.sort(ratios, 0, count);
+        return median(ratios, count);
+    }
+
+    private static double median(double[] sorted, int count){
+        return count % 2 == 1 ? sorted[count / 2] : (sorted[count / 2 - 1] + sorted[count / 2]) / 2;
+    }
+}
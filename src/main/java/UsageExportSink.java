@@ -0,0 +1,264 @@
+import com.opencsv.CSVWriter;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDate;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Background export of recommended usages for the visualizer, off the request thread.
+ * {@link #offer} never blocks: series go into a bounded lock-free queue (a ConcurrentLinkedQueue with a CAS reserved
+ * size). Above half of the capacity only one series in sampleEvery is kept, a full queue drops the series. A daemon
+ * thread drains the queue by batches every flush interval and writes one csv file per user and month,
+ * {@code <directory>/<userId>-<yyyy-MM>.csv} (date, value like data.csv), keeping only the last series of a file within
+ * a batch. Files are written to a temporary file and moved into place, so the visualizer never reads a partial file;
+ * the last series of each batch can also be copied to a single latest file (the data.csv read by default by
+ * visual.html). A failed write is logged and the series is lost.
+ * Metrics: export.offered, export.sampled_out, export.dropped, export.written, export.failures, export.batch_size.
+ */
+public class UsageExportSink {
+    private static final Logger logger = Logger.getLogger(UsageExportSink.class.getName());
+    public static final int DEFAULT_CAPACITY = 1024;
+    public static final int DEFAULT_SAMPLE_EVERY = 8;
+    public static final long DEFAULT_FLUSH_INTERVAL_MILLIS = 200;
+    public static final int MAX_BATCH = 256;
+    private static final String[] HEADER = {"date", "value"};
+
+    private static final Metrics.Distribution BATCH_SIZE = Metrics.GLOBAL.distribution("export.batch_size");
+
+    /**
+     * recommended usages of a user for a month
+     */
+    public static class Series{
+        public final String userId;  // empty for anonymous requests
+        public final LocalDate firstDay;  // date of usages[0]
+        public final double[] usages;
+
+        /**
+         * @param userId - empty or null for anonymous requests
+         * @param firstDay - date of the first usage
+         * @param usages - daily usages, the array is kept and must not be modified
+         */
+        public Series(String userId, LocalDate firstDay, double[] usages){
+            this.userId = userId == null ? "" : userId;
+            this.firstDay = firstDay;
+            this.usages = usages;
+        }
+
+        /**
+         * @return name of the file of the series, userId characters other than letters, digits and '-' are escaped
+         * as '_' and 4 hex digits, so that distinct users get distinct files. Anonymous series go to _anonymous,
+         * which no escaped userId can produce ('_' is always followed by hex digits)
+         */
+        public String fileName(){
+            StringBuilder name = new StringBuilder();
+            if(userId.isEmpty())
+                name.append("_anonymous");
+            for(int i = 0; i < userId.length(); i++){
+                char c = userId.charAt(i);
+                if((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') || c == '-')
+                    name.append(c);
+                else
+                    name.append('_').append(String.format("%04x", (int) c));
+            }
+            return name.append(String.format("-%04d-%02d.csv", firstDay.getYear(), firstDay.getMonthValue())).toString();
+        }
+    }
+
+    private final Path directory;
+    private final Path latestFile;
+    private final int capacity;
+    private final int sampleEvery;
+    private final long flushIntervalNanos;
+    private final ConcurrentLinkedQueue<Series> queue = new ConcurrentLinkedQueue<Series>();
+    private final AtomicInteger size = new AtomicInteger();
+    private final AtomicLong sampled = new AtomicLong();
+    private final Thread writer;
+    private volatile boolean closed;
+
+    /**
+     * sink with default capacity, sampling and flush interval
+     * @param directory - directory of the per user and month files, created if needed
+     * @param latestFile - file receiving the last series of every batch, null for none
+     */
+    public UsageExportSink(Path directory, Path latestFile){
+        this(directory, latestFile, DEFAULT_CAPACITY, DEFAULT_SAMPLE_EVERY, DEFAULT_FLUSH_INTERVAL_MILLIS,
+                TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @param directory - directory of the per user and month files, created if needed
+     * @param latestFile - file receiving the last series of every batch, null for none
+     * @param capacity - number of series that can wait for the writer
+     * @param sampleEvery - above half of the capacity, one series in sampleEvery is kept
+     * @param flushInterval - time the writer waits when the queue is empty
+     * @param unit - unit of flushInterval
+     */
+    public UsageExportSink(Path directory, Path latestFile, int capacity, int sampleEvery, long flushInterval, TimeUnit unit){
+        if(capacity < 1 || sampleEvery < 1 || flushInterval < 0)
+            throw new IllegalArgumentException("capacity and sampleEvery must be positive, flushInterval non negative");
+        this.directory = directory;
+        this.latestFile = latestFile;
+        this.capacity = capacity;
+        this.sampleEvery = sampleEvery;
+        this.flushIntervalNanos = unit.toNanos(flushInterval);
+        this.writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainLoop();
+            }
+        }, "usage-export-writer");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * queue a series for export, without blocking
+     * @param series
+     * @return true if the series was queued, false if it was sampled out or dropped
+     */
+    public boolean offer(Series series){
+        Metrics.GLOBAL.counter("export.offered").increment();
+        if(closed){
+            Metrics.GLOBAL.counter("export.dropped").increment();
+            return false;
+        }
+        int depth = size.get();
+        if(depth >= capacity / 2 && sampled.getAndIncrement() % sampleEvery != 0){
+            Metrics.GLOBAL.counter("export.sampled_out").increment();
+            return false;
+        }
+        while (true){
+            if(depth >= capacity){
+                Metrics.GLOBAL.counter("export.dropped").increment();
+                return false;
+            }
+            if(size.compareAndSet(depth, depth + 1))
+                break;
+            depth = size.get();
+        }
+        queue.offer(series);
+        return true;
+    }
+
+    /**
+     * @return number of series waiting for the writer
+     */
+    public int pending(){
+        return size.get();
+    }
+
+    /**
+     * stop accepting series, write the queued ones and stop the writer
+     * @param timeout - maximum time to wait for the writer
+     * @param unit - unit of timeout
+     * @return true if the writer finished within the timeout
+     * @throws InterruptedException
+     */
+    public boolean close(long timeout, TimeUnit unit) throws InterruptedException {
+        closed = true;
+        LockSupport.unpark(writer);
+        writer.join(Math.max(unit.toMillis(timeout), 1));
+        return !writer.isAlive();
+    }
+
+    private void drainLoop(){
+        Map<String, Series> batch = new LinkedHashMap<String, Series>();
+        while (true){
+            // read closed before draining, so that series queued before close are written
+            boolean last = closed;
+            Series series;
+            while (batch.size() < MAX_BATCH && (series = queue.poll()) != null){
+                size.decrementAndGet();
+                // a later series of the same file replaces the earlier one
+                batch.remove(series.fileName());
+                batch.put(series.fileName(), series);
+            }
+            if(!batch.isEmpty()){
+                write(batch);
+                batch.clear();
+                continue;
+            }
+            if(last)
+                return;
+            LockSupport.parkNanos(this, flushIntervalNanos);
+        }
+    }
+
+    private void write(Map<String, Series> batch){
+        BATCH_SIZE.record(batch.size());
+        try {
+            Files.createDirectories(directory);
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to create " + directory + ", dropping " + batch.size() + " usage series", e);
+            Metrics.GLOBAL.counter("export.failures").add(batch.size());
+            return;
+        }
+        Series latest = null;
+        Iterator<Map.Entry<String, Series>> entries = batch.entrySet().iterator();
+        while (entries.hasNext()){
+            Map.Entry<String, Series> entry = entries.next();
+            latest = entry.getValue();
+            if(writeAtomically(directory.resolve(entry.getKey()), latest))
+                Metrics.GLOBAL.counter("export.written").increment();
+        }
+        if(latestFile != null && latest != null)
+            writeAtomically(latestFile, latest);
+    }
+
+    /**
+     * write a series to a temporary file next to the target and move it over the target
+     * @return false if the write failed
+     */
+    private boolean writeAtomically(Path file, Series series){
+        Path temp = null;
+        try {
+            // the writer thread is the only writer, a fixed name does not collide
+            temp = file.resolveSibling(file.getFileName() + ".tmp");
+            Writer out = Files.newBufferedWriter(temp, StandardCharsets.UTF_8);
+            CSVWriter csv = new CSVWriter(out, ',');
+            try {
+                csv.writeNext(HEADER);
+                String[] line = new String[2];
+                for(int i = 0; i < series.usages.length; i++){
+                    line[0] = series.firstDay.plusDays(i).toString();
+                    line[1] = Double.toString(series.usages[i]);
+                    csv.writeNext(line);
+                }
+            } finally {
+                csv.close();
+            }
+            try {
+                Files.move(temp, file, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+            } catch (AtomicMoveNotSupportedException e) {
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING);
+            }
+            return true;
+        } catch (IOException e) {
+            logger.log(Level.WARNING, "Failed to export usages to " + file, e);
+            Metrics.GLOBAL.counter("export.failures").increment();
+            if(temp != null){
+                try {
+                    Files.deleteIfExists(temp);
+                } catch (IOException ignored) {
+                    // best effort
+                }
+            }
+            return false;
+        }
+    }
+}
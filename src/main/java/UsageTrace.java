@@ -0,0 +1,325 @@
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.time.LocalDate;
+import java.util.Arrays;
+
+/**
+ * Columnar binary file of daily usage traces, read through memory-mapped buffers.
+ * Layout, little endian:
+ *   header (64 bytes) - magic, version, number of users, first day (epoch day), number of usages, offsets of the
+ *                       user and id columns
+ *   usages  - double per day, user major: the days of a user are contiguous, day i of a user is first day + i
+ *   users   - long per user + 1, index of the first usage of each user
+ *   ids     - int per user + 1, offset of each userId in the id bytes, then the UTF-8 id bytes
+ * The usage column is written first so a trace can be converted in one pass, users and ids are appended on close.
+ * A reader copies the usages of a user into a caller buffer and gives their days of week, which is what the fitter
+ * needs, without per day objects.
+ */
+public class UsageTrace implements Closeable {
+    private static final int MAGIC = 0x55545231; // "UTR1"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 64;
+    // usages are mapped by chunks of 2^27 doubles (1 GB) since a buffer is limited to 2 GB
+    private static final int CHUNK_SHIFT = 27;
+    private static final int CHUNK_MASK = (1 << CHUNK_SHIFT) - 1;
+
+    private final RandomAccessFile file;
+    private final int numUsers;
+    private final long firstEpochDay;
+    private final ByteBuffer[] usageChunks;
+    private final ByteBuffer users;
+    private final ByteBuffer ids;
+    private final int idBytesOffset;
+
+    private UsageTrace(RandomAccessFile file) throws IOException {
+        this.file = file;
+        FileChannel channel = file.getChannel();
+        if(file.length() < HEADER_BYTES)
+            throw new IOException("not a usage trace");
+        ByteBuffer header = map(channel, 0, HEADER_BYTES);
+        if(header.getInt(0) != MAGIC || header.getInt(4) != VERSION)
+            throw new IOException("not a usage trace of version " + VERSION);
+        numUsers = header.getInt(8);
+        firstEpochDay = header.getLong(16);
+        long numUsages = header.getLong(24);
+        long usersOffset = header.getLong(32);
+        long idsOffset = header.getLong(40);
+        if(numUsers < 0 || usersOffset != HEADER_BYTES + 8 * numUsages || idsOffset != usersOffset + 8L * (numUsers + 1)
+                || idsOffset + 4L * (numUsers + 1) > file.length())
+            throw new IOException("usage trace is truncated");
+
+        int numChunks = (int) ((numUsages + CHUNK_MASK) >>> CHUNK_SHIFT);
+        usageChunks = new ByteBuffer[numChunks];
+        for(int i = 0; i < numChunks; i++){
+            long first = (long) i << CHUNK_SHIFT;
+            usageChunks[i] = map(channel, HEADER_BYTES + 8 * first, 8 * Math.min(numUsages - first, CHUNK_MASK + 1L));
+        }
+        users = map(channel, usersOffset, 8L * (numUsers + 1));
+        ids = map(channel, idsOffset, file.length() - idsOffset);
+        idBytesOffset = 4 * (numUsers + 1);
+    }
+
+    /**
+     * open a trace for reading
+     * @param path
+     * @return
+     * @throws IOException if the file is not a trace or is truncated
+     */
+    public static UsageTrace open(File path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "r");
+        try {
+            return new UsageTrace(file);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    public int numUsers(){
+        return numUsers;
+    }
+
+    /**
+     * @return date of the first day of every user
+     */
+    public LocalDate firstDate(){
+        return LocalDate.ofEpochDay(firstEpochDay);
+    }
+
+    /**
+     * @param user - index of the user
+     * @return
+     */
+    public String userId(int user){
+        int start = ids.getInt(4 * user);
+        int end = ids.getInt(4 * (user + 1));
+        byte[] bytes = new byte[end - start];
+        for(int i = 0; i < bytes.length; i++)
+            bytes[i] = ids.get(idBytesOffset + start + i);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * @param user - index of the user
+     * @return number of days of the user
+     */
+    public int numDays(int user){
+        return (int) (users.getLong(8 * (user + 1)) - users.getLong(8 * user));
+    }
+
+    /**
+     * length of the longest user, enough for a buffer reused across users
+     * @return
+     */
+    public int maxDays(){
+        int max = 0;
+        for(int user = 0; user < numUsers; user++)
+            max = Math.max(max, numDays(user));
+        return max;
+    }
+
+    /**
+     * copy the usages of a user
+     * @param user - index of the user
+     * @param usages - buffer of at least numDays(user) usages
+     * @return number of days copied
+     */
+    public int read(int user, double[] usages){
+        long first = users.getLong(8 * user);
+        int n = numDays(user);
+        for(int i = 0; i < n; i++){
+            long index = first + i;
+            usages[i] = usageChunks[(int) (index >>> CHUNK_SHIFT)].getDouble(8 * (int) (index & CHUNK_MASK));
+        }
+        return n;
+    }
+
+    /**
+     * usages of a user in a new array
+     * @param user - index of the user
+     * @return
+     */
+    public double[] usages(int user){
+        double[] usages = new double[numDays(user)];
+        read(user, usages);
+        return usages;
+    }
+
+    /**
+     * day of week of the days of a user, the same for all users
+     * @param days - buffer, filled for its whole length
+     * @return days
+     */
+    public int[] daysOfWeek(int[] days){
+        int first = firstDate().getDayOfWeek().getValue() % 7;  // 0 = Sunday
+        for(int i = 0; i < days.length; i++)
+            days[i] = (first + i) % 7;
+        return days;
+    }
+
+    @Override
+    public void close() throws IOException {
+        file.close();
+    }
+
+    private static ByteBuffer map(FileChannel channel, long position, long size) throws IOException {
+        MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, position, size);
+        buffer.order(ByteOrder.LITTLE_ENDIAN);
+        return buffer;
+    }
+
+    /**
+     * writes a trace in one pass, users one after the other
+     */
+    public static class Writer implements Closeable {
+        private final RandomAccessFile file;
+        private final DataOutputStream usages;
+        private final ByteBuffer value = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+        private final long firstEpochDay;
+        private long[] userStarts = new long[1024];
+        private int[] idStarts = new int[1024];
+        private byte[] idBytes = new byte[16 * 1024];
+        private int numUsers;
+        private long numUsages;
+
+        /**
+         * @param path - file to create or overwrite
+         * @param firstDate - date of the first day of every user
+         * @throws IOException
+         */
+        public Writer(File path, LocalDate firstDate) throws IOException {
+            this.file = new RandomAccessFile(path, "rw");
+            file.setLength(0);
+            file.seek(HEADER_BYTES);
+            this.usages = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file.getFD()), 1 << 16));
+            this.firstEpochDay = firstDate.toEpochDay();
+        }
+
+        /**
+         * start the next user, its usages follow
+         * @param userId
+         */
+        public void addUser(String userId){
+            byte[] id = userId.getBytes(StandardCharsets.UTF_8);
+            if(numUsers + 1 == userStarts.length){
+                userStarts = Arrays.copyOf(userStarts, 2 * userStarts.length);
+                idStarts = Arrays.copyOf(idStarts, 2 * idStarts.length);
+            }
+            int idStart = idStarts[numUsers];
+            if(idStart + id.length > idBytes.length)
+                idBytes = Arrays.copyOf(idBytes, Math.max(2 * idBytes.length, idStart + id.length));
+            System.arraycopy(id, 0, idBytes, idStart, id.length);
+            userStarts[numUsers] = numUsages;
+            numUsers++;
+            userStarts[numUsers] = numUsages;
+            idStarts[numUsers] = idStart + id.length;
+        }
+
+        /**
+         * add the usage of the next day of the current user
+         * @param usage
+         * @throws IOException
+         */
+        public void addUsage(double usage) throws IOException {
+            if(numUsers == 0)
+                throw new IllegalStateException("addUser should be called before addUsage");
+            value.putDouble(0, usage);
+            usages.write(value.array());
+            numUsages++;
+            userStarts[numUsers] = numUsages;
+        }
+
+        /**
+         * write the user and id columns and the header
+         * @throws IOException
+         */
+        @Override
+        public void close() throws IOException {
+            try {
+                usages.flush();
+                long usersOffset = HEADER_BYTES + 8 * numUsages;
+                long idsOffset = usersOffset + 8L * (numUsers + 1);
+                ByteBuffer columns = ByteBuffer.allocate(8 * (numUsers + 1) + 4 * (numUsers + 1) + idStarts[numUsers])
+                        .order(ByteOrder.LITTLE_ENDIAN);
+                for(int i = 0; i <= numUsers; i++)
+                    columns.putLong(userStarts[i]);
+                for(int i = 0; i <= numUsers; i++)
+                    columns.putInt(idStarts[i]);
+                columns.put(idBytes, 0, idStarts[numUsers]);
+                columns.flip();
+                FileChannel channel = file.getChannel();
+                channel.position(usersOffset);
+                while (columns.hasRemaining())
+                    channel.write(columns);
+
+                ByteBuffer header = ByteBuffer.allocate(HEADER_BYTES).order(ByteOrder.LITTLE_ENDIAN);
+                header.putInt(0, MAGIC);
+                header.putInt(4, VERSION);
+                header.putInt(8, numUsers);
+                header.putLong(16, firstEpochDay);
+                header.putLong(24, numUsages);
+                header.putLong(32, usersOffset);
+                header.putLong(40, idsOffset);
+                channel.position(0);
+                while (header.hasRemaining())
+                    channel.write(header);
+            } finally {
+                file.close();
+            }
+        }
+    }
+
+    /**
+     * convert a trace CSV (userId, then one usage per day) row by row, see {@link CsvTraceReader}
+     * @param csvFile
+     * @param traceFile
+     * @param firstDate - date of the first day of every user
+     * @param scale - multiplier of the CSV usages, e.g. 1e-6 for bytes to MB
+     * @return number of users converted
+     * @throws IOException
+     */
+    public static int convertCSV(String csvFile, File traceFile, LocalDate firstDate, double scale) throws IOException {
+        CsvTraceReader reader = new CsvTraceReader(new File(csvFile));
+        Writer writer = new Writer(traceFile, firstDate);
+        int numUsers = 0;
+        try {
+            CsvTraceReader.Row row = new CsvTraceReader.Row();
+            while (reader.next(row)){
+                writer.addUser(row.userId);
+                for(int i = 0; i < row.length; i++)
+                    writer.addUsage(row.usages[i] * scale);
+                numUsers++;
+            }
+        } finally {
+            reader.close();
+            writer.close();
+        }
+        return numUsers;
+    }
+
+    /**
+     * convert a trace CSV with usages in bytes to a trace in MB
+     * @param args - CSV file, trace file, optional first date (yyyy-MM-dd, default today)
+     * @throws IOException
+     */
+    public static void main(String[] args) throws IOException {
+        if(args.length < 2){
+            System.err.println("usage: UsageTrace <csv file> <trace file> [first date yyyy-MM-dd]");
+            System.exit(1);
+        }
+        LocalDate firstDate = args.length > 2 ? LocalDate.parse(args[2]) : LocalDate.now();
+        long start = System.nanoTime();
+        int numUsers = convertCSV(args[0], new File(args[1]), firstDate, 1e-6);
+        System.out.println("Converted " + numUsers + " users in " + (System.nanoTime() - start) / 1000000 + " ms");
+    }
+}
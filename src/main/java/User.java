@@ -1,10 +1,15 @@
 import java.util.Arrays;
 import java.util.List;
+import java.util.function.Supplier;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 /**
  * class of user
  */
 public class User {
+    private static final Logger logger = Logger.getLogger(User.class.getName());
+
     public enum UserType{
         LIGHT, MODERATE, HEAVY
     }
@@ -45,17 +50,23 @@ public class User {
      * @return
      */
     public DataPlan getRecommendedPlan(DataPlan[] dataPlans){
+        UserUtilityKernel kernel = new UserUtilityKernel(this);
         DataPlan bestDP = this.currentDataPlan;
-        double bestUtility = calculateUtility();
+        double bestUtility = kernel.utility(this.currentDataPlan);
         for(DataPlan dp : dataPlans){
-            double utility = Utilities.calculateDataPlanUtility(this, dp) ;
+            double utility = kernel.utility(dp);
             if( utility > bestUtility) {
                 bestUtility = utility;
                 bestDP = dp;
             }
         }
-        System.out.println("Best data plan:");
-        System.out.println(bestDP);
+        final DataPlan best = bestDP;
+        logger.log(Level.FINE, new Supplier<String>() {
+            @Override
+            public String get() {
+                return "Best data plan: " + best;
+            }
+        });
         return bestDP;
     }
 
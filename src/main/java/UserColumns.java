@@ -0,0 +1,122 @@
+import java.util.Arrays;
+
+/**
+ * Column store of user parameters for scoring a population at once: one primitive array per parameter (alpha, phi
+ * and the seven weekday weights) instead of one object per user. The plan independent reductions of
+ * {@link UserUtilityKernel}, over the 28 day month of convertUserParamsToUser, are computed when a user is added and
+ * kept in columns too, so scoring reads a few contiguous doubles per user.
+ */
+public class UserColumns {
+    public static final int NUM_WEIGHTS = 7;
+
+    private String[] userIds;
+    double[] alpha;
+    double[] phi;
+    final double[][] weights = new double[NUM_WEIGHTS][];  // w1 ... w7, Monday to Sunday
+    double[] sum;  // sum of w^(1/alpha) over the daily weights of the month
+    double[] sumPowAlpha;  // sum^alpha
+    double[] lightUsage;  // usage when data costs phi
+    private int size;
+    private final double[] dailyWeights = new double[4 * NUM_WEIGHTS];
+
+    public UserColumns(){
+        this(1024);
+    }
+
+    /**
+     * @param capacity - initial number of users
+     */
+    public UserColumns(int capacity){
+        capacity = Math.max(capacity, 1);
+        userIds = new String[capacity];
+        alpha = new double[capacity];
+        phi = new double[capacity];
+        for(int d = 0; d < NUM_WEIGHTS; d++)
+            weights[d] = new double[capacity];
+        sum = new double[capacity];
+        sumPowAlpha = new double[capacity];
+        lightUsage = new double[capacity];
+    }
+
+    /**
+     * columns of all users of a store
+     * @param store
+     * @return
+     */
+    public static UserColumns fromStore(UserParamStore store){
+        final UserColumns columns = new UserColumns(store.size());
+        store.scan(new UserParamStore.Visitor() {
+            @Override
+            public void visit(String userId, double[] params, double[] stds, long timestamp) {
+                columns.add(userId, params);
+            }
+        });
+        return columns;
+    }
+
+    /**
+     * add a user
+     * @param userId
+     * @param userParams
+     */
+    public void add(String userId, UserParams userParams){
+        add(userId, DataPlanServer.toArray(userParams));
+    }
+
+    /**
+     * add a user
+     * @param userId
+     * @param params - w1 ... w7, phi, alpha
+     */
+    public void add(String userId, double[] params){
+        if(size == alpha.length)
+            grow();
+        for(int d = 0; d < NUM_WEIGHTS; d++)
+            weights[d][size] = params[d];
+        // same weights as convertUserParamsToUser: weight i is w7 when i % 7 == 0, w(i % 7) otherwise
+        for(int i = 0; i < dailyWeights.length; i++)
+            dailyWeights[i] = params[(i + 6) % 7];
+        UserUtilityKernel kernel = new UserUtilityKernel(dailyWeights, params[8], params[7]);
+        userIds[size] = userId;
+        alpha[size] = kernel.alpha;
+        phi[size] = kernel.phi;
+        sum[size] = kernel.sum;
+        sumPowAlpha[size] = kernel.sumPowAlpha;
+        lightUsage[size] = kernel.lightUsage;
+        size++;
+    }
+
+    public int size(){
+        return size;
+    }
+
+    public String userId(int user){
+        return userIds[user];
+    }
+
+    /**
+     * parameters of a user
+     * @param user - index of the user
+     * @return w1 ... w7, phi, alpha
+     */
+    public double[] params(int user){
+        double[] params = new double[NUM_WEIGHTS + 2];
+        for(int d = 0; d < NUM_WEIGHTS; d++)
+            params[d] = weights[d][user];
+        params[NUM_WEIGHTS] = phi[user];
+        params[NUM_WEIGHTS + 1] = alpha[user];
+        return params;
+    }
+
+    private void grow(){
+        int capacity = 2 * alpha.length;
+        userIds = Arrays.copyOf(userIds, capacity);
+        alpha = Arrays.copyOf(alpha, capacity);
+        phi = Arrays.copyOf(phi, capacity);
+        for(int d = 0; d < NUM_WEIGHTS; d++)
+            weights[d] = Arrays.copyOf(weights[d], capacity);
+        sum = Arrays.copyOf(sum, capacity);
+        sumPowAlpha = Arrays.copyOf(sumPowAlpha, capacity);
+        lightUsage = Arrays.copyOf(lightUsage, capacity);
+    }
+}
@@ -1,5 +1,8 @@
 import org.apache.commons.math3.analysis.MultivariateMatrixFunction;
 import org.apache.commons.math3.analysis.MultivariateVectorFunction;
+import org.apache.commons.math3.exception.ConvergenceException;
+import org.apache.commons.math3.exception.MathIllegalStateException;
+import org.apache.commons.math3.exception.util.LocalizedFormats;
 import org.apache.commons.math3.fitting.leastsquares.LeastSquaresBuilder;
 import org.apache.commons.math3.fitting.leastsquares.LeastSquaresOptimizer;
 import org.apache.commons.math3.fitting.leastsquares.LeastSquaresProblem;
@@ -7,9 +10,7 @@ import org.apache.commons.math3.fitting.leastsquares.LevenbergMarquardtOptimizer
 import org.apache.commons.math3.linear.RealVector;
 
 import java.util.Arrays;
-import java.util.Calendar;
 import java.util.Date;
-import java.util.Random;
 
 public class UserParamFitter {
     public final double[] usages;
@@ -18,9 +19,23 @@ public class UserParamFitter {
     public double overage; // overage fee
     public boolean fitted = false;  // has been fitted
     public double[] params; // first 6 are weights, weight 7 = 1 - sum of other weights, last two are alpha and phis
+    private final int[] days; // day of week of each usage, computed once
+    public final WeekdayUsageStats stats; // per weekday aggregates of usages
+
+    // iteration budget of the aggregated solve before falling back to the per-sample solve
+    private static final int MAX_AGGREGATED_ITERATIONS = 10000;
+    // iteration budget of a warm started update before retrying with the full budget
+    public static final int MAX_INCREMENTAL_ITERATIONS = 50;
+
+    // Levenberg-Marquardt iterations and evaluations per solve
+    private static final Metrics.Distribution AGGREGATED_ITERATIONS = Metrics.GLOBAL.distribution("fitter.aggregated.iterations");
+    private static final Metrics.Distribution AGGREGATED_EVALUATIONS = Metrics.GLOBAL.distribution("fitter.aggregated.evaluations");
+    private static final Metrics.Distribution SAMPLES_ITERATIONS = Metrics.GLOBAL.distribution("fitter.samples.iterations");
+    private static final Metrics.Distribution SAMPLES_EVALUATIONS = Metrics.GLOBAL.distribution("fitter.samples.evaluations");
+    private static final Metrics.Distribution INCREMENTAL_ITERATIONS = Metrics.GLOBAL.distribution("fitter.incremental.iterations");
 
     //standard deviation for each parameter
-    public class UserParamsStd{
+    public static class UserParamsStd{
         double w1;
         double w2;
         double w3;
@@ -30,19 +45,87 @@ public class UserParamFitter {
         double w7;
         double alpha;
         double phi;
+
+        /**
+         * @param std - w1 ... w7, phi, alpha
+         * @return
+         */
+        static UserParamsStd of(double[] std){
+            UserParamsStd userParamsStd = new UserParamsStd();
+            userParamsStd.w1 = std[0];
+            userParamsStd.w2 = std[1];
+            userParamsStd.w3 = std[2];
+            userParamsStd.w4 = std[3];
+            userParamsStd.w5 = std[4];
+            userParamsStd.w6 = std[5];
+            userParamsStd.w7 = std[6];
+            userParamsStd.phi = std[7];
+            userParamsStd.alpha = std[8];
+            return userParamsStd;
+        }
     }
 
 
     public UserParamFitter(double[] usages, Date[] dates, double pi, User.UserType userType) throws Exception{
-        if(usages.length != dates.length)
+        this(usages, dates, daysOfWeek(dates), pi, userType);
+    }
+
+    /**
+     * fit usages given by day of week, without dates ({@link #dates} is null)
+     * @param usages - daily usages
+     * @param days - day of week of each usage, 0 = Sunday
+     * @param pi - overage fee
+     * @param userType
+     * @throws Exception
+     */
+    public UserParamFitter(double[] usages, int[] days, double pi, User.UserType userType) throws Exception{
+        this(usages, null, days, pi, userType);
+    }
+
+    private UserParamFitter(double[] usages, Date[] dates, int[] days, double pi, User.UserType userType) throws Exception{
+        if(usages.length != days.length)
             throw new Exception("Usages and dates should be of same length");
         this.usages = usages;
         this.dates = dates;
         this.overage = pi;
         this.userType = userType;
+        this.days = days;
+        this.stats = new WeekdayUsageStats(usages, days);
         fit();
     }
 
+    /**
+     * fast refit of simulated usages on the dates of a fitted user: shares the day of week index and reuses residual
+     * and Jacobian buffers between iterations. The solve starts from the default guess like a new fitter, not from
+     * the parameters of base: the problem is rank deficient and the optimizer often does not move from a converged
+     * point, which would shrink the simulated standard deviations to zero
+     * @param base - fitted user
+     * @param usages - simulated usages, same length as base.usages
+     */
+    private UserParamFitter(UserParamFitter base, double[] usages){
+        this.usages = usages;
+        this.dates = base.dates;
+        this.overage = base.overage;
+        this.userType = base.userType;
+        this.days = base.days;
+        this.stats = new WeekdayUsageStats(usages, days);
+        fit(initialParams(), true);
+    }
+
+    /**
+     * refit simulated usages in fast mode, see {@link #UserParamFitter(UserParamFitter, double[])}
+     * @param simulatedUsages
+     * @return fitted simulated user
+     * @throws Exception
+     */
+    public UserParamFitter refit(double[] simulatedUsages) throws Exception{
+        if(!fitted)
+            throw new Exception("Base user should be fitted before refitting");
+        if(simulatedUsages.length != usages.length)
+            throw new Exception("Usages and dates should be of same length");
+        return new UserParamFitter(this, simulatedUsages);
+    }
+
     /**
      * get weights from calibrated results
      * @return
@@ -88,20 +171,196 @@ public class UserParamFitter {
      * calibrate parameters to fit daily usages
      */
     public void fit(){
+        fit(initialParams(), false);
+    }
+
+    /**
+     * default starting point of the optimizer: equal weights, phi = 0.01 and alpha = 1
+     * @return
+     */
+    static double[] initialParams(){
+        double[] initialParams = new double[8];
+        for(int i = 0; i < 6; i++)
+            initialParams[i] = 0.25 / 7;
+        initialParams[6] = 0.01;
+        initialParams[7] = 1;
+        return initialParams;
+    }
+
+    /**
+     * calibrate parameters to fit daily usages: solve the problem on the weekday aggregates first, and fall back to
+     * the per-sample solve when it does not converge or leaves alpha at its start.
+     * The weekday means do not identify alpha: for any alpha some weights and phi fit them. From equal weights the
+     * alpha and phi columns of the Jacobian are collinear, the optimizer may then reach the means without ever moving
+     * alpha, which would stay at 1 where the utility divides by zero
+     * @param initialParams - starting point of the optimizer
+     * @param reuseBuffers - reuse residual and Jacobian arrays of the per-sample solve
+     * @throws MathIllegalStateException if the per-sample solve does not converge or leaves alpha at its start too
+     */
+    private void fit(double[] initialParams, boolean reuseBuffers){
+        double[] sol = null;
+        try {
+            LeastSquaresOptimizer.Optimum optimum = solveAggregated(stats, overage, userType, initialParams, MAX_AGGREGATED_ITERATIONS);
+            AGGREGATED_ITERATIONS.record(optimum.getIterations());
+            AGGREGATED_EVALUATIONS.record(optimum.getEvaluations());
+            sol = optimum.getPoint().toArray();
+        } catch (MathIllegalStateException e) {
+            // too many iterations or no convergence
+            Metrics.GLOBAL.counter("fitter.aggregated.failures").increment();
+        }
+        if(sol != null && isFinite(sol) && sol[7] == initialParams[7]){
+            Metrics.GLOBAL.counter("fitter.aggregated.stalls").increment();
+            sol = null;
+        }
+        if(sol == null || !isFinite(sol)){
+            Metrics.GLOBAL.counter("fitter.aggregated.fallbacks").increment();
+            sol = fitSamples(initialParams, reuseBuffers);
+            if(sol[7] == initialParams[7]){
+                Metrics.GLOBAL.counter("fitter.samples.failures").increment();
+                throw new ConvergenceException(LocalizedFormats.CONVERGENCE_FAILED);
+            }
+        }
+
+        this.params = sol;
+        fitted =true;
+    }
+
+    /**
+     * update fitted parameters after usages were added to the weekday aggregates: solve warm started from the
+     * previous parameters with a few iterations, retry with the full budget if they are not enough.
+     * The problem is rank deficient and the optimizer may not move at all from the previous parameters, which then no
+     * longer fit the updated aggregates: such an update is solved again on the aggregates from the default guess
+     * @param stats - updated weekday aggregates
+     * @param overage - overage fee
+     * @param userType
+     * @param previousParams - parameters fitted before the update
+     * @return updated parameters, the previous ones if the solve fails
+     */
+    public static double[] updateFit(WeekdayUsageStats stats, double overage, User.UserType userType, double[] previousParams){
+        double[] sol = null;
+        try {
+            LeastSquaresOptimizer.Optimum optimum = solveAggregated(stats, overage, userType, previousParams, MAX_INCREMENTAL_ITERATIONS);
+            INCREMENTAL_ITERATIONS.record(optimum.getIterations());
+            sol = optimum.getPoint().toArray();
+        } catch (MathIllegalStateException e) {
+            Metrics.GLOBAL.counter("fitter.incremental.retries").increment();
+            try {
+                LeastSquaresOptimizer.Optimum optimum = solveAggregated(stats, overage, userType, previousParams, MAX_AGGREGATED_ITERATIONS);
+                INCREMENTAL_ITERATIONS.record(optimum.getIterations());
+                sol = optimum.getPoint().toArray();
+            } catch (MathIllegalStateException e2) {
+                // keep the previous parameters
+            }
+        }
+        if(sol != null && Arrays.equals(sol, previousParams)){
+            Metrics.GLOBAL.counter("fitter.incremental.stalls").increment();
+            double[] initialParams = initialParams();
+            try {
+                LeastSquaresOptimizer.Optimum optimum = solveAggregated(stats, overage, userType, initialParams, MAX_AGGREGATED_ITERATIONS);
+                INCREMENTAL_ITERATIONS.record(optimum.getIterations());
+                sol = optimum.getPoint().toArray();
+                // alpha left at its start, see fit
+                if(sol[7] == initialParams[7])
+                    sol = null;
+            } catch (MathIllegalStateException e) {
+                sol = null;
+            }
+        }
+        if(sol == null || !isFinite(sol)){
+            Metrics.GLOBAL.counter("fitter.incremental.failures").increment();
+            return previousParams.clone();
+        }
+        return sol;
+    }
+
+    /**
+     * least squares fit on the weekday aggregates. Residuals are sqrt(n_d) * (predicted_d - mean_d), whose sum of
+     * squares equals the per-sample sum of squares up to a constant (same normal equations), so the cost of a
+     * solve does not depend on history length.
+     * Residual and Jacobian arrays are reused, the Jacobian of the returned optimum is not retained.
+     * @param stats - weekday aggregates of usages
+     * @param overage - overage fee
+     * @param userType
+     * @param initialParams - starting point of the optimizer
+     * @param maxIterations - iteration budget
+     * @return optimum
+     */
+    public static LeastSquaresOptimizer.Optimum solveAggregated(WeekdayUsageStats stats, final double overage, final User.UserType userType,
+                                                                double[] initialParams, int maxIterations){
+        // one residual per weekday, padded with zero rows so that there are at least as many rows as parameters,
+        // the optimizer only solves for as many columns as there are rows
+        int rows = Math.max(7, initialParams.length);
+        final double[] scales = new double[7];
+        double[] target = new double[rows];
+        for(int day = 0; day < 7; day++){
+            scales[day] = Math.sqrt(stats.count[day]);
+            if(stats.count[day] > 0)
+                target[day] = stats.sum[day] / scales[day];
+        }
+
+        final double[] values = new double[rows];
+        final double[][] jacobian = new double[rows][initialParams.length];
+
+        MultivariateVectorFunction vectorFunction = new MultivariateVectorFunction() {
+            @Override
+            public double[] value(double[] params) throws IllegalArgumentException {
+                for(int day = 0; day < 7; day++){
+                    if(scales[day] == 0)
+                        values[day] = 0;
+                    else
+                        values[day] = scales[day] * predictedUsage(weightOfDay(params, day), params[6], params[7], userType, overage);
+                }
+                return values;
+            }
+        };
+
+        MultivariateMatrixFunction jacobianFunction = new MultivariateMatrixFunction(){
+            @Override
+            public double[][] value(double[] params) throws IllegalArgumentException {
+                for(int day = 0; day < 7; day++){
+                    Arrays.fill(jacobian[day], 0);
+                    if(scales[day] > 0)
+                        addJacobianRow(jacobian[day], day, params, scales[day], userType, overage);
+                }
+                return jacobian;
+            }
+        };
+
+        LeastSquaresProblem problem = new LeastSquaresBuilder().
+                start(initialParams).
+                model(vectorFunction, jacobianFunction).
+                target(target).
+                lazyEvaluation(false).
+                maxEvaluations(maxIterations).
+                maxIterations(maxIterations).
+                build();
+
+        return new LevenbergMarquardtOptimizer().optimize(problem);
+    }
+
+    /**
+     * least squares fit on every daily usage
+     * @param initialParams - starting point of the optimizer
+     * @param reuseBuffers - write residuals and Jacobian into the same arrays on every evaluation, the Jacobian of
+     *                     the returned optimum is then not retained
+     * @return fitted parameters
+     */
+    private double[] fitSamples(double[] initialParams, boolean reuseBuffers){
+        final double[] residualBuffer = reuseBuffers ? new double[usages.length] : null;
+        final double[][] jacobianBuffer = reuseBuffers ? new double[usages.length][initialParams.length] : null;
 
         MultivariateVectorFunction vectorFunction = new MultivariateVectorFunction() {
             @Override
             public double[] value(double[] params) throws IllegalArgumentException {
                 //calculate errors
-                double[] results = new double[usages.length];
+                double[] results = residualBuffer != null ? residualBuffer : new double[usages.length];
                 for(int i = 0; i < usages.length; i++){
                     double w;
 
-                    if( dayOfWeek(dates[i]) == 6 ) {
+                    if( days[i] == 6 )
                         w = 0.25 - getSumWeight(params);
-                        System.out.println("w = " + w);
-                    }else
-                        w = params[dayOfWeek(dates[i])];
+                    else
+                        w = params[days[i]];
 
 
                     results[i] = predictedUsage(w, params[6], params[7]);
@@ -114,57 +373,15 @@ public class UserParamFitter {
         MultivariateMatrixFunction jacobianFunction = new MultivariateMatrixFunction(){
             @Override
             public double[][] value(double[] params) throws IllegalArgumentException {
-                double[][] jacobian = new double[usages.length][params.length];
-                for(int i = 0; i < usages.length; i++)
-                    for(int j = 0; j < params.length; j++)
-                        jacobian[i][j] = 0;
-
-                double phi = params[6];
-                double alpha = params[7];
+                double[][] jacobian = jacobianBuffer != null ? jacobianBuffer : new double[usages.length][params.length];
                 for(int i = 0; i < usages.length; i++) {
-                    int day = dayOfWeek(dates[i]);
-                    double w = params[day];
-                    if(day == 6)
-                        w = 0.25 - getSumWeight(params);
-                    double usagePredicted = predictedUsage(w, phi, alpha);
-
-                    if (userType == User.UserType.LIGHT || userType == User.UserType.MODERATE) {
-                        //update diff w.r.t w_j
-                        if(day != 6)
-                            jacobian[i][day] +=  Math.pow(w / phi, 1 / alpha - 1) / (alpha * phi);
-                        else {
-                            for(int j = 0; j < 6; j++)
-                                jacobian[i][j] -= Math.pow(w / phi, 1 / alpha - 1) / (alpha * phi);
-                        }
-                        //update diff w.r.t phi
-                        jacobian[i][6] -=  Math.pow(w / phi, 1 / alpha - 1) * w / (alpha * phi * phi);
-                        //update diff w.r.t alpha
-                        jacobian[i][7] -=  usagePredicted / (alpha * alpha) * Math.log( w / phi);
-                    } else {
-                        //update diff w.r.t w_j
-                        if(day != 6)
-                            jacobian[i][day] +=  Math.pow(w / (phi + overage), 1 / alpha - 1) / (alpha * (phi + overage));
-                        else {
-                            for(int j = 0; j < 6; j++)
-                                jacobian[i][j] -= Math.pow(w / (phi + overage), 1 / alpha - 1) / (alpha * (phi + overage));
-                        }
-                        //update diff w.r.t phi
-                        jacobian[i][6] -=  Math.pow(w / (phi + overage), 1 / alpha - 1) * w / (alpha * (phi + overage) * (phi + overage));
-                        //update diff w.r.t alpha
-                        jacobian[i][7] -= usagePredicted / (alpha * alpha) * Math.log(w / (phi + overage));
-                    }
+                    Arrays.fill(jacobian[i], 0);
+                    addJacobianRow(jacobian[i], days[i], params, 1, userType, overage);
                 }
                 return jacobian;
             }
         };
 
-        // initial solution
-        double[] initialParams = new double[8];
-        for(int i = 0; i < 6; i++)
-            initialParams[i] = 0.25 / 7;
-        initialParams[6] = 0.01;
-        initialParams[7] = 1;
-
         //least square optimization
         LeastSquaresProblem problem = new LeastSquaresBuilder().
                 start(initialParams).
@@ -175,14 +392,74 @@ public class UserParamFitter {
                 maxIterations(1000000).
                 build();
 
-        LeastSquaresOptimizer.Optimum optimum = new LevenbergMarquardtOptimizer().optimize(problem);
+        LeastSquaresOptimizer.Optimum optimum;
+        try {
+            optimum = new LevenbergMarquardtOptimizer().optimize(problem);
+        } catch (MathIllegalStateException e) {
+            Metrics.GLOBAL.counter("fitter.samples.failures").increment();
+            throw e;
+        }
+        SAMPLES_ITERATIONS.record(optimum.getIterations());
+        SAMPLES_EVALUATIONS.record(optimum.getEvaluations());
         RealVector sol = optimum.getPoint();
 
         //System.out.println(optimum.getCost());
         //System.out.println(optimum.getResiduals());
         //System.out.println(optimum.getRMS());
-        this.params = sol.toArray();
-        fitted =true;
+        return sol.toArray();
+    }
+
+    /**
+     * add the derivatives of the predicted usage of given day of week w.r.t. the parameters to a Jacobian row
+     * @param row - Jacobian row
+     * @param day - day of week, 0 = Sunday
+     * @param params - current parameters
+     * @param scale - multiplier of the derivatives
+     * @param userType
+     * @param overage
+     */
+    static void addJacobianRow(double[] row, int day, double[] params, double scale, User.UserType userType, double overage){
+        double phi = params[6];
+        double alpha = params[7];
+        double w = weightOfDay(params, day);
+        // marginal price of data, phi for light and moderate users and phi + overage for heavy users
+        double price = (userType == User.UserType.LIGHT || userType == User.UserType.MODERATE) ? phi : phi + overage;
+        double usagePredicted = Math.pow(w / price, 1.0 / alpha);
+        double diffW = scale * Math.pow(w / price, 1 / alpha - 1) / (alpha * price);
+
+        //update diff w.r.t w_j
+        if(day != 6)
+            row[day] += diffW;
+        else {
+            for(int j = 0; j < 6; j++)
+                row[j] -= diffW;
+        }
+        //update diff w.r.t phi
+        row[6] -= diffW * w / price;
+        //update diff w.r.t alpha
+        row[7] -= scale * usagePredicted / (alpha * alpha) * Math.log(w / price);
+    }
+
+    /**
+     * weight of given day of week, the last weight is 0.25 - w0 - ... - w5
+     * @param params
+     * @param day - day of week, 0 = Sunday
+     * @return
+     */
+    private static double weightOfDay(double[] params, int day){
+        if(day != 6)
+            return params[day];
+        double sum = 0;
+        for(int i = 0; i < 6; i++)
+            sum += params[i];
+        return 0.25 - sum;
+    }
+
+    private static boolean isFinite(double[] params){
+        for(double param : params)
+            if(Double.isNaN(param) || Double.isInfinite(param))
+                return false;
+        return true;
     }
 
 //    @Deprecated
@@ -278,16 +555,25 @@ public class UserParamFitter {
     }
 
 
+    /**
+     * day of week of each date, 0 = Sunday
+     * @param dates
+     * @return
+     */
+    private static int[] daysOfWeek(Date[] dates){
+        int[] days = WeekdayCalendar.daysOfWeek(dates);
+        for(int i = 0; i < days.length; i++)
+            days[i] %= 7;
+        return days;
+    }
+
     /**
      * get day of week from date
      * @param date
-     * @return
+     * @return 0 = Sunday
      */
     public int dayOfWeek(Date date){
-        Calendar c = Calendar.getInstance();
-        c.setTime(date);
-        int dayOfWeek = c.get(Calendar.DAY_OF_WEEK);
-        return dayOfWeek - 1;
+        return WeekdayCalendar.dayOfWeek(date) % 7;
     }
 
     /**
@@ -298,6 +584,19 @@ public class UserParamFitter {
      * @return
      */
     public double predictedUsage(double weight, double phi, double alpha){
+        return predictedUsage(weight, phi, alpha, userType, overage);
+    }
+
+    /**
+     * predict daily usage of given user type
+     * @param weight
+     * @param phi
+     * @param alpha
+     * @param userType
+     * @param overage
+     * @return
+     */
+    public static double predictedUsage(double weight, double phi, double alpha, User.UserType userType, double overage){
         if(userType == User.UserType.LIGHT || userType == User.UserType.MODERATE)
             return Math.pow(weight / phi, 1.0 / alpha);
         else
@@ -308,43 +607,51 @@ public class UserParamFitter {
 
     /**
      * getSimulatedParamStds: assumes usages follows normal distribution, simulate w_i and solve alpha and phi to calculate
-     * standard deviations of alpha and phi
+     * standard deviations of alpha and phi. Paths are spread across the common fork join pool.
      */
     public UserParamsStd getSimulatedParamStds(int numPaths) throws Exception {
-        double usageStd = calcStd(this.usages);
-        double[] alphas = new double[numPaths];
-        double[] phis = new double[numPaths];
-        double[][] weights = new double[8][numPaths];
-
-        Random rand = new Random();
-        for(int i = 0; i < numPaths; i++){
-            double[] simulatedUsages = Arrays.copyOf(usages, usages.length);
-            // add perturbations
-            for(int j = 0; j < simulatedUsages.length; j++){
-                simulatedUsages[j] += rand.nextGaussian() * usageStd;
-                simulatedUsages[j] = Math.max(simulatedUsages[j], 0);
-            }
+        return getSimulatedParamStds(numPaths, new BootstrapEngine());
+    }
 
-            UserParamFitter userParamsFitter = new UserParamFitter(simulatedUsages, this.dates, this.overage, this.userType);
-            for(int j = 1; j < 8; j++)
-                weights[j][i] = userParamsFitter.getDailyWeight(j);
-            alphas[i] = userParamsFitter.getAlpha();
-            phis[i] = userParamsFitter.getPhi();
-        }
+    /**
+     * getSimulatedParamStds using the given bootstrap engine
+     * @param numPaths
+     * @param engine
+     * @return
+     * @throws Exception
+     */
+    public UserParamsStd getSimulatedParamStds(int numPaths, BootstrapEngine engine) throws Exception {
+        return engine.run(this, numPaths).toUserParamsStd();
+    }
 
-        UserParamsStd userParamsStd = new UserParamsStd();
-        userParamsStd.w1 = calcStd(weights[1]);
-        userParamsStd.w2 = calcStd(weights[2]);
-        userParamsStd.w3 = calcStd(weights[3]);
-        userParamsStd.w4 = calcStd(weights[4]);
-        userParamsStd.w5 = calcStd(weights[5]);
-        userParamsStd.w6 = calcStd(weights[6]);
-        userParamsStd.w7 = calcStd(weights[7]);
+    /**
+     * getSimulatedParamStds stopping as soon as the standard deviations are within the tolerance of the rule
+     * @param rule - path budget and tolerance
+     * @return
+     * @throws Exception
+     */
+    public UserParamsStd getSimulatedParamStds(BootstrapEngine.StoppingRule rule) throws Exception {
+        return getSimulatedParamStds(rule, new BootstrapEngine());
+    }
 
-        userParamsStd.alpha = calcStd(alphas);
-        userParamsStd.phi = calcStd(phis);
+    /**
+     * adaptive getSimulatedParamStds using the given bootstrap engine
+     * @param rule
+     * @param engine
+     * @return
+     * @throws Exception
+     */
+    public UserParamsStd getSimulatedParamStds(BootstrapEngine.StoppingRule rule, BootstrapEngine engine) throws Exception {
+        return engine.run(this, rule).toUserParamsStd();
+    }
 
-        return userParamsStd;
+    /**
+     * getAnalyticParamStds: standard deviations of the parameters from the Jacobian at the optimum, see
+     * {@link AnalyticUncertainty}
+     * @return
+     */
+    public UserParamsStd getAnalyticParamStds(){
+        return AnalyticUncertainty.estimate(this).toUserParamsStd();
     }
 
     /**
@@ -0,0 +1,295 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.locks.StampedLock;
+
+/**
+ * Persistent store of calibrated user parameters, keyed by userId, in a memory-mapped file.
+ * The file is a 64 byte header followed by fixed-width records:
+ *   userId - 2 byte length and up to 62 bytes of UTF-8
+ *   params - 9 doubles: w1 ... w7, phi, alpha
+ *   stds   - 9 doubles: standard deviations of the params
+ *   timestamp - long, time of the fit in milliseconds since the epoch
+ * Records are updated in place or appended, the file grows by mapped segments. Opening a store maps the file and
+ * only reads the userIds to rebuild the index, parameters stay off heap until they are looked up.
+ * There is one writer at a time; readers do not block, a read that overlaps a write of the same record is retried
+ * under the lock. Writes reach the OS when they are made, {@link #flush()} forces them to disk.
+ */
+public class UserParamStore implements Closeable {
+    public static final int NUM_PARAMS = 9;
+    public static final int MAX_ID_BYTES = 62;
+
+    private static final int MAGIC = 0x55505331; // "UPS1"
+    private static final int VERSION = 1;
+    private static final int HEADER_BYTES = 64;
+    private static final int COUNT_OFFSET = 16;
+    private static final int ID_BYTES = 2 + MAX_ID_BYTES;
+    private static final int PARAMS_OFFSET = ID_BYTES;
+    private static final int STDS_OFFSET = PARAMS_OFFSET + 8 * NUM_PARAMS;
+    private static final int TIMESTAMP_OFFSET = STDS_OFFSET + 8 * NUM_PARAMS;
+    static final int RECORD_BYTES = TIMESTAMP_OFFSET + 8;
+    private static final int SEGMENT_RECORDS = 1 << 16;
+    private static final long SEGMENT_BYTES = (long) SEGMENT_RECORDS * RECORD_BYTES;
+
+    private final RandomAccessFile file;
+    private final FileChannel channel;
+    private final MappedByteBuffer header;
+    private volatile MappedByteBuffer[] segments;
+    private final ConcurrentMap<String, Integer> index = new ConcurrentHashMap<String, Integer>();
+    private final StampedLock lock = new StampedLock();
+    private volatile int count;
+    private volatile boolean closed;
+
+    /**
+     * parameters of one user
+     */
+    public static final class Record{
+        public final String userId;
+        public final double[] params;  // w1 ... w7, phi, alpha
+        public final double[] stds;
+        public final long timestamp;  // time of the fit, milliseconds since the epoch
+
+        Record(String userId, double[] params, double[] stds, long timestamp){
+            this.userId = userId;
+            this.params = params;
+            this.stds = stds;
+            this.timestamp = timestamp;
+        }
+    }
+
+    /**
+     * receives the records of a scan, the arrays are reused from one record to the next
+     */
+    public interface Visitor{
+        void visit(String userId, double[] params, double[] stds, long timestamp);
+    }
+
+    private UserParamStore(RandomAccessFile file) throws IOException {
+        this.file = file;
+        this.channel = file.getChannel();
+        boolean created = file.length() == 0;
+        if(created)
+            file.setLength(HEADER_BYTES);
+        header = channel.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_BYTES);
+        if(created){
+            header.putInt(0, MAGIC);
+            header.putInt(4, VERSION);
+            header.putInt(8, RECORD_BYTES);
+            header.putLong(COUNT_OFFSET, 0);
+        }else if(header.getInt(0) != MAGIC || header.getInt(4) != VERSION || header.getInt(8) != RECORD_BYTES){
+            throw new IOException("not a user parameter store of version " + VERSION);
+        }
+        long stored = header.getLong(COUNT_OFFSET);
+        if(stored < 0 || stored > Integer.MAX_VALUE || HEADER_BYTES + stored * RECORD_BYTES > file.length())
+            throw new IOException("user parameter store is truncated, " + stored + " records in header, " + file.length() + " bytes");
+        count = (int) stored;
+
+        int numSegments = (int) ((file.length() - HEADER_BYTES) / SEGMENT_BYTES);
+        segments = new MappedByteBuffer[numSegments];
+        for(int i = 0; i < numSegments; i++)
+            segments[i] = mapSegment(i);
+        ensureCapacity(count);
+
+        byte[] id = new byte[MAX_ID_BYTES];
+        for(int i = 0; i < count; i++)
+            index.put(readId(i, id), i);
+    }
+
+    /**
+     * open a store, creating the file if it does not exist
+     * @param path
+     * @return
+     * @throws IOException if the file is not a store or is truncated
+     */
+    public static UserParamStore open(File path) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(path, "rw");
+        try {
+            return new UserParamStore(file);
+        } catch (IOException e) {
+            file.close();
+            throw e;
+        }
+    }
+
+    /**
+     * number of users
+     * @return
+     */
+    public int size(){
+        return count;
+    }
+
+    /**
+     * store the parameters of a user, replacing the previous ones
+     * @param userId - at most 62 bytes of UTF-8
+     * @param params - w1 ... w7, phi, alpha
+     * @param stds - standard deviations of params
+     * @param timestamp - time of the fit, milliseconds since the epoch
+     * @throws IOException if the file cannot grow
+     */
+    public void put(String userId, double[] params, double[] stds, long timestamp) throws IOException {
+        byte[] id = userId.getBytes(StandardCharsets.UTF_8);
+        if(id.length == 0 || id.length > MAX_ID_BYTES)
+            throw new IllegalArgumentException("userId should have 1 to " + MAX_ID_BYTES + " bytes: " + userId);
+        if(params.length != NUM_PARAMS || stds.length != NUM_PARAMS)
+            throw new IllegalArgumentException("expected " + NUM_PARAMS + " params and stds");
+        long stamp = lock.writeLock();
+        try {
+            checkOpen();
+            Integer existing = index.get(userId);
+            int i = existing != null ? existing : count;
+            if(existing == null)
+                ensureCapacity(count + 1);
+            ByteBuffer segment = segments[i / SEGMENT_RECORDS];
+            int offset = (i % SEGMENT_RECORDS) * RECORD_BYTES;
+            segment.putShort(offset, (short) id.length);
+            for(int j = 0; j < id.length; j++)
+                segment.put(offset + 2 + j, id[j]);
+            for(int j = 0; j < NUM_PARAMS; j++){
+                segment.putDouble(offset + PARAMS_OFFSET + 8 * j, params[j]);
+                segment.putDouble(offset + STDS_OFFSET + 8 * j, stds[j]);
+            }
+            segment.putLong(offset + TIMESTAMP_OFFSET, timestamp);
+            if(existing == null){
+                // publish the record once it is written
+                count = i + 1;
+                header.putLong(COUNT_OFFSET, count);
+                index.put(userId, i);
+            }
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * point lookup
+     * @param userId
+     * @return parameters of the user, null if it is not stored
+     */
+    public Record get(String userId){
+        Integer i = index.get(userId);
+        if(i == null)
+            return null;
+        double[] params = new double[NUM_PARAMS];
+        double[] stds = new double[NUM_PARAMS];
+        long timestamp = read(i, params, stds);
+        return new Record(userId, params, stds, timestamp);
+    }
+
+    /**
+     * visit all records in storage order, records put during the scan may or may not be visited
+     * @param visitor
+     */
+    public void scan(Visitor visitor){
+        double[] params = new double[NUM_PARAMS];
+        double[] stds = new double[NUM_PARAMS];
+        byte[] id = new byte[MAX_ID_BYTES];
+        int n = count;
+        for(int i = 0; i < n; i++){
+            // ids are never overwritten with another id, the record of a user stays at the same index
+            String userId = readId(i, id);
+            long timestamp = read(i, params, stds);
+            visitor.visit(userId, params, stds, timestamp);
+        }
+    }
+
+    /**
+     * force written records to disk
+     */
+    public void flush(){
+        long stamp = lock.writeLock();
+        try {
+            checkOpen();
+            for(MappedByteBuffer segment : segments)
+                segment.force();
+            header.force();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * flush and close the file, the store cannot be used afterwards
+     * @throws IOException
+     */
+    @Override
+    public void close() throws IOException {
+        if(closed)
+            return;
+        flush();
+        long stamp = lock.writeLock();
+        try {
+            closed = true;
+            file.close();
+        } finally {
+            lock.unlockWrite(stamp);
+        }
+    }
+
+    /**
+     * read params and stds of record i, retried under the read lock if a write overlapped
+     * @return timestamp of the record
+     */
+    private long read(int i, double[] params, double[] stds){
+        long stamp = lock.tryOptimisticRead();
+        long timestamp = readRecord(i, params, stds);
+        if(lock.validate(stamp))
+            return timestamp;
+        stamp = lock.readLock();
+        try {
+            return readRecord(i, params, stds);
+        } finally {
+            lock.unlockRead(stamp);
+        }
+    }
+
+    private long readRecord(int i, double[] params, double[] stds){
+        ByteBuffer segment = segments[i / SEGMENT_RECORDS];
+        int offset = (i % SEGMENT_RECORDS) * RECORD_BYTES;
+        for(int j = 0; j < NUM_PARAMS; j++){
+            params[j] = segment.getDouble(offset + PARAMS_OFFSET + 8 * j);
+            stds[j] = segment.getDouble(offset + STDS_OFFSET + 8 * j);
+        }
+        return segment.getLong(offset + TIMESTAMP_OFFSET);
+    }
+
+    private String readId(int i, byte[] buffer){
+        ByteBuffer segment = segments[i / SEGMENT_RECORDS];
+        int offset = (i % SEGMENT_RECORDS) * RECORD_BYTES;
+        int length = Math.min(Math.max(segment.getShort(offset), 0), MAX_ID_BYTES);
+        for(int j = 0; j < length; j++)
+            buffer[j] = segment.get(offset + 2 + j);
+        return new String(buffer, 0, length, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * map segments until the file holds at least n records
+     */
+    private void ensureCapacity(int n) throws IOException {
+        int needed = (n + SEGMENT_RECORDS - 1) / SEGMENT_RECORDS;
+        if(needed <= segments.length)
+            return;
+        MappedByteBuffer[] grown = Arrays.copyOf(segments, needed);
+        for(int i = segments.length; i < needed; i++)
+            grown[i] = mapSegment(i);
+        segments = grown;
+    }
+
+    private MappedByteBuffer mapSegment(int i) throws IOException {
+        // mapping past the end of the file grows it
+        return channel.map(FileChannel.MapMode.READ_WRITE, HEADER_BYTES + i * SEGMENT_BYTES, SEGMENT_BYTES);
+    }
+
+    private void checkOpen(){
+        if(closed)
+            throw new IllegalStateException("user parameter store is closed");
+    }
+}
@@ -0,0 +1,128 @@
+import java.util.Arrays;
+
+/**
+ * Plan independent reductions of a user, to score many data plans for the same user.
+ * Utilities.calculateDataPlanUtility evaluates sum(w^(1/alpha)) over all daily weights two or three times per plan.
+ * The kernel computes that sum once, with one pow per distinct weight (a month only has seven distinct weekday
+ * weights), so a data plan costs at most two pow calls: one for its overage rate and one for its quota when the
+ * user is heavy.
+ */
+public class UserUtilityKernel {
+    public final double alpha;
+    public final double phi;
+    public final double sum;  // sum of w^(1/alpha) over daily weights
+    public final double sumPowAlpha;  // sum^alpha
+    public final double lightUsage;  // monthly usage when data costs phi: sum * phi^(-1/alpha)
+
+    public UserUtilityKernel(User u){
+        this(u.dailyWeights, u.alpha, u.phi);
+    }
+
+    /**
+     * @param dailyWeights - daily weights of the month
+     * @param alpha
+     * @param phi
+     */
+    public UserUtilityKernel(double[] dailyWeights, double alpha, double phi){
+        this.alpha = alpha;
+        this.phi = phi;
+
+        // group equal weights and raise each distinct weight once
+        double[] weights = dailyWeights.clone();
+        Arrays.sort(weights);
+        double sum = 0;
+        int i = 0;
+        while (i < weights.length) {
+            int j = i + 1;
+            while (j < weights.length && weights[j] == weights[i])
+                j++;
+            sum += (j - i) * Math.pow(weights[i], 1 / alpha);
+            i = j;
+        }
+        this.sum = sum;
+        this.sumPowAlpha = Math.pow(sum, alpha);
+        this.lightUsage = sum * Math.pow(phi, -1 / alpha);
+    }
+
+    /**
+     * monthly usage when data costs phi + overage
+     * @param overage
+     * @return
+     */
+    public double heavyUsage(double overage){
+        return sum * Math.pow(phi + overage, -1 / alpha);
+    }
+
+    /**
+     * type of user for the given data plan, same as Utilities.calculateUserType
+     * @param dp
+     * @return
+     */
+    public User.UserType userType(DataPlan dp){
+        if(dp.quota > lightUsage)
+            return User.UserType.LIGHT;
+        if(dp.quota < heavyUsage(dp.overage))
+            return User.UserType.HEAVY;
+        return User.UserType.MODERATE;
+    }
+
+    /**
+     * monthly utility of the data plan, same as Utilities.calculateDataPlanUtility
+     * @param dp
+     * @return
+     */
+    public double utility(DataPlan dp){
+        return utility(dp.quota, dp.overage, dp.price);
+    }
+
+    /**
+     * monthly utility of a data plan
+     * @param quota
+     * @param overage
+     * @param price
+     * @return
+     */
+    public double utility(double quota, double overage, double price){
+        if(quota > lightUsage)
+            return utility(sumPowAlpha, lightUsage, lightUsage, phi, alpha, quota, overage, price);
+        return utility(sumPowAlpha, lightUsage, heavyUsage(overage), phi, alpha, quota, overage, price);
+    }
+
+    /**
+     * profit of the ISP from this user, same cases as Utilities.ISPProfit
+     * @param dp
+     * @param sigma - cost of data for the ISP
+     * @return
+     */
+    public double profit(DataPlan dp, double sigma){
+        if(dp.quota > lightUsage)
+            return dp.price - sigma * lightUsage;
+        double heavyUsage = heavyUsage(dp.overage);
+        if(dp.quota < heavyUsage)
+            return dp.price + dp.overage * (heavyUsage - dp.quota) - sigma * heavyUsage;
+        //moderate usage
+        return dp.price - sigma * dp.quota;
+    }
+
+    /**
+     * monthly utility of a data plan from the reductions of a user
+     * @param sumPowAlpha - (sum of w^(1/alpha))^alpha
+     * @param lightUsage - usage when data costs phi, sum * phi^(-1/alpha)
+     * @param heavyUsage - usage when data costs phi + overage, sum * (phi + overage)^(-1/alpha)
+     * @param phi
+     * @param alpha
+     * @param quota
+     * @param overage
+     * @param price
+     * @return
+     */
+    public static double utility(double sumPowAlpha, double lightUsage, double heavyUsage,
+                                 double phi, double alpha, double quota, double overage, double price){
+        if(quota > lightUsage)
+            return alpha / (1 - alpha) * lightUsage * phi - price;
+        if(quota < heavyUsage)
+            return sumPowAlpha * Math.pow(quota, 1 - alpha) / (1 - alpha) - phi * quota - price;
+        //moderate usage
+        return alpha / (1 - alpha) * heavyUsage * (phi + overage) + overage * quota - price;
+    }
+}
@@ -1,8 +1,13 @@
-import java.util.Calendar;
+import java.util.ArrayList;
 import java.util.Date;
-import java.util.TreeMap;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ForkJoinPool;
 
 public class Utilities {
+    private static final int TOP_PLANS_CHUNK_SIZE = 4096;  // plans scored by one task of getTopDataPlans
+
     /**
      * given user and data plan, return the type of user
      * @param u - User object
@@ -58,25 +63,101 @@ public class Utilities {
     }
 
     /**
-     * Get Top k dataplans
+     * Get Top k dataplans: the k data plans with the highest utility for the user, best first.
+     * Plans with equal utility are ranked in catalog order.
+     * @param user
+     * @param dps - data plans
+     * @param k - number of data plans to return
+     * @return
      */
+    public static DataPlan[] getTopDataPlans(User user, final DataPlan[] dps, int k){
+        final UserUtilityKernel kernel = new UserUtilityKernel(user);
+        int[] top = getTopIndexes(new PlanScorer(dps.length) {
+            @Override
+            double score(int i) {
+                return kernel.utility(dps[i]);
+            }
+        }, k);
+        DataPlan[] topDataPlans = new DataPlan[top.length];
+        for(int i = 0; i < top.length; i++)
+            topDataPlans[i] = dps[top[i]];
+        return topDataPlans;
+    }
 
-    public static DataPlan[] getTopDataPlans(User user, DataPlan[] dps, int k){
-        TreeMap<Double, Integer> utilitiesMap = new TreeMap<Double, Integer>();
-        for(int i = 0; i < dps.length; i++){
-            double utility = calculateDataPlanUtility(user, dps[i]);
-            utilitiesMap.put(-utility, i);
+    /**
+     * Get Top k dataplans of a catalog snapshot, best first.
+     * Plans with equal utility are ranked in catalog order.
+     * @param user
+     * @param plans - catalog snapshot
+     * @param k - number of data plans to return
+     * @return
+     */
+    public static DataPlan[] getTopDataPlans(User user, final DataPlanCatalog.Snapshot plans, int k){
+        final UserUtilityKernel kernel = new UserUtilityKernel(user);
+        int[] top = getTopIndexes(new PlanScorer(plans.size()) {
+            @Override
+            double score(int i) {
+                return kernel.utility(plans.quotas[i], plans.overages[i], plans.prices[i]);
+            }
+        }, k);
+        DataPlan[] topDataPlans = new DataPlan[top.length];
+        for(int i = 0; i < top.length; i++)
+            topDataPlans[i] = plans.get(top[i]);
+        return topDataPlans;
+    }
+
+    /**
+     * utility of the i-th of a number of data plans
+     */
+    private static abstract class PlanScorer {
+        final int size;
+
+        PlanScorer(int size){
+            this.size = size;
         }
 
-        DataPlan[] topDataPlans = new DataPlan[Math.min(dps.length, k)];
-        int i = 0;
-        for(Double utility : utilitiesMap.keySet()){
-            System.out.println("Utility: " + (-utility));
-            topDataPlans[i++] = dps[utilitiesMap.get(utility)];
-            System.out.println(topDataPlans[i - 1]);
-            if(i >= topDataPlans.length) break;
+        abstract double score(int i);
+    }
+
+    /**
+     * indexes of the k best scored plans, best first. Large catalogs are scored in chunks on the common pool,
+     * each chunk keeps its own top k and the chunks are merged.
+     */
+    private static int[] getTopIndexes(final PlanScorer scorer, final int k){
+        if(k < 0)
+            throw new IllegalArgumentException("k should not be negative");
+        if(scorer.size <= TOP_PLANS_CHUNK_SIZE || k == 0){
+            TopK top = new TopK(Math.min(scorer.size, k));
+            for(int i = 0; i < scorer.size; i++)
+                top.offer(i, scorer.score(i));
+            return top.sortedIndexes();
         }
-        return topDataPlans;
+
+        List<Callable<TopK>> chunks = new ArrayList<Callable<TopK>>();
+        for(int from = 0; from < scorer.size; from += TOP_PLANS_CHUNK_SIZE){
+            final int start = from;
+            final int end = Math.min(from + TOP_PLANS_CHUNK_SIZE, scorer.size);
+            chunks.add(new Callable<TopK>() {
+                @Override
+                public TopK call() {
+                    TopK top = new TopK(Math.min(end - start, k));
+                    for(int i = start; i < end; i++)
+                        top.offer(i, scorer.score(i));
+                    return top;
+                }
+            });
+        }
+        TopK top = new TopK(Math.min(scorer.size, k));
+        try {
+            for(TopK chunk : ParallelTasks.invokeAll(ForkJoinPool.commonPool(), chunks))
+                top.merge(chunk);
+        } catch (RuntimeException e) {
+            throw e;
+        } catch (Exception e) {
+            // scoring does not throw checked exceptions
+            throw new IllegalStateException(e);
+        }
+        return top.sortedIndexes();
     }
 
     /**
@@ -113,65 +194,95 @@ public class Utilities {
      */
     public static double ISPProfit(DataPlan dp, double sigma, User[] users){
         double profit = 0;
-        for(int i = 0; i < users.length; i++){
-            User user = users[i];
-            User.UserType userType = calculateUserType(user, dp);
-            if(userType == User.UserType.LIGHT){
-                double usage = 0;
-                for(int j = 0; j < user.dailyWeights.length; j++)
-                    usage += Math.pow(user.dailyWeights[j] / user.phi, 1 / user.alpha);
-                profit += dp.price - sigma * usage;
-            }else if(userType == User.UserType.HEAVY){
-                double usage = 0;
-                for(int j = 0; j < user.dailyWeights.length; j++)
-                    usage += Math.pow(user.dailyWeights[j] / (dp.overage + user.phi), 1 / user.alpha);
-                profit += dp.price + dp.overage * (usage - dp.quota) - sigma * usage;
-            }else{//moderate usage
-                profit += (dp.price - sigma * dp.quota);
-            }
-        }
+        for(int i = 0; i < users.length; i++)
+            profit += new UserUtilityKernel(users[i]).profit(dp, sigma);
         return profit;
     }
 
     /**
-     * get dates of a month
+     * get dates of a month, at midnight in the default time zone
      * @param year
-     * @param month
+     * @param month - 1 to 12, other values roll over
      * @return
      */
     public static Date[] daysOfMonth(int year, int month){
-        year -= 1900;
-        month -= 1;
-        Calendar cal = Calendar.getInstance();
-        cal.setTime(new Date(year, month, 1));
-        cal.set(Calendar.DAY_OF_MONTH, 1);
-        int myMonth=cal.get(Calendar.MONTH);
-        int len = cal.getActualMaximum(Calendar.DAY_OF_MONTH);
-        Date[] days = new Date[len];
-        int count = 0;
-
-        while (myMonth==cal.get(Calendar.MONTH)) {
-            days[count] = (Date) cal.getTime().clone();
-            count++;
-            cal.add(Calendar.DAY_OF_MONTH, 1);
-        }
-
+        long first = WeekdayCalendar.epochDay(year, month, 1);
+        Date[] days = new Date[WeekdayCalendar.lengthOfMonth(year, month)];
+        for(int i = 0; i < days.length; i++)
+            days[i] = WeekdayCalendar.startOfDay(first + i);
         return days;
     }
 
     /**
      * get day of week of given date
      * @param date
-     * @return
+     * @return Monday = 1 ... Sunday = 7
      */
     public static int dayOfWeek(Date date){
-        Calendar c = Calendar.getInstance();
-        c.setTime(date);
-        int dayOfWeek = c.get(Calendar.DAY_OF_WEEK);
-        dayOfWeek --;
-        if(dayOfWeek == 0)
-            dayOfWeek += 7;
-        return dayOfWeek;
+        return WeekdayCalendar.dayOfWeek(date);
+    }
+
+    /**
+     * standard normal sample from a splittable random stream (Marsaglia polar method)
+     * @param rand
+     * @return
+     */
+    public static double nextGaussian(SplittableRandom rand){
+        double v1, v2, s;
+        do {
+            v1 = 2 * rand.nextDouble() - 1;
+            v2 = 2 * rand.nextDouble() - 1;
+            s = v1 * v1 + v2 * v2;
+        } while (s >= 1 || s == 0);
+        return v1 * Math.sqrt(-2 * Math.log(s) / s);
+    }
+
+    /**
+     * select the k-th smallest element of a[from, to) in expected linear time (quickselect). The range is reordered
+     * so that a[k] holds the element a sorted range would have there, with no greater element before k and no
+     * smaller element after it. Elements are ordered as by Arrays.sort, NaN last.
+     * @param a
+     * @param from - first index, inclusive
+     * @param to - last index, exclusive
+     * @param k - absolute index in [from, to)
+     * @return a[k]
+     */
+    public static double select(double[] a, int from, int to, int k){
+        int lo = from;
+        int hi = to - 1;
+        while (hi > lo) {
+            // median of three pivot
+            int mid = (lo + hi) >>> 1;
+            if (Double.compare(a[mid], a[lo]) < 0) swap(a, mid, lo);
+            if (Double.compare(a[hi], a[lo]) < 0) swap(a, hi, lo);
+            if (Double.compare(a[hi], a[mid]) < 0) swap(a, hi, mid);
+            double pivot = a[mid];
+
+            int i = lo;
+            int j = hi;
+            while (i <= j) {
+                while (Double.compare(a[i], pivot) < 0) i++;
+                while (Double.compare(a[j], pivot) > 0) j--;
+                if (i <= j) {
+                    swap(a, i, j);
+                    i++;
+                    j--;
+                }
+            }
+            if (k <= j)
+                hi = j;
+            else if (k >= i)
+                lo = i;
+            else
+                break;
+        }
+        return a[k];
+    }
+
+    private static void swap(double[] a, int i, int j){
+        double tmp = a[i];
+        a[i] = a[j];
+        a[j] = tmp;
     }
 
     /**
@@ -0,0 +1,192 @@
+import java.io.File;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Paths needed by each {@link PathSampler} to reach stable utility bands.
+ * Users of a CSV trace (usages in bytes, fitted in MB like TestFromCSV) are calibrated with bootstrap standard
+ * deviations, and the bands of a catalog are computed with a doubling number of paths, several times with different
+ * seeds. The band error is the RMS distance of the 5% and 95% percentiles to a reference run of REFERENCE_PATHS Sobol
+ * paths, relative to the reference band width; the difference error is the same for the differences between the
+ * percentiles of each plan and those of the first plan. Plans whose reference band is empty or not finite (simulated
+ * users with a negative phi) are left out, and so are users without any other plan or whose calibration fails.
+ * INDEPENDENT is the PSEUDO sampler without common random numbers: every plan is simulated on its own draws. Errors
+ * are medians over users, paths to tolerance are the smallest number of paths from which the error stays under the
+ * tolerance.
+ */
+public class UtilityBandConvergence {
+    public static final double DEFAULT_TOLERANCE = 0.02;
+    public static final int REPLICATIONS = 16;
+    public static final int MIN_PATHS = 32;
+    public static final int MAX_PATHS = 8192;
+    public static final int REFERENCE_PATHS = 1 << 18;
+
+    /**
+     * print the band and difference errors of every sampler
+     * @param args - usage csv, data plans csv, optional tolerance, optional first date yyyy-MM-dd of the usages
+     * @throws Exception
+     */
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2){
+            System.err.println("usage: UtilityBandConvergence <usage csv> <data plans csv> [tolerance] [first date yyyy-MM-dd]");
+            System.exit(1);
+        }
+        double tolerance = args.length > 2 ? Double.parseDouble(args[2]) : DEFAULT_TOLERANCE;
+        LocalDate firstDate = args.length > 3 ? LocalDate.parse(args[3]) : LocalDate.now();
+        int firstDay = firstDate.getDayOfWeek().getValue() % 7;
+        DataPlanCatalog.Snapshot plans = new DataPlanCatalog.Snapshot(DataPlan.readDataPlansFromCSV(args[1]));
+        List<double[]> params = new ArrayList<double[]>();
+        List<double[]> stds = new ArrayList<double[]>();
+        readUsers(new File(args[0]), firstDay, params, stds);
+
+        int numCounts = Integer.numberOfTrailingZeros(MAX_PATHS / MIN_PATHS) + 1;
+        String[] names = {"PSEUDO", "ANTITHETIC", "SOBOL", "INDEPENDENT"};
+        UtilityBandEngine reference = new UtilityBandEngine(PathSampler.SOBOL);
+        // errors[sampler][count][band or difference] of each user
+        List<double[][][]> allErrors = new ArrayList<double[][][]>();
+        for(int u = 0; u < params.size(); u++){
+            UtilityBandEngine.Result exact = reference.run(params.get(u), stds.get(u), plans, REFERENCE_PATHS, 0);
+            boolean[] valid = new boolean[plans.size()];
+            int numValid = 0;
+            for(int p = 0; p < valid.length; p++){
+                double width = exact.upperUtilities[p] - exact.lowerUtilities[p];
+                valid[p] = width > 0 && !Double.isInfinite(width);
+                if(valid[p])
+                    numValid++;
+            }
+            if(numValid < 2)
+                continue;
+            double[][][] e = new double[names.length][numCounts][];
+            for(int s = 0; s < names.length; s++)
+                for(int c = 0; c < numCounts; c++)
+                    e[s][c] = errors(names[s], params.get(u), stds.get(u), plans, valid, MIN_PATHS << c, exact);
+            allErrors.add(e);
+        }
+
+        System.out.println(allErrors.size() + " users, " + plans.size() + " plans, " + REPLICATIONS + " runs per point, tolerance "
+                + tolerance);
+        print("band error", names, allErrors, 0, tolerance);
+        print("difference error", names, allErrors, 1, tolerance);
+    }
+
+    /**
+     * calibrate every user of a CSV trace
+     */
+    private static void readUsers(File csv, int firstDay, List<double[]> params, List<double[]> stds) throws Exception {
+        CsvTraceReader reader = new CsvTraceReader(csv);
+        try {
+            CsvTraceReader.Row row = new CsvTraceReader.Row();
+            while (reader.next(row)){
+                double[] usages = new double[row.length];
+                int[] days = new int[row.length];
+                for(int i = 0; i < row.length; i++){
+                    usages[i] = row.usages[i] / 1000 / 1000;
+                    days[i] = (firstDay + i) % 7;
+                }
+                try {
+                    UserParamFitter fitter = new UserParamFitter(usages, days, UncertaintyComparison.DEFAULT_OVERAGE, User.UserType.HEAVY);
+                    double[] p = new double[BootstrapEngine.NUM_PARAMS];
+                    for(int day = 1; day <= 7; day++)
+                        p[day - 1] = fitter.getDailyWeight(day);
+                    p[7] = fitter.getPhi();
+                    p[8] = fitter.getAlpha();
+                    double[] std = new BootstrapEngine().run(fitter, BootstrapEngine.StoppingRule.DEFAULT, row.userId.hashCode()).std;
+                    params.add(p);
+                    stds.add(std);
+                } catch (RuntimeException e) {
+                    System.err.println("skipped user " + row.userId + ": " + e);
+                }
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * band and difference errors of a sampler at a number of paths
+     * @param valid - plans with a finite and non empty reference band
+     */
+    private static double[] errors(String sampler, double[] params, double[] stds, DataPlanCatalog.Snapshot plans,
+                                   boolean[] valid, int numPaths, UtilityBandEngine.Result exact) throws Exception {
+        int numPlans = plans.size();
+        int base = 0;
+        while (!valid[base])
+            base++;
+        double band = 0;
+        double difference = 0;
+        int count = 0;
+        for(int r = 0; r < REPLICATIONS; r++){
+            UtilityBandEngine.Result result;
+            if(sampler.equals("INDEPENDENT")){
+                result = new UtilityBandEngine.Result(numPlans);
+                UtilityBandEngine engine = new UtilityBandEngine(PathSampler.PSEUDO);
+                for(int p = 0; p < numPlans; p++){
+                    DataPlanCatalog.Snapshot one = new DataPlanCatalog.Snapshot(new DataPlan[]{plans.get(p)});
+                    UtilityBandEngine.Result single = engine.run(params, stds, one, numPaths, (long) r * numPlans + p + 1);
+                    result.lowerUtilities[p] = single.lowerUtilities[0];
+                    result.upperUtilities[p] = single.upperUtilities[0];
+                }
+            }else{
+                result = new UtilityBandEngine(PathSampler.valueOf(sampler)).run(params, stds, plans, numPaths, r + 1);
+            }
+            for(int p = 0; p < numPlans; p++){
+                if(!valid[p] || p == base)
+                    continue;
+                double width = exact.upperUtilities[p] - exact.lowerUtilities[p];
+                double widths = width + exact.upperUtilities[base] - exact.lowerUtilities[base];
+                band += (square(result.lowerUtilities[p] - exact.lowerUtilities[p])
+                        + square(result.upperUtilities[p] - exact.upperUtilities[p])) / square(width);
+                difference += (square(result.lowerUtilities[p] - result.lowerUtilities[base] - exact.lowerUtilities[p] + exact.lowerUtilities[base])
+                        + square(result.upperUtilities[p] - result.upperUtilities[base] - exact.upperUtilities[p] + exact.upperUtilities[base]))
+                        / square(widths / 2);
+                count += 2;
+            }
+        }
+        return new double[]{Math.sqrt(band / count), Math.sqrt(difference / count)};
+    }
+
+    /**
+     * @param errors - errors[sampler][count][kind] of each user
+     * @param kind - 0 for band errors, 1 for difference errors
+     */
+    private static void print(String title, String[] names, List<double[][][]> errors, int kind, double tolerance){
+        int numCounts = Integer.numberOfTrailingZeros(MAX_PATHS / MIN_PATHS) + 1;
+        StringBuilder header = new StringBuilder(String.format("%-12s", "paths"));
+        for(int c = 0; c < numCounts; c++)
+            header.append(String.format("%9d", MIN_PATHS << c));
+        header.append("  paths to tolerance");
+        System.out.println();
+        System.out.println(title + ", median over users");
+        System.out.println(header);
+        for(int s = 0; s < names.length; s++){
+            double[] medians = new double[numCounts];
+            for(int c = 0; c < numCounts; c++){
+                double[] values = new double[errors.size()];
+                for(int u = 0; u < values.length; u++)
+                    values[u] = errors.get(u)[s][c][kind];
+                medians[c] = median(values);
+            }
+            String paths = "> " + MAX_PATHS;
+            for(int c = numCounts - 1; c >= 0 && medians[c] <= tolerance; c--)
+                paths = Integer.toString(MIN_PATHS << c);
+            StringBuilder line = new StringBuilder(String.format("%-12s", names[s]));
+            for(int c = 0; c < numCounts; c++)
+                line.append(String.format("%9.4f", medians[c]));
+            line.append("  ").append(paths);
+            System.out.println(line);
+        }
+    }
+
+    private static double median(double[] values){
+        double[] sorted = values.clone();
+        Arrays.sort(sorted);
+        int n = sorted.length;
+        return n % 2 == 1 ? sorted[n / 2] : (sorted[n / 2 - 1] + sorted[n / 2]) / 2;
+    }
+
+    private static double square(double x){
+        return x * x;
+    }
+}
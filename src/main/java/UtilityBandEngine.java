@@ -0,0 +1,194 @@
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.SplittableRandom;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Monte Carlo engine for the utility bands of data plans.
+ * Every simulated user draws its seven weekday weights, phi and alpha once, reduces them to the power sum
+ * sum(w^(1/alpha)) and scores all data plans of the catalog from that sum, so the pow terms of a user are shared by
+ * all plans. Simulated utilities are kept in one flat array per request, and the 5% and 95% percentiles of each plan
+ * are found by selection instead of sorting. Paths and plans are spread across the pool in chunks.
+ * Draws come from a {@link PathSampler}. All plans are scored on the same simulated users (common random numbers),
+ * so the differences between plans carry less noise than their bands; a run with the same seed reuses the draws of
+ * another run, e.g. to compare catalogs or successive requests of a user.
+ */
+public class UtilityBandEngine {
+    public static final int WEEKS = 4;  // simulated users have 28 daily weights, four of each day of week
+    public static final double LOWER_PERCENTILE = 0.05;
+    public static final double UPPER_PERCENTILE = 0.95;
+    public static final int DEFAULT_CHUNK_SIZE = 125;
+
+    private final ExecutorService pool;
+    private final int chunkSize;
+    private final PathSampler sampler;
+
+    /**
+     * engine drawing pseudo-random paths on the common fork join pool
+     */
+    public UtilityBandEngine(){
+        this(PathSampler.PSEUDO);
+    }
+
+    /**
+     * engine running on the common fork join pool
+     * @param sampler - source of the draws
+     */
+    public UtilityBandEngine(PathSampler sampler){
+        this(ForkJoinPool.commonPool(), DEFAULT_CHUNK_SIZE, sampler);
+    }
+
+    /**
+     * @param pool - pool the paths and plans are spread across
+     * @param chunkSize - number of paths simulated by one task
+     * @param sampler - source of the draws
+     */
+    public UtilityBandEngine(ExecutorService pool, int chunkSize, PathSampler sampler){
+        if(chunkSize <= 0)
+            throw new IllegalArgumentException("chunkSize should be positive");
+        this.pool = pool;
+        this.chunkSize = chunkSize;
+        this.sampler = sampler;
+    }
+
+    public PathSampler getSampler(){
+        return sampler;
+    }
+
+    /**
+     * utility of the calibrated user and percentiles of simulated utilities, indexed like the catalog
+     */
+    public static class Result{
+        public final double[] utilities;
+        public final double[] lowerUtilities;
+        public final double[] upperUtilities;
+
+        public Result(int numPlans){
+            utilities = new double[numPlans];
+            lowerUtilities = new double[numPlans];
+            upperUtilities = new double[numPlans];
+        }
+    }
+
+    /**
+     * run the simulation with a random seed
+     */
+    public Result run(double[] params, double[] stds, DataPlanCatalog.Snapshot plans, int numPaths) throws Exception {
+        return run(params, stds, plans, numPaths, new SplittableRandom().nextLong());
+    }
+
+    /**
+     * simulate users around the calibrated parameters and compute utility bands of every data plan.
+     * Path 0 is the calibrated user itself, path i > 0 uses draw i - 1 of the sampler.
+     * @param params - w1 ... w7, phi, alpha
+     * @param stds - standard deviations of params, same order
+     * @param plans - data plans to score
+     * @param numPaths - number of simulated users
+     * @param seed - seed of the draws
+     * @return utilities and their percentiles
+     */
+    public Result run(final double[] params, final double[] stds, final DataPlanCatalog.Snapshot plans, final int numPaths, long seed) throws Exception {
+        if(numPaths <= 0)
+            throw new IllegalArgumentException("numPaths should be positive");
+        final int numPlans = plans.size();
+        // simulated utilities of plan p are samples[p * numPaths, (p + 1) * numPaths)
+        final double[] samples = new double[numPlans * numPaths];
+        final PlanOverages overages = new PlanOverages(plans.overages);
+
+        PathSampler.Run draws = sampler.newRun(BootstrapEngine.NUM_PARAMS, seed);
+        List<Callable<Void>> simulations = new ArrayList<Callable<Void>>();
+        for(int from = 0; from < numPaths; from += chunkSize){
+            final int start = from;
+            final int end = Math.min(from + chunkSize, numPaths);
+            final PathSampler.Chunk chunk = draws.chunk(Math.max(start - 1, 0));
+            simulations.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    simulate(params, stds, plans, overages, start, end, numPaths, chunk, samples);
+                    return null;
+                }
+            });
+        }
+        ParallelTasks.invokeAll(pool, simulations);
+
+        final Result result = new Result(numPlans);
+        final int lower = (int) (numPaths * LOWER_PERCENTILE);
+        final int upper = (int) (numPaths * UPPER_PERCENTILE);
+        List<Callable<Void>> selections = new ArrayList<Callable<Void>>();
+        for(int p = 0; p < numPlans; p++){
+            final int plan = p;
+            selections.add(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    int offset = plan * numPaths;
+                    result.utilities[plan] = samples[offset];
+                    result.lowerUtilities[plan] = Utilities.select(samples, offset, offset + numPaths, offset + lower);
+                    // elements after the lower percentile are not smaller than it
+                    result.upperUtilities[plan] = Utilities.select(samples, offset + lower, offset + numPaths, offset + upper);
+                    return null;
+                }
+            });
+        }
+        ParallelTasks.invokeAll(pool, selections);
+        return result;
+    }
+
+    /**
+     * simulate paths [start, end) and score every plan for each of them
+     */
+    private static void simulate(double[] params, double[] stds, DataPlanCatalog.Snapshot plans, PlanOverages overages,
+                                 int start, int end, int numPaths, PathSampler.Chunk draws, double[] samples){
+        double[] x = new double[BootstrapEngine.NUM_PARAMS];
+        double[] z = new double[BootstrapEngine.NUM_PARAMS];
+        double[] heavyScales = new double[overages.distinct.length];
+        for(int path = start; path < end; path++){
+            if(path > 0)
+                draws.next(z);
+            for(int i = 0; i < x.length; i++)
+                x[i] = path == 0 ? params[i] : params[i] + z[i] * stds[i];
+            double phi = x[7];
+            double alpha = x[8];
+
+            double sum = 0;
+            for(int day = 0; day < 7; day++)
+                sum += Math.pow(x[day], 1 / alpha);
+            sum *= WEEKS;
+            double sumPowAlpha = Math.pow(sum, alpha);
+            double lightUsage = sum * Math.pow(phi, -1 / alpha);
+            for(int o = 0; o < heavyScales.length; o++)
+                heavyScales[o] = Math.pow(phi + overages.distinct[o], -1 / alpha);
+
+            for(int p = 0; p < plans.size(); p++)
+                samples[p * numPaths + path] = UserUtilityKernel.utility(sumPowAlpha, lightUsage, sum * heavyScales[overages.index[p]],
+                        phi, alpha, plans.quotas[p], plans.overages[p], plans.prices[p]);
+        }
+    }
+
+    /**
+     * distinct overage rates of a catalog, (phi + overage)^(-1/alpha) is computed once per distinct rate
+     */
+    private static class PlanOverages{
+        final double[] distinct;
+        final int[] index;  // index of each plan's rate in distinct
+
+        PlanOverages(double[] overages){
+            Map<Double, Integer> indexes = new HashMap<Double, Integer>();
+            index = new int[overages.length];
+            for(int p = 0; p < overages.length; p++){
+                Integer i = indexes.get(overages[p]);
+                if(i == null){
+                    i = indexes.size();
+                    indexes.put(overages[p], i);
+                }
+                index[p] = i;
+            }
+            distinct = new double[indexes.size()];
+            for(Map.Entry<Double, Integer> entry : indexes.entrySet())
+                distinct[entry.getValue()] = entry.getKey();
+        }
+    }
+}
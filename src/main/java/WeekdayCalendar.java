@@ -0,0 +1,190 @@
+import java.time.LocalDate;
+import java.util.Date;
+import java.util.TimeZone;
+
+/**
+ * Day of week lookups without java.util.Calendar.
+ * Days of week are ISO numbers: Monday = 1 ... Sunday = 7 like Utilities.dayOfWeek, day % 7 gives the 0 = Sunday
+ * index of the fitter. A series of dates is converted once to an int[] with plain epoch day arithmetic, and the
+ * epoch day of the first day of every month from FIRST_YEAR to LAST_YEAR is precomputed, so the weekday layout of a
+ * month is a table lookup returning a shared array: a month layout only depends on its first day of week and its
+ * length, which makes 28 distinct layouts. Months outside the table are computed on demand.
+ * Year, month and day follow {@code new Date(year - 1900, month - 1, day)}: a month or day out of range rolls over
+ * into the neighbouring months, and dates before the Gregorian cutover of 1582-10-15 are Julian calendar dates
+ * (clients sending Date.getYear() as the year land there).
+ */
+public final class WeekdayCalendar {
+    public static final int FIRST_YEAR = 1900;
+    public static final int LAST_YEAR = 2199;
+
+    private static final long MILLIS_PER_DAY = 24L * 60 * 60 * 1000;
+    private static final long GREGORIAN_CUTOVER = LocalDate.of(1582, 10, 15).toEpochDay();
+    private static final long JULIAN_DAY_OF_EPOCH = 2440588;  // Julian day number of 1970-01-01
+    // epoch day of the first day of each month of the table, and of the month after the last one
+    private static final long[] MONTH_STARTS = new long[12 * (LAST_YEAR - FIRST_YEAR + 1) + 1];
+    // layouts by first day of week - 1 and length - 28
+    private static final int[][][] LAYOUTS = new int[7][4][];
+
+    static {
+        LocalDate first = LocalDate.of(FIRST_YEAR, 1, 1);
+        for(int i = 0; i < MONTH_STARTS.length; i++)
+            MONTH_STARTS[i] = first.plusMonths(i).toEpochDay();
+        for(int firstDay = 1; firstDay <= 7; firstDay++){
+            for(int length = 28; length <= 31; length++){
+                int[] layout = new int[length];
+                for(int i = 0; i < length; i++)
+                    layout[i] = (firstDay - 1 + i) % 7 + 1;
+                LAYOUTS[firstDay - 1][length - 28] = layout;
+            }
+        }
+    }
+
+    private WeekdayCalendar(){
+    }
+
+    /**
+     * @param epochDay - days since 1970-01-01
+     * @return day of week, Monday = 1 ... Sunday = 7
+     */
+    public static int dayOfWeek(long epochDay){
+        // 1970-01-01 is a Thursday
+        return (int) Math.floorMod(epochDay + 3, 7L) + 1;
+    }
+
+    /**
+     * @param year
+     * @param month - 1 to 12, other values roll over
+     * @param day - day of month, other values roll over
+     * @return day of week, Monday = 1 ... Sunday = 7
+     */
+    public static int dayOfWeek(int year, int month, int day){
+        return dayOfWeek(epochDay(year, month, day));
+    }
+
+    /**
+     * @param date
+     * @return day of week in the default time zone, Monday = 1 ... Sunday = 7
+     */
+    public static int dayOfWeek(Date date){
+        return dayOfWeek(date, TimeZone.getDefault());
+    }
+
+    /**
+     * day of week of each date, in the default time zone
+     * @param dates
+     * @return days of week, Monday = 1 ... Sunday = 7
+     */
+    public static int[] daysOfWeek(Date[] dates){
+        TimeZone zone = TimeZone.getDefault();
+        int[] days = new int[dates.length];
+        for(int i = 0; i < dates.length; i++)
+            days[i] = dayOfWeek(dates[i], zone);
+        return days;
+    }
+
+    /**
+     * @param year
+     * @param month - 1 to 12, other values roll over
+     * @param day - day of month, other values roll over
+     * @return days since 1970-01-01
+     */
+    public static long epochDay(int year, int month, int day){
+        return monthStart(year, month) + day - 1;
+    }
+
+    /**
+     * midnight of a day in the default time zone, the instant of {@code new Date(year - 1900, month - 1, day)}
+     * @param epochDay - days since 1970-01-01
+     * @return
+     */
+    public static Date startOfDay(long epochDay){
+        TimeZone zone = TimeZone.getDefault();
+        long local = epochDay * MILLIS_PER_DAY;
+        // offsets around midnight, they differ when midnight is in a transition
+        int before = zone.getOffset(local - zone.getOffset(local) - MILLIS_PER_DAY / 2);
+        int after = zone.getOffset(local - zone.getOffset(local) + MILLIS_PER_DAY / 2);
+        boolean validBefore = zone.getOffset(local - before) == before;
+        boolean validAfter = zone.getOffset(local - after) == after;
+        if(validBefore && validAfter)
+            return new Date(local - Math.max(before, after));  // repeated midnight: the first one
+        if(validBefore || validAfter)
+            return new Date(local - (validBefore ? before : after));
+        return new Date(local - Math.min(before, after));  // skipped midnight: the end of the gap
+    }
+
+    /**
+     * @param year
+     * @param month - 1 to 12, other values roll over
+     * @return first day of the month
+     */
+    public static LocalDate firstDayOfMonth(int year, int month){
+        return LocalDate.ofEpochDay(monthStart(year, month));
+    }
+
+    /**
+     * @param year
+     * @param month - 1 to 12, other values roll over
+     * @return number of days of the month
+     */
+    public static int lengthOfMonth(int year, int month){
+        return (int) (monthStart(year, month + 1) - monthStart(year, month));
+    }
+
+    /**
+     * day of week of each day of a month
+     * @param year
+     * @param month - 1 to 12, other values roll over
+     * @return days of week, Monday = 1 ... Sunday = 7, the array is shared and must not be modified
+     */
+    public static int[] monthLayout(int year, int month){
+        int length = lengthOfMonth(year, month);
+        int firstDay = dayOfWeek(monthStart(year, month));
+        if(length < 28 || length > 31){
+            // the month of the Gregorian cutover
+            int[] layout = new int[length];
+            for(int i = 0; i < length; i++)
+                layout[i] = (firstDay - 1 + i) % 7 + 1;
+            return layout;
+        }
+        return LAYOUTS[firstDay - 1][length - 28];
+    }
+
+    private static int dayOfWeek(Date date, TimeZone zone){
+        long millis = date.getTime();
+        return dayOfWeek(Math.floorDiv(millis + zone.getOffset(millis), MILLIS_PER_DAY));
+    }
+
+    /**
+     * epoch day of the first day of a month
+     */
+    private static long monthStart(int year, int month){
+        int index = monthIndex(year, month);
+        if(index >= 0 && index < MONTH_STARTS.length)
+            return MONTH_STARTS[index];
+        long normalizedYear = year + Math.floorDiv(month - 1L, 12);
+        int normalizedMonth = (int) Math.floorMod(month - 1L, 12) + 1;
+        long epochDay = LocalDate.of(Math.toIntExact(normalizedYear), normalizedMonth, 1).toEpochDay();
+        if(epochDay >= GREGORIAN_CUTOVER)
+            return epochDay;
+        return julianEpochDay(normalizedYear, normalizedMonth, 1);
+    }
+
+    /**
+     * epoch day of a Julian calendar date
+     */
+    private static long julianEpochDay(long year, int month, int day){
+        // Julian day number, counted from March so that the leap day ends the year
+        long a = (14 - month) / 12;
+        long y = year + 4800 - a;
+        long m = month + 12 * a - 3;
+        return day + (153 * m + 2) / 5 + 365 * y + Math.floorDiv(y, 4) - 32083 - JULIAN_DAY_OF_EPOCH;
+    }
+
+    /**
+     * index of a month in MONTH_STARTS, may be out of the table
+     */
+    private static int monthIndex(int year, int month){
+        long index = 12L * (year - FIRST_YEAR) + month - 1;
+        return index < Integer.MIN_VALUE || index > Integer.MAX_VALUE ? -1 : (int) index;
+    }
+}
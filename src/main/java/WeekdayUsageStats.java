@@ -0,0 +1,33 @@
+/**
+ * per day of week sufficient statistics of a daily usage series.
+ * The utility model predicts the same usage for every sample of a weekday, so the least squares fit only depends on
+ * the number of samples, their sum and their sum of squares for each weekday.
+ */
+public class WeekdayUsageStats {
+    public final long[] count = new long[7];  // indexed by day of week, 0 = Sunday
+    public final double[] sum = new double[7];
+    public final double[] sumSquares = new double[7];
+
+    public WeekdayUsageStats(){
+    }
+
+    /**
+     * @param usages - daily usages
+     * @param days - day of week of each usage, 0 = Sunday
+     */
+    public WeekdayUsageStats(double[] usages, int[] days){
+        for(int i = 0; i < usages.length; i++)
+            add(days[i], usages[i]);
+    }
+
+    /**
+     * add one daily usage
+     * @param day - day of week, 0 = Sunday
+     * @param usage
+     */
+    public void add(int day, double usage){
+        count[day]++;
+        sum[day] += usage;
+        sumSquares[day] += usage * usage;
+    }
+}